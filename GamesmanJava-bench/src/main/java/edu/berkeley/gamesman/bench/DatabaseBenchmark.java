@@ -0,0 +1,206 @@
+package edu.berkeley.gamesman.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.berkeley.gamesman.GamesmanMain;
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.FileDatabase;
+import edu.berkeley.gamesman.database.GZippedFileDatabase;
+import edu.berkeley.gamesman.database.SplitDBMaker;
+import edu.berkeley.gamesman.database.SplitLocalDatabase;
+import edu.berkeley.gamesman.database.TierCutPlanner;
+
+/**
+ * Single record reads from each kind of database holding a solved 4x4
+ * Connect 4. The same solve is stored as a FileDatabase, zipped into a
+ * GZippedFileDatabase, split into several FileDatabases joined by a
+ * SplitLocalDatabase and cut down to a quarter of its size as a
+ * TierCutDatabase. Records are read either in random order or sequentially.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmark {
+	private static final int NUM_READS = 1 << 16;
+	private static final int NUM_PIECES = 4;
+
+	/**
+	 * The kind of database to read from
+	 */
+	@Param({ "FileDatabase", "GZippedFileDatabase", "SplitDatabase",
+			"TierCutDatabase" })
+	public String backend;
+
+	/**
+	 * "random" or "sequential"
+	 */
+	@Param({ "random", "sequential" })
+	public String access;
+
+	private File dir;
+	private Database db;
+	private long[] hashes;
+
+	/**
+	 * Solves the game and builds the database being measured
+	 *
+	 * @throws IOException
+	 *             If an IOException occurs while writing the databases
+	 * @throws ClassNotFoundException
+	 *             If a database class can't be loaded
+	 */
+	@Setup
+	public void setup() throws IOException, ClassNotFoundException {
+		dir = File.createTempFile("gamesman-bench", "");
+		dir.delete();
+		dir.mkdir();
+		String solved = new File(dir, "solved.db").getPath();
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "Connect4");
+		props.setProperty("gamesman.game.width", "4");
+		props.setProperty("gamesman.game.height", "4");
+		props.setProperty("gamesman.game.pieces", "4");
+		props.setProperty("gamesman.solver", "CacheTierSolver");
+		props.setProperty("gamesman.database", "FileDatabase");
+		props.setProperty("gamesman.db.uri", solved);
+		props.setProperty("gamesman.threads", "1");
+		new GamesmanMain().run(props);
+		Database full = Database.openDatabase(solved);
+		String uri = new File(dir, backend + ".db").getPath();
+		if (backend.equals("FileDatabase")) {
+			db = full;
+		} else {
+			if (backend.equals("GZippedFileDatabase")) {
+				Configuration zipConf = full.conf.cloneAll();
+				zipConf.setProperty("gamesman.database",
+						GZippedFileDatabase.class.getName());
+				GZippedFileDatabase.zip(uri, zipConf, full, true);
+			} else if (backend.equals("SplitDatabase")) {
+				split(full, uri);
+			} else if (backend.equals("TierCutDatabase")) {
+				TierCutPlanner planner = new TierCutPlanner(full);
+				planner.sample(1000, new Random(0));
+				long fullBytes = full.getNumBytes(full.numRecords);
+				planner.writeCutDatabase(uri, planner.plan(fullBytes / 4));
+			} else
+				throw new Error("Unknown backend: " + backend);
+			full.close();
+			db = Database.openDatabase(uri);
+		}
+		hashes = new long[NUM_READS];
+		Random r = new Random(0);
+		for (int i = 0; i < NUM_READS; i++) {
+			if (access.equals("random"))
+				hashes[i] = db.firstRecordIndex
+						+ (r.nextLong() & Long.MAX_VALUE) % db.numRecords;
+			else
+				hashes[i] = db.firstRecordIndex + i % db.numRecords;
+		}
+	}
+
+	/**
+	 * Copies full into NUM_PIECES FileDatabases (split on record group
+	 * boundaries) and writes a SplitLocalDatabase joining them at uri
+	 */
+	private static void split(Database full, String uri) throws IOException {
+		// cloneAll shares its properties, so the header must be written
+		// before the database class is switched for the pieces
+		Configuration conf = full.conf.cloneAll();
+		conf.setProperty("gamesman.database",
+				SplitLocalDatabase.class.getName());
+		SplitDBMaker maker = new SplitDBMaker(uri, conf,
+				full.firstRecordIndex, full.numRecords);
+		conf.setProperty("gamesman.database", FileDatabase.class.getName());
+		long group = full.myLogic.recordsPerGroup;
+		long pieceSize = (full.numRecords + NUM_PIECES - 1) / NUM_PIECES;
+		pieceSize = (pieceSize + group - 1) / group * group;
+		long end = full.firstRecordIndex + full.numRecords;
+		DatabaseHandle readHandle = full.getHandle(true);
+		long first = full.firstRecordIndex;
+		for (; first < end; first += pieceSize) {
+			long numRecords = Math.min(pieceSize, end - first);
+			String pieceUri = uri + ".piece_" + first;
+			maker.addDb(FileDatabase.class.getName(), pieceUri, first,
+					numRecords);
+			Database piece = new FileDatabase(pieceUri, conf, first,
+					numRecords, false, true);
+			DatabaseHandle writeHandle = piece.getHandle(false);
+			full.prepareReadRecordRange(readHandle, first, numRecords);
+			piece.prepareWriteRecordRange(writeHandle, first, numRecords);
+			for (long i = 0; i < numRecords; i++)
+				piece.writeNextRecord(writeHandle,
+						full.readNextRecord(readHandle));
+			piece.close();
+		}
+		maker.close();
+	}
+
+	/**
+	 * Closes the database and deletes every file written by setup
+	 *
+	 * @throws IOException
+	 *             If an IOException occurs while closing the database
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		db.close();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Each thread reads with its own handle and walks through the shared
+	 * hashes from its own position
+	 */
+	@State(Scope.Thread)
+	public static class Reader {
+		private DatabaseHandle dh;
+		private int next;
+
+		/**
+		 * @param bench
+		 *            The benchmark state holding the database
+		 */
+		@Setup
+		public void setup(DatabaseBenchmark bench) {
+			dh = bench.db.getHandle(true);
+			next = (int) Thread.currentThread().getId() * 7919;
+		}
+	}
+
+	/**
+	 * @param reader
+	 *            This thread's handle and position
+	 * @return The record read
+	 * @throws IOException
+	 *             If an IOException occurs while reading
+	 */
+	@Benchmark
+	public long readRecord(Reader reader) throws IOException {
+		reader.next = (reader.next + 1) & (NUM_READS - 1);
+		return db.readRecord(reader.dh, hashes[reader.next]);
+	}
+}
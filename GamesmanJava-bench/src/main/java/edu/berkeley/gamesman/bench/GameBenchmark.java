@@ -0,0 +1,109 @@
+package edu.berkeley.gamesman.bench;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.game.Connect4;
+import edu.berkeley.gamesman.game.util.TierState;
+
+/**
+ * The inner loop of a tier solve for Connect 4: stepping to the next position
+ * in a tier and generating its children. Also converting records to and from
+ * their stored form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GameBenchmark {
+	private static final int NUM_RECORDS = 1 << 12;
+
+	/**
+	 * The board size as width x height
+	 */
+	@Param({ "4x4", "7x6" })
+	public String size;
+
+	private Connect4 game;
+	private TierState first, midGame;
+	private TierState[] moves;
+	private Record record;
+	private long[] records;
+	private int next;
+
+	/**
+	 * Builds the game and positions it at the start of its middle tier
+	 *
+	 * @throws ClassNotFoundException
+	 *             If Connect4 can't be loaded
+	 */
+	@Setup
+	public void setup() throws ClassNotFoundException {
+		String[] dims = size.split("x");
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "Connect4");
+		props.setProperty("gamesman.game.width", dims[0]);
+		props.setProperty("gamesman.game.height", dims[1]);
+		props.setProperty("gamesman.game.pieces", "4");
+		Configuration conf = new Configuration(props);
+		game = (Connect4) conf.getGame();
+		int tier = game.gameSize / 2;
+		first = game.newState();
+		game.hashToState(game.hashOffsetForTier(tier), first);
+		game.setState(first);
+		midGame = first.clone();
+		moves = game.newStateArray(game.maxChildren());
+		record = game.newRecord();
+		records = new long[NUM_RECORDS];
+		Random r = new Random(0);
+		for (int i = 0; i < NUM_RECORDS; i++)
+			records[i] = (r.nextLong() & Long.MAX_VALUE) % game.recordStates();
+	}
+
+	/**
+	 * @return The number of children of the next position in the tier
+	 */
+	@Benchmark
+	public int nextHashInTier() {
+		if (game.hasNextHashInTier())
+			game.nextHashInTier();
+		else
+			game.setState(first);
+		return game.validMoves(moves);
+	}
+
+	/**
+	 * @return The number of children of a fixed position
+	 */
+	@Benchmark
+	public int validMoves() {
+		return game.validMoves(midGame, moves);
+	}
+
+	/**
+	 * @return The stored form of a decoded record
+	 */
+	@Benchmark
+	public long recordRoundTrip() {
+		next = (next + 1) & (NUM_RECORDS - 1);
+		game.longToRecord(midGame, records[next], record);
+		return game.recordToLong(midGame, record);
+	}
+}
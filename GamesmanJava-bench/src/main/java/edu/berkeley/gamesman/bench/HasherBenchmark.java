@@ -0,0 +1,134 @@
+package edu.berkeley.gamesman.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.berkeley.gamesman.hasher.DBHasher;
+import edu.berkeley.gamesman.hasher.DartboardHasher;
+import edu.berkeley.gamesman.hasher.counting.CountingState;
+
+/**
+ * Hashing, unhashing and stepping through positions with the DartboardHasher
+ * (set up for a board half filled with X's and O's) and with the
+ * GenHasher-based DBHasher (which covers every reachable piece count at
+ * once).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HasherBenchmark {
+	private static final int NUM_HASHES = 1 << 12;
+
+	/**
+	 * The number of places on the board
+	 */
+	@Param({ "16", "30" })
+	public int boardSize;
+
+	private DartboardHasher dartboard;
+	private char[][] boards;
+	private long[] dartboardHashes;
+
+	private DBHasher genHasher;
+	private CountingState genState, stepState;
+	private long[] genHashes;
+
+	private int next;
+
+	/**
+	 * Builds both hashers and picks random positions to hash and unhash
+	 */
+	@Setup
+	public void setup() {
+		Random r = new Random(0);
+		int numX = (boardSize / 2 + 1) / 2, numO = boardSize / 4;
+		dartboard = new DartboardHasher(boardSize, ' ', 'O', 'X');
+		dartboard.setNums(boardSize - numX - numO, numO, numX);
+		boards = new char[NUM_HASHES][boardSize];
+		dartboardHashes = new long[NUM_HASHES];
+		for (int i = 0; i < NUM_HASHES; i++) {
+			dartboardHashes[i] = nextLong(r, dartboard.numHashes());
+			dartboard.unhash(dartboardHashes[i]);
+			dartboard.getCharArray(boards[i]);
+		}
+		dartboard.unhash(0);
+
+		genHasher = new DBHasher(boardSize);
+		genState = genHasher.newState();
+		stepState = genHasher.newState();
+		genHashes = new long[NUM_HASHES];
+		for (int i = 0; i < NUM_HASHES; i++)
+			genHashes[i] = nextLong(r, genHasher.totalPositions());
+	}
+
+	private static long nextLong(Random r, long bound) {
+		return (r.nextLong() & Long.MAX_VALUE) % bound;
+	}
+
+	private int nextIndex() {
+		next = (next + 1) & (NUM_HASHES - 1);
+		return next;
+	}
+
+	/**
+	 * @return The hash of a random board
+	 */
+	@Benchmark
+	public long dartboardHash() {
+		return dartboard.hash(boards[nextIndex()]);
+	}
+
+	/**
+	 * @return The hash which was unhashed
+	 */
+	@Benchmark
+	public long dartboardUnhash() {
+		dartboard.unhash(dartboardHashes[nextIndex()]);
+		return dartboard.getHash();
+	}
+
+	/**
+	 * @return The hash of the next board
+	 */
+	@Benchmark
+	public long dartboardNext() {
+		if (!dartboard.next())
+			dartboard.unhash(0);
+		return dartboard.getHash();
+	}
+
+	/**
+	 * @return The hash of the board after unhashing
+	 */
+	@Benchmark
+	public long genHasherUnhashAndHash() {
+		genHasher.unhash(genHashes[nextIndex()], genState);
+		return genHasher.hash(genState);
+	}
+
+	/**
+	 * @return The place of the most significant change
+	 */
+	@Benchmark
+	public int genHasherStep() {
+		int changed = genHasher.step(stepState);
+		if (changed == -1)
+			genHasher.unhash(0, stepState);
+		return changed;
+	}
+}
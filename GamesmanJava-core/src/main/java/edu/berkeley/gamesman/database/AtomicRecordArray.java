@@ -0,0 +1,193 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-memory table of records which any number of threads may update at
+ * once without locking. Records are packed into longs using as few bits as
+ * the number of record states allows and every update is a compare-and-set
+ * on the long holding the record, so updates to neighboring records never
+ * overwrite each other. The table is split into chunks so it may hold more
+ * than Integer.MAX_VALUE longs.
+ */
+public final class AtomicRecordArray {
+	/**
+	 * Decides whether one record should replace another
+	 */
+	public interface Preference {
+		/**
+		 * @param candidate
+		 *            The record which might be stored
+		 * @param current
+		 *            The record currently stored
+		 * @return Whether candidate should replace current
+		 */
+		public boolean prefer(long candidate, long current);
+	}
+
+	private static final int CHUNK_BITS = 27;
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	private final AtomicLongArray[] chunks;
+	private final long firstRecordIndex;
+	private final long numRecords;
+	private final int bitsPerRecord;
+	private final int recordsPerWord;
+	private final long recordMask;
+
+	/**
+	 * @param firstRecordIndex
+	 *            The index of the first record held
+	 * @param numRecords
+	 *            The number of records held
+	 * @param recordStates
+	 *            The number of possible records (see Game.recordStates)
+	 */
+	public AtomicRecordArray(long firstRecordIndex, long numRecords,
+			long recordStates) {
+		this.firstRecordIndex = firstRecordIndex;
+		this.numRecords = numRecords;
+		bitsPerRecord = Math.max(1,
+				64 - Long.numberOfLeadingZeros(recordStates - 1));
+		recordsPerWord = 64 / bitsPerRecord;
+		recordMask = bitsPerRecord == 64 ? -1L : (1L << bitsPerRecord) - 1;
+		long numWords = (numRecords + recordsPerWord - 1) / recordsPerWord;
+		chunks = new AtomicLongArray[(int) ((numWords + CHUNK_MASK)
+				>>> CHUNK_BITS)];
+		for (int i = 0; i < chunks.length; i++)
+			chunks[i] = new AtomicLongArray((int) Math.min(CHUNK_MASK + 1L,
+					numWords - ((long) i << CHUNK_BITS)));
+	}
+
+	private long wordIndex(long recordIndex) {
+		assert recordIndex >= firstRecordIndex
+				&& recordIndex < firstRecordIndex + numRecords;
+		return (recordIndex - firstRecordIndex) / recordsPerWord;
+	}
+
+	/**
+	 * @return Whether record fits in bitsPerRecord bits (a wider record would
+	 *         overwrite its neighbors)
+	 */
+	private boolean fits(long record) {
+		return record >= 0 && (record & ~recordMask) == 0;
+	}
+
+	private int shift(long recordIndex) {
+		return (int) ((recordIndex - firstRecordIndex) % recordsPerWord)
+				* bitsPerRecord;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            The index of the record
+	 * @return The record
+	 */
+	public long get(long recordIndex) {
+		long word = wordIndex(recordIndex);
+		long bits = chunks[(int) (word >>> CHUNK_BITS)].get((int) word
+				& CHUNK_MASK);
+		return (bits >>> shift(recordIndex)) & recordMask;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            The index of the record
+	 * @param record
+	 *            The record to store
+	 */
+	public void set(long recordIndex, long record) {
+		improve(recordIndex, record, null);
+	}
+
+	/**
+	 * Atomically replaces the record if the new one is preferred to it
+	 *
+	 * @param recordIndex
+	 *            The index of the record
+	 * @param record
+	 *            The record which might be stored
+	 * @param preference
+	 *            Decides whether record replaces the current one (null to
+	 *            always replace it)
+	 * @return Whether the record was stored
+	 */
+	public boolean improve(long recordIndex, long record,
+			Preference preference) {
+		assert fits(record);
+		long word = wordIndex(recordIndex);
+		AtomicLongArray chunk = chunks[(int) (word >>> CHUNK_BITS)];
+		int place = (int) word & CHUNK_MASK;
+		int shift = shift(recordIndex);
+		long shiftedMask = recordMask << shift;
+		while (true) {
+			long bits = chunk.get(place);
+			long current = (bits >>> shift) & recordMask;
+			if (preference != null && !preference.prefer(record, current))
+				return false;
+			long newBits = (bits & ~shiftedMask) | (record << shift);
+			if (chunk.compareAndSet(place, bits, newBits))
+				return true;
+		}
+	}
+
+	/**
+	 * Atomically replaces the record if it is still the expected one
+	 *
+	 * @param recordIndex
+	 *            The index of the record
+	 * @param expect
+	 *            The record expected to be stored
+	 * @param record
+	 *            The record to store
+	 * @return Whether the record was stored
+	 */
+	public boolean compareAndSet(long recordIndex, long expect, long record) {
+		assert fits(record);
+		long word = wordIndex(recordIndex);
+		AtomicLongArray chunk = chunks[(int) (word >>> CHUNK_BITS)];
+		int place = (int) word & CHUNK_MASK;
+		int shift = shift(recordIndex);
+		long shiftedMask = recordMask << shift;
+		while (true) {
+			long bits = chunk.get(place);
+			if (((bits >>> shift) & recordMask) != expect)
+				return false;
+			long newBits = (bits & ~shiftedMask) | (record << shift);
+			if (chunk.compareAndSet(place, bits, newBits))
+				return true;
+		}
+	}
+
+	/**
+	 * Sets every record (not safe while other threads are updating)
+	 *
+	 * @param record
+	 *            The record to store
+	 */
+	public void fill(long record) {
+		assert fits(record);
+		long bits = 0L;
+		for (int i = 0; i < recordsPerWord; i++)
+			bits |= record << (i * bitsPerRecord);
+		for (AtomicLongArray chunk : chunks)
+			for (int i = 0; i < chunk.length(); i++)
+				chunk.set(i, bits);
+	}
+
+	/**
+	 * Writes every record to a database (which must contain them all)
+	 *
+	 * @param db
+	 *            The database to write to
+	 * @throws IOException
+	 *             If an IOException occurs while writing
+	 */
+	public void writeTo(Database db) throws IOException {
+		DatabaseHandle dh = db.getHandle(false);
+		db.prepareWriteRecordRange(dh, firstRecordIndex, numRecords);
+		for (long i = 0; i < numRecords; i++)
+			db.writeNextRecord(dh, get(firstRecordIndex + i));
+	}
+}
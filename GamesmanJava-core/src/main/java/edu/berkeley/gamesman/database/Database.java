@@ -8,10 +8,12 @@ import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.database.wrapper.DatabaseWrapper;
 import edu.berkeley.gamesman.game.Game;
+import edu.berkeley.gamesman.util.StripedCounter;
 import edu.berkeley.gamesman.util.Util;
 
 /**
@@ -43,6 +45,17 @@ public abstract class Database implements Closeable {
 	 */
 	public final DatabaseLogic myLogic;
 
+	/**
+	 * readCoalescedRecords reads records with at most this many unneeded bytes
+	 * between them together
+	 */
+	private static final int MAX_RUN_GAP = 256;
+
+	/**
+	 * The largest number of bytes readCoalescedRecords reads at once
+	 */
+	private static final int MAX_RUN_BYTES = 4096;
+
 	/**
 	 * The index of the first record contained in this database
 	 */
@@ -53,6 +66,11 @@ public abstract class Database implements Closeable {
 	 */
 	public final long numRecords;
 
+	private final Object[] groupLocks;
+
+	private final StripedCounter bytesRead = new StripedCounter(),
+			bytesWritten = new StripedCounter();
+
 	/**
 	 * Note: If both writing and reading are enabled, it is still generally
 	 * assumed that you will be ignoring and/or overwriting any database file
@@ -78,9 +96,16 @@ public abstract class Database implements Closeable {
 		this.writing = writing;
 		assert reading || writing;
 		long recordStates = conf.getGame().recordStates();
-		myLogic = new DatabaseLogic(recordStates);
+		myLogic = new DatabaseLogic(recordStates, conf.getProperty(
+				DatabaseLogic.PACKING_PROPERTY, DatabaseLogic.BYTES));
 		this.firstRecordIndex = firstRecordIndex;
 		this.numRecords = numRecords;
+		if (myLogic.isGrouped()) {
+			groupLocks = new Object[64];
+			for (int i = 0; i < groupLocks.length; i++)
+				groupLocks[i] = new Object();
+		} else
+			groupLocks = null;
 	}
 
 	/**
@@ -112,7 +137,7 @@ public abstract class Database implements Closeable {
 	 *         the number of records
 	 */
 	protected final long numBytes() {
-		return myLogic.getNumBytes(numRecords);
+		return myLogic.getNumBytes(firstRecordIndex, numRecords);
 	}
 
 	/**
@@ -238,6 +263,7 @@ public abstract class Database implements Closeable {
 		int read = lowerReadBytes(dh, array, off, actualNum);
 		if (read < 0)
 			throw new EOFException();
+		bytesRead.add(read);
 		dh.location += read;
 		if (dh.numBytes >= 0)
 			dh.remainingBytes -= read;
@@ -325,6 +351,7 @@ public abstract class Database implements Closeable {
 		int written = lowerWriteBytes(dh, array, off, actualNum);
 		if (written < 0)
 			throw new EOFException();
+		bytesWritten.add(written);
 		dh.location += written;
 		if (dh.numBytes >= 0)
 			dh.remainingBytes -= written;
@@ -395,9 +422,85 @@ public abstract class Database implements Closeable {
 	 */
 	public long readRecord(DatabaseHandle dh, long recordIndex)
 			throws IOException {
+		if (myLogic.isGrouped()) {
+			readFullBytes(dh, myLogic.getByteIndex(recordIndex),
+					dh.currentRecord, 0, myLogic.recordBytes);
+			return myLogic.getRecord(dh.currentRecord, 0, recordIndex);
+		}
 		return readRecordFromByteIndex(dh, myLogic.getByteIndex(recordIndex));
 	}
 
+	/**
+	 * Reads several records at once (for instance all the children of a
+	 * position). By default this just calls readRecord for each one.
+	 * Databases for which each read has a significant fixed cost should
+	 * override this with readCoalescedRecords.
+	 * 
+	 * @param dh
+	 *            The handle to use for reading
+	 * @param recordIndices
+	 *            The hashes of the records to read (in any order)
+	 * @param n
+	 *            The number of records to read
+	 * @param records
+	 *            The array to store the records in (records[i] is the record
+	 *            at recordIndices[i])
+	 * @throws IOException
+	 *             If an IOException occurs while reading
+	 */
+	public void readRecords(DatabaseHandle dh, long[] recordIndices, int n,
+			long[] records) throws IOException {
+		for (int i = 0; i < n; i++)
+			records[i] = readRecord(dh, recordIndices[i]);
+	}
+
+	/**
+	 * Reads several records by sorting them and reading each run of nearby
+	 * records with a single call to readBytes (the gaps between the records
+	 * in a run are read and discarded).
+	 * 
+	 * @see #readRecords(DatabaseHandle, long[], int, long[])
+	 */
+	protected final void readCoalescedRecords(DatabaseHandle dh,
+			long[] recordIndices, int n, long[] records) throws IOException {
+		if (dh.runOrder == null || dh.runOrder.length < n)
+			dh.runOrder = new int[Math.max(n, 8)];
+		if (dh.runBytes == null)
+			dh.runBytes = new byte[MAX_RUN_BYTES + myLogic.recordBytes];
+		int[] order = dh.runOrder;
+		for (int i = 0; i < n; i++) {
+			int j = i;
+			for (; j > 0 && recordIndices[order[j - 1]] > recordIndices[i]; j--)
+				order[j] = order[j - 1];
+			order[j] = i;
+		}
+		int first = 0;
+		while (first < n) {
+			long runStart = myLogic.getByteIndex(recordIndices[order[first]]);
+			long runEnd = runStart + myLogic.recordBytes;
+			int last = first + 1;
+			for (; last < n; last++) {
+				long byteIndex = myLogic
+						.getByteIndex(recordIndices[order[last]]);
+				long end = byteIndex + myLogic.recordBytes;
+				if (byteIndex > runEnd + MAX_RUN_GAP
+						|| end - runStart > MAX_RUN_BYTES)
+					break;
+				runEnd = Math.max(runEnd, end);
+			}
+			readFullBytes(dh, runStart, dh.runBytes, 0,
+					(int) (runEnd - runStart));
+			for (int i = first; i < last; i++) {
+				long recordIndex = recordIndices[order[i]];
+				int off = (int) (myLogic.getByteIndex(recordIndex) - runStart);
+				records[order[i]] = myLogic.isGrouped() ? myLogic.getRecord(
+						dh.runBytes, off, recordIndex) : myLogic.getRecord(
+						dh.runBytes, off);
+			}
+			first = last;
+		}
+	}
+
 	/**
 	 * @param dh
 	 *            The handle to use for reading
@@ -462,9 +565,34 @@ public abstract class Database implements Closeable {
 		}
 	}
 
+	/**
+	 * Writes a record at the given hash. For grouped record layouts the rest
+	 * of the group is read back first (so the database must be open for
+	 * reading as well) and concurrent writes to the same group are serialized.
+	 * 
+	 * @param dh
+	 *            The handle to use for writing
+	 * @param recordIndex
+	 *            The hash of the game state where the record should be written
+	 * @param record
+	 *            The record to write
+	 * @throws IOException
+	 *             If an IOException occurs while writing
+	 */
 	public void writeRecord(DatabaseHandle dh, long recordIndex, long record)
 			throws IOException {
-		writeRecordFromByteIndex(dh, myLogic.getByteIndex(recordIndex), record);
+		long byteIndex = myLogic.getByteIndex(recordIndex);
+		if (myLogic.isGrouped()) {
+			synchronized (groupLocks[(int) (recordIndex
+					/ myLogic.recordsPerGroup & (groupLocks.length - 1))]) {
+				readFullBytes(dh, byteIndex, dh.currentRecord, 0,
+						myLogic.recordBytes);
+				myLogic.fillBytes(record, dh.currentRecord, 0, recordIndex);
+				writeFullBytes(dh, byteIndex, dh.currentRecord, 0,
+						myLogic.recordBytes);
+			}
+		} else
+			writeRecordFromByteIndex(dh, byteIndex, record);
 	}
 
 	protected void writeRecordFromByteIndex(DatabaseHandle dh, long byteIndex,
@@ -492,27 +620,90 @@ public abstract class Database implements Closeable {
 
 	public void prepareReadRecordRange(DatabaseHandle dh, long recordIndex,
 			long numRecords) throws IOException {
+		setRecordRange(dh, recordIndex, numRecords);
 		prepareReadRange(dh, myLogic.getByteIndex(recordIndex),
-				myLogic.getNumBytes(numRecords));
+				myLogic.getNumBytes(recordIndex, numRecords));
 	}
 
 	public void prepareWriteRecordRange(DatabaseHandle dh, long recordIndex,
 			long numRecords) throws IOException {
+		setRecordRange(dh, recordIndex, numRecords);
 		prepareWriteRange(dh, myLogic.getByteIndex(recordIndex),
-				myLogic.getNumBytes(numRecords));
+				myLogic.getNumBytes(recordIndex, numRecords));
+	}
+
+	private void setRecordRange(DatabaseHandle dh, long recordIndex,
+			long numRecords) {
+		dh.firstRecordIndex = dh.nextRecordIndex = recordIndex;
+		dh.endRecordIndex = recordIndex + numRecords;
 	}
 
 	public long readNextRecord(DatabaseHandle dh) throws IOException {
+		if (myLogic.isGrouped()) {
+			long recordIndex = dh.nextRecordIndex;
+			if (recordIndex >= dh.endRecordIndex)
+				throw new EOFException();
+			if (recordIndex == dh.firstRecordIndex
+					|| myLogic.getGroupOffset(recordIndex) == 0)
+				readFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
+			dh.nextRecordIndex++;
+			return myLogic.getRecord(dh.currentRecord, 0, recordIndex);
+		}
 		readFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
 		return myLogic.getRecord(dh.currentRecord, 0);
 	}
 
+	/**
+	 * Writes the next record in the range prepared by prepareWriteRecordRange.
+	 * For grouped record layouts, a group is only written once it is complete.
+	 * Records in a partially covered group at either end of the range are
+	 * preserved by reading them back first (when reading is enabled).
+	 * 
+	 * @param dh
+	 *            The handle to use for writing
+	 * @param record
+	 *            The record to write
+	 * @throws IOException
+	 *             If an IOException occurs while writing
+	 */
 	public void writeNextRecord(DatabaseHandle dh, long record)
 			throws IOException {
+		if (myLogic.isGrouped()) {
+			long recordIndex = dh.nextRecordIndex;
+			if (recordIndex >= dh.endRecordIndex)
+				throw new EOFException();
+			int groupOffset = myLogic.getGroupOffset(recordIndex);
+			if (recordIndex == dh.firstRecordIndex || groupOffset == 0) {
+				long remaining = dh.endRecordIndex - recordIndex;
+				if (groupOffset > 0 || remaining < myLogic.recordsPerGroup)
+					readGroup(recordIndex, dh.currentRecord);
+			}
+			myLogic.fillBytes(record, dh.currentRecord, 0, recordIndex);
+			recordIndex = ++dh.nextRecordIndex;
+			if (recordIndex == dh.endRecordIndex
+					|| myLogic.getGroupOffset(recordIndex) == 0)
+				writeFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
+			return;
+		}
 		myLogic.fillBytes(record, dh.currentRecord, 0);
 		writeFullBytes(dh, dh.currentRecord, 0, myLogic.recordBytes);
 	}
 
+	private void readGroup(long recordIndex, byte[] group) throws IOException {
+		long byteIndex = myLogic.getByteIndex(recordIndex);
+		if (reading && byteIndex >= firstByteIndex()
+				&& byteIndex + group.length <= firstByteIndex() + numBytes()) {
+			try {
+				readFullBytes(getHandle(true), byteIndex, group, 0,
+						group.length);
+				return;
+			} catch (EOFException e) {
+				// This group hasn't been written yet
+			}
+		}
+		Arrays.fill(group, (byte) 0);
+	}
+
 	public final void fill(DatabaseHandle dh, long record) throws IOException {
 		prepareWriteRecordRange(dh, firstRecordIndex, numRecords);
 		for (int i = 0; i < numRecords; i++) {
@@ -524,6 +715,22 @@ public abstract class Database implements Closeable {
 	public void close() throws IOException {
 	}
 
+	/**
+	 * @return The number of bytes read through handles of this database
+	 *         (databases which contain others count the bytes read from them
+	 *         as well)
+	 */
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	/**
+	 * @return The number of bytes written through handles of this database
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
 	public final int writeHeader(DataOutput out) throws IOException {
 		out.writeLong(firstRecordIndex);
 		out.writeLong(numRecords);
@@ -12,7 +12,17 @@ public class DatabaseHandle {
 	public long remainingBytes;
 	protected long firstByteIndex;
 	public long numBytes = -1;
+	/**
+	 * For grouped record layouts, the range of records prepared by
+	 * prepareRead/WriteRecordRange and the next record to be read or written
+	 */
+	protected long firstRecordIndex, nextRecordIndex, endRecordIndex;
 	protected final byte[] currentRecord;
+	/**
+	 * Scratch space for Database.readRecords (allocated on first use)
+	 */
+	byte[] runBytes;
+	int[] runOrder;
 	protected final boolean reading;
 
 	public DatabaseHandle(int numBytes, boolean reading) {
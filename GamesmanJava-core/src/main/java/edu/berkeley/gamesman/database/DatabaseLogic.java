@@ -1,25 +1,158 @@
 package edu.berkeley.gamesman.database;
 
+/**
+ * Converts between record indices and byte indices and between records and
+ * their byte representation. Three layouts are supported (chosen with the
+ * gamesman.database.packing property, which is stored in the database header
+ * along with the rest of the configuration):<br />
+ * bytes (default): Each record takes 1, 2, 4 or 8 bytes<br />
+ * bits: Each record takes exactly ceil(log2(recordStates)) bits<br />
+ * base: Several records are packed into a word of up to 8 bytes as the digits
+ * of a base-recordStates number<br />
+ * The packed layouts store records in groups of recordsPerGroup records
+ * occupying recordBytes bytes. A group is the smallest unit which can be read
+ * or written, so concurrent writers must work on group-aligned ranges (see
+ * alignSplits)
+ */
 public final class DatabaseLogic {
+	/**
+	 * The configuration property which selects the record layout
+	 */
+	public static final String PACKING_PROPERTY = "gamesman.database.packing";
+	/**
+	 * One record per 1, 2, 4 or 8 bytes
+	 */
+	public static final String BYTES = "bytes";
+	/**
+	 * ceil(log2(recordStates)) bits per record
+	 */
+	public static final String BITS = "bits";
+	/**
+	 * Base-recordStates digits in words of up to 8 bytes
+	 */
+	public static final String BASE = "base";
+
+	private static final int BYTES_FORMAT = 0, BITS_FORMAT = 1,
+			BASE_FORMAT = 2;
+
+	private final int format;
 	private final int shamt;
+	private final int bitsPerRecord;
+	private final long recordMask;
+	private final long recordStates;
+	private final long[] powers;
+	/**
+	 * The number of bytes which must be read or written at once (one record
+	 * for the bytes layout, one group for the packed layouts)
+	 */
 	public final int recordBytes;
+	/**
+	 * The number of records stored in every recordBytes bytes
+	 */
+	public final int recordsPerGroup;
 
 	public DatabaseLogic(long recordStates) {
-		int shamt = -1;
-		do {
-			shamt++;
-			recordStates >>= (8 << shamt);
-		} while (recordStates > 0);
-		this.shamt = shamt;
-		recordBytes = 1 << shamt;
+		this(recordStates, BYTES);
+	}
+
+	public DatabaseLogic(long recordStates, String packing) {
+		this.recordStates = recordStates;
+		if (packing.equals(BYTES)) {
+			format = BYTES_FORMAT;
+			int shamt = -1;
+			do {
+				shamt++;
+				recordStates >>= (8 << shamt);
+			} while (recordStates > 0);
+			this.shamt = shamt;
+			recordBytes = 1 << shamt;
+			recordsPerGroup = 1;
+			bitsPerRecord = recordBytes * 8;
+			recordMask = -1L;
+			powers = null;
+		} else if (packing.equals(BITS)) {
+			format = BITS_FORMAT;
+			shamt = 0;
+			bitsPerRecord = Math.max(1,
+					64 - Long.numberOfLeadingZeros(recordStates - 1));
+			// (1L << 64) - 1 would be 0
+			recordMask = -1L >>> (64 - bitsPerRecord);
+			int bitsPerByte = 8;
+			int gcd = bitsPerRecord;
+			while (bitsPerByte != 0) {
+				int t = gcd % bitsPerByte;
+				gcd = bitsPerByte;
+				bitsPerByte = t;
+			}
+			recordsPerGroup = 8 / gcd;
+			recordBytes = bitsPerRecord * recordsPerGroup / 8;
+			powers = null;
+		} else if (packing.equals(BASE)) {
+			format = BASE_FORMAT;
+			shamt = 0;
+			bitsPerRecord = 0;
+			recordMask = -1L;
+			int bestRecords = 0, bestBytes = 1;
+			for (int numBytes = 1; numBytes <= 8; numBytes++) {
+				long limit = numBytes == 8 ? Long.MAX_VALUE
+						: 1L << (numBytes * 8);
+				int numRecords = 0;
+				for (long p = 1; p <= limit / recordStates; p *= recordStates)
+					numRecords++;
+				if ((long) numRecords * bestBytes > (long) bestRecords
+						* numBytes) {
+					bestRecords = numRecords;
+					bestBytes = numBytes;
+				}
+			}
+			if (bestRecords == 0)
+				throw new IllegalArgumentException(recordStates
+						+ " record states cannot be packed into a long");
+			recordsPerGroup = bestRecords;
+			recordBytes = bestBytes;
+			powers = new long[recordsPerGroup];
+			powers[0] = 1;
+			for (int i = 1; i < recordsPerGroup; i++)
+				powers[i] = powers[i - 1] * recordStates;
+		} else
+			throw new IllegalArgumentException("Unknown record packing: "
+					+ packing);
 	}
 
+	/**
+	 * @param recordIndex
+	 *            The index of a record
+	 * @return The index of the first byte of the group containing this record
+	 */
 	public long getByteIndex(long recordIndex) {
 		assert recordIndex >= 0;
-		return getNumBytes(recordIndex);
+		if (format == BYTES_FORMAT)
+			return recordIndex << shamt;
+		else
+			return recordIndex / recordsPerGroup * recordBytes;
 	}
 
+	/**
+	 * @param recordIndex
+	 *            The index of a record
+	 * @return The position of this record within its group
+	 */
+	public int getGroupOffset(long recordIndex) {
+		return (int) (recordIndex % recordsPerGroup);
+	}
+
+	/**
+	 * Reads the first record of the group stored at off
+	 *
+	 * @param bytes
+	 *            The array containing the group
+	 * @param off
+	 *            The offset of the group in the array
+	 * @return The record
+	 */
 	public long getRecord(byte[] bytes, int off) {
+		if (format != BYTES_FORMAT)
+			return getRecord(bytes, off, 0L);
 		long record = 0L;
 		off += recordBytes - 1;
 		for (int i = recordBytes - 1; i >= 0; i--) {
@@ -29,18 +162,198 @@ public final class DatabaseLogic {
 		return record;
 	}
 
+	/**
+	 * @param bytes
+	 *            The array containing the group
+	 * @param off
+	 *            The offset of the group (not the record) in the array
+	 * @param recordIndex
+	 *            The index of the record to read
+	 * @return The record
+	 */
+	public long getRecord(byte[] bytes, int off, long recordIndex) {
+		switch (format) {
+		case BITS_FORMAT:
+			long bitIndex = (long) getGroupOffset(recordIndex) * bitsPerRecord;
+			off += (int) (bitIndex >>> 3);
+			int shift = (int) (bitIndex & 7);
+			long record = (bytes[off] & 255) >>> shift;
+			for (int have = 8 - shift; have < bitsPerRecord; have += 8)
+				record |= (long) (bytes[++off] & 255) << have;
+			return record & recordMask;
+		case BASE_FORMAT:
+			return getWord(bytes, off) / powers[getGroupOffset(recordIndex)]
+					% recordStates;
+		default:
+			return getRecord(bytes, off);
+		}
+	}
+
+	/**
+	 * Writes the first record of the group stored at off
+	 *
+	 * @param record
+	 *            The record to write
+	 * @param bytes
+	 *            The array containing the group
+	 * @param off
+	 *            The offset of the group in the array
+	 */
 	public void fillBytes(long record, byte[] bytes, int off) {
+		if (format != BYTES_FORMAT) {
+			fillBytes(record, bytes, off, 0L);
+			return;
+		}
 		for (int i = 0; i < recordBytes; i++) {
 			bytes[off++] = (byte) record;
 			record >>= 8;
 		}
 	}
 
+	/**
+	 * Writes a single record into a group leaving the other records in the
+	 * group unchanged
+	 *
+	 * @param record
+	 *            The record to write
+	 * @param bytes
+	 *            The array containing the group
+	 * @param off
+	 *            The offset of the group (not the record) in the array
+	 * @param recordIndex
+	 *            The index of the record to write
+	 */
+	public void fillBytes(long record, byte[] bytes, int off, long recordIndex) {
+		switch (format) {
+		case BITS_FORMAT:
+			long bitIndex = (long) getGroupOffset(recordIndex) * bitsPerRecord;
+			off += (int) (bitIndex >>> 3);
+			int shift = (int) (bitIndex & 7);
+			int remaining = bitsPerRecord;
+			int firstBits = Math.min(8 - shift, remaining);
+			int mask = ((1 << firstBits) - 1) << shift;
+			bytes[off] = (byte) ((bytes[off] & ~mask)
+					| (((int) record << shift) & mask));
+			record >>>= firstBits;
+			remaining -= firstBits;
+			for (; remaining >= 8; remaining -= 8) {
+				bytes[++off] = (byte) record;
+				record >>>= 8;
+			}
+			if (remaining > 0) {
+				mask = (1 << remaining) - 1;
+				off++;
+				bytes[off] = (byte) ((bytes[off] & ~mask)
+						| ((int) record & mask));
+			}
+			break;
+		case BASE_FORMAT:
+			long word = getWord(bytes, off);
+			long power = powers[getGroupOffset(recordIndex)];
+			word += (record - word / power % recordStates) * power;
+			for (int i = 0; i < recordBytes; i++) {
+				bytes[off++] = (byte) word;
+				word >>>= 8;
+			}
+			break;
+		default:
+			fillBytes(record, bytes, off);
+		}
+	}
+
+	private long getWord(byte[] bytes, int off) {
+		long word = 0L;
+		for (int i = recordBytes - 1; i >= 0; i--) {
+			word <<= 8;
+			word |= bytes[off + i] & 255;
+		}
+		return word;
+	}
+
+	/**
+	 * @param numRecords
+	 *            A number of records (starting at the beginning of a group)
+	 * @return The number of bytes needed to store them
+	 */
 	public long getNumBytes(long numRecords) {
-		return numRecords << shamt;
+		if (format == BYTES_FORMAT)
+			return numRecords << shamt;
+		else
+			return (numRecords + recordsPerGroup - 1) / recordsPerGroup
+					* recordBytes;
+	}
+
+	/**
+	 * @param firstRecordIndex
+	 *            The index of the first record in the range
+	 * @param numRecords
+	 *            The number of records in the range
+	 * @return The number of bytes spanned by all the groups containing the
+	 *         range
+	 */
+	public long getNumBytes(long firstRecordIndex, long numRecords) {
+		if (format == BYTES_FORMAT)
+			return numRecords << shamt;
+		else if (numRecords == 0)
+			return 0;
+		else
+			return getByteIndex(firstRecordIndex + numRecords - 1)
+					+ recordBytes - getByteIndex(firstRecordIndex);
+	}
+
+	/**
+	 * @param numRecords
+	 *            A number of records (starting anywhere)
+	 * @return The largest number of bytes the range could span
+	 */
+	public long getMaxNumBytes(long numRecords) {
+		if (recordsPerGroup == 1)
+			return getNumBytes(numRecords);
+		else
+			return getNumBytes(numRecords) + recordBytes;
 	}
 
 	public long getNumRecords(long numBytes) {
-		return numBytes >> shamt;
+		if (format == BYTES_FORMAT)
+			return numBytes >> shamt;
+		else
+			return numBytes / recordBytes * recordsPerGroup;
+	}
+
+	/**
+	 * @return Whether multiple records share the same bytes (in which case
+	 *         records must be read and written a group at a time)
+	 */
+	public boolean isGrouped() {
+		return recordsPerGroup > 1;
+	}
+
+	/**
+	 * Moves the interior boundaries of a list of splits down to the start of
+	 * their groups so that no two splits write to the same group. The first
+	 * and last entries are left unchanged and empty splits are removed.
+	 *
+	 * @param splits
+	 *            The (strictly increasing) boundaries of the splits as
+	 *            returned by Util.getSplits
+	 * @return The aligned boundaries
+	 */
+	public long[] alignSplits(long[] splits) {
+		if (recordsPerGroup == 1)
+			return splits;
+		long[] aligned = new long[splits.length];
+		int numAligned = 0;
+		aligned[numAligned++] = splits[0];
+		for (int i = 1; i < splits.length - 1; i++) {
+			long boundary = splits[i] - getGroupOffset(splits[i]);
+			if (boundary > aligned[numAligned - 1])
+				aligned[numAligned++] = boundary;
+		}
+		aligned[numAligned++] = splits[splits.length - 1];
+		if (numAligned == aligned.length)
+			return aligned;
+		long[] result = new long[numAligned];
+		System.arraycopy(aligned, 0, result, 0, numAligned);
+		return result;
 	}
 }
@@ -1,18 +1,21 @@
 package edu.berkeley.gamesman.database;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.cache.ChunkCache;
 import edu.berkeley.gamesman.database.util.SeekableInputStream;
 import edu.berkeley.gamesman.database.util.SeekableOutputStream;
 import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Progressable;
 import edu.berkeley.gamesman.util.Util;
-import edu.berkeley.gamesman.util.ZipChunkInputStream;
 import edu.berkeley.gamesman.util.ZipChunkOutputStream;
 import edu.berkeley.gamesman.util.qll.Factory;
 import edu.berkeley.gamesman.util.qll.Pool;
@@ -21,10 +24,27 @@ import edu.berkeley.gamesman.util.qll.Pool;
  * A GZippedDatabase contains bytes GZipped in chunks. Subclasses need only
  * instantiate the reader and writer arguments to the constructor. These should
  * not already be GZipped, the GZippedDatabase will wrap them appropriately.
+ * When reading, inflated entries are kept in a ChunkCache (sized by
+ * gamesman.database.cache.bytes) and each read inflates with an Inflater taken
+ * from a pool, so concurrent readers only share the brief seek and read of
+ * the compressed bytes (and there are never more Inflaters than concurrent
+ * reads, however many handles are made).
  * 
  * @author dnspies
  */
 public abstract class GZippedDatabase extends Database {
+	private static final int GZIP_HEADER_BYTES = 10;
+
+	private class GZipHandle extends DatabaseHandle {
+		private byte[] zippedBytes = new byte[0];
+		private int entry = -1;
+		private byte[] entryBytes;
+
+		private GZipHandle(int numBytes, boolean reading) {
+			super(numBytes, reading);
+		}
+	}
+
 	private long currentByteIndex;
 	private long remaining;
 	private final int numEntries;
@@ -33,8 +53,20 @@ public abstract class GZippedDatabase extends Database {
 	private final long numBytes;
 	private final int tableOffset;
 	private final ZipChunkOutputStream zcos;
-	private final ZipChunkInputStream zcis;
+	private final ChunkCache entryCache;
 	private final long[] entryTable;
+	private final Pool<Inflater> inflaters = new Pool<Inflater>(
+			new Factory<Inflater>() {
+				@Override
+				public Inflater newObject() {
+					return new Inflater(true);
+				}
+
+				@Override
+				public void reset(Inflater t) {
+					t.reset();
+				}
+			});
 	private final SeekableInputStream reader;
 	private final SeekableOutputStream writer;
 	private int currentEntry;
@@ -66,8 +98,8 @@ public abstract class GZippedDatabase extends Database {
 		super(conf, firstRecordIndex, numRecords, reading, writing);
 		this.reader = reader;
 		this.writer = writer;
-		firstByteIndex = myLogic.getByteIndex(firstRecordIndex);
-		numBytes = myLogic.getNumBytes(numRecords);
+		firstByteIndex = firstByteIndex();
+		numBytes = numBytes();
 		entrySize = conf.getNumBytes("entry.bytes", 1 << 16);
 		numEntries = (int) (numBytes / entrySize + 1);
 		entryTable = new long[numEntries];
@@ -84,34 +116,108 @@ public abstract class GZippedDatabase extends Database {
 			zcos = new ZipChunkOutputStream(writer, (int) Math.min(
 					Integer.MAX_VALUE, entrySize));
 			currentByteIndex = firstByteIndex;
-			zcis = null;
+			entryCache = null;
 		} else {
 			tableOffset = skipHeader(reader);
 			for (int i = 0; i < numEntries; i++)
 				entryTable[i] = reader.readLong();
-			final int bufferSize = (int) Math.min(Integer.MAX_VALUE, entrySize);
-			zcis = new ZipChunkInputStream(reader, bufferSize);
 			zcos = null;
 			currentByteIndex = -1L;
+			long cacheBytes = conf.getNumBytes("gamesman.database.cache.bytes",
+					1L << 25);
+			entryCache = new ChunkCache((int) Math.min(numEntries,
+					Math.max(1L, cacheBytes / entrySize)), conf.getInteger(
+					"gamesman.database.cache.shards", 16));
 		}
 	}
 
 	@Override
-	protected synchronized int readBytes(DatabaseHandle dh, long location,
-			byte[] array, int off, int len) throws IOException {
+	public DatabaseHandle getHandle(boolean reading) {
+		assert reading ? this.reading : this.writing;
+		return new GZipHandle(myLogic.recordBytes, reading);
+	}
+
+	/**
+	 * Nearby records are read together so that reading all the children of a
+	 * position takes few entry lookups
+	 */
+	@Override
+	public void readRecords(DatabaseHandle dh, long[] recordIndices, int n,
+			long[] records) throws IOException {
+		readCoalescedRecords(dh, recordIndices, n, records);
+	}
+
+	@Override
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) throws IOException {
 		if (writing)
 			return len;
-		if (location != currentByteIndex) {
-			int readEntry = (int) ((location - firstByteIndex) / entrySize);
-			long entryStartByteIndex = firstByteIndex + readEntry * entrySize;
-			reader.seek(entryTable[readEntry]);
-			zcis.renew();
-			Util.skipFully(zcis, location - entryStartByteIndex);
-			currentByteIndex = location;
+		GZipHandle gzh = (GZipHandle) dh;
+		int readEntry = (int) ((location - firstByteIndex) / entrySize);
+		if (readEntry != gzh.entry) {
+			byte[] entryBytes = entryCache.get(readEntry);
+			if (entryBytes == null) {
+				entryBytes = inflateEntry(gzh, readEntry);
+				entryCache.put(readEntry, entryBytes);
+			}
+			gzh.entry = readEntry;
+			gzh.entryBytes = entryBytes;
 		}
-		int bytesRead = zcis.read(array, off, len);
-		currentByteIndex += bytesRead;
-		return bytesRead;
+		int entryOff = (int) (location - firstByteIndex - readEntry
+				* entrySize);
+		len = Math.min(len, gzh.entryBytes.length - entryOff);
+		if (len <= 0)
+			return -1;
+		System.arraycopy(gzh.entryBytes, entryOff, array, off, len);
+		return len;
+	}
+
+	private byte[] inflateEntry(GZipHandle gzh, int entry) throws IOException {
+		int zippedLength;
+		synchronized (reader) {
+			reader.seek(entryTable[entry]);
+			zippedLength = reader.readInt();
+			if (gzh.zippedBytes.length < zippedLength)
+				gzh.zippedBytes = new byte[zippedLength];
+			reader.readFully(gzh.zippedBytes, 0, zippedLength);
+		}
+		long entryStart = entry * entrySize;
+		byte[] entryBytes = new byte[(int) Math.min(entrySize, numBytes
+				- entryStart)];
+		Inflater inflater = inflaters.get();
+		inflater.setInput(gzh.zippedBytes, GZIP_HEADER_BYTES, zippedLength
+				- GZIP_HEADER_BYTES);
+		try {
+			int inflated = 0;
+			while (inflated < entryBytes.length) {
+				int n = inflater.inflate(entryBytes, inflated,
+						entryBytes.length - inflated);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					throw new IOException("Entry " + entry
+							+ " is shorter than expected");
+				inflated += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflaters.release(inflater);
+		}
+		return entryBytes;
+	}
+
+	/**
+	 * @return The number of reads which found their inflated entry in the
+	 *         cache
+	 */
+	public long getCacheHits() {
+		return entryCache == null ? 0L : entryCache.getHits();
+	}
+
+	/**
+	 * @return The number of reads which had to inflate their entry
+	 */
+	public long getCacheMisses() {
+		return entryCache == null ? 0L : entryCache.getMisses();
 	}
 
 	@Override
@@ -145,8 +251,7 @@ public abstract class GZippedDatabase extends Database {
 			}
 			writer.close();
 		} else {
-			if (zcis != null)
-				zcis.close();
+			Util.debug(DebugFacility.DATABASE, entryCache.toString());
 			reader.close();
 		}
 	}
@@ -197,130 +302,71 @@ public abstract class GZippedDatabase extends Database {
 		zip.run();
 	}
 
+	/**
+	 * Zips a database in three stages: nThreads workers each read and deflate
+	 * whole entries, finished entries wait in a reorder buffer, and the calling
+	 * thread writes them out in order (filling in the entry table as it goes).
+	 * At most maxInFlight entries are held in memory at once. Workers claim
+	 * entries in order only after acquiring a permit, so the entry the writer
+	 * needs next can always be claimed.
+	 */
 	private static class Zipper {
-		private final Pool<ZipChunkOutputStream> chunkerPool = new Pool<ZipChunkOutputStream>(
-				new Factory<ZipChunkOutputStream>() {
-					@Override
-					public ZipChunkOutputStream newObject() {
-						try {
-							return new ZipChunkOutputStream(writeTo.writer,
-									entrySize, false);
-						} catch (IOException e) {
-							throw new Error(e);
-						}
-					}
-
-					@Override
-					public void reset(ZipChunkOutputStream t) {
-						try {
-							t.renew(false);
-						} catch (IOException e) {
-							throw new Error(e);
-						}
-					}
-				});
-		private final Pool<byte[]> bytePool = new Pool<byte[]>(
-				new Factory<byte[]>() {
-
-					@Override
-					public byte[] newObject() {
-						return new byte[entrySize];
-					}
-
-					@Override
-					public void reset(byte[] t) {
-					}
-
-				});
-		private final Pool<DatabaseHandle> handlePool = new Pool<DatabaseHandle>(
-				new Factory<DatabaseHandle>() {
-
-					@Override
-					public DatabaseHandle newObject() {
-						return readFrom.getHandle(true);
-					}
-
-					@Override
-					public void reset(DatabaseHandle t) {
-					}
-
-				});
-
 		private class ZipRunner implements Runnable {
-			private final int j;
-
-			private ZipRunner(int j) {
-				this.j = j;
-			}
-
 			@Override
 			public void run() {
 				try {
-					if (j > 0)
-						memoryAcquired[j - 1].await();
-					memoryChunks.acquire(3);
-					memoryAcquired[j].countDown();
-					/*
-					 * If I were to instead acquire the permits separately
-					 * (acquire, read, acquire, write), then I could have
-					 * deadlock if all threads use up the permits reading and no
-					 * one is able to write
-					 */
-					long thisByte = j * (long) entrySize;
-					int len;
-					if (j == writeTo.numEntries - 1) {
-						len = (int) (numBytes - thisByte);
-					} else {
-						len = entrySize;
-					}
-					long byteIndex = firstByteIndex + thisByte;
-					byte[] entryBytes = bytePool.get();
-					try {
-						if (synchronizedRead) {
-							synchronizedReadBytes(len, byteIndex, entryBytes);
-						} else {
-							readBytes(len, byteIndex, entryBytes);
+					ByteArrayOutputStream zippedBytes = new ByteArrayOutputStream(
+							entrySize);
+					ZipChunkOutputStream chunker = new ZipChunkOutputStream(
+							zippedBytes, entrySize, false);
+					DatabaseHandle readDh = readFrom.getHandle(true);
+					byte[] entryBytes = new byte[entrySize];
+					while (true) {
+						inFlight.acquire();
+						int j = nextEntry.getAndIncrement();
+						if (j >= numEntries || failed != null) {
+							inFlight.release();
+							break;
 						}
-						ZipChunkOutputStream chunker = chunkerPool.get();
+						long thisByte = j * (long) entrySize;
+						int len = (int) Math.min(entrySize, numBytes
+								- thisByte);
+						long byteIndex = firstByteIndex + thisByte;
+						if (synchronizedRead) {
+							synchronized (Zipper.this) {
+								readFrom.readFullBytes(readDh, byteIndex,
+										entryBytes, 0, len);
+							}
+						} else
+							readFrom.readFullBytes(readDh, byteIndex,
+									entryBytes, 0, len);
 						chunker.startChunk();
 						chunker.write(entryBytes, 0, len);
-						chunker.finishChunk();
-						streams[j] = chunker;
-					} catch (IOException e) {
-						throw new Error(e);
-					}
-					bytesZipped += len;
-					if (bytesZipped / STEP_SIZE > lastProgressPoint) {
-						zipProgress();
+						chunker.finishAndWriteChunk();
+						finished(j, zippedBytes.toByteArray());
+						zippedBytes.reset();
+						chunker.renew(false);
 					}
-					threadsFinished[j].countDown();
-					bytePool.release(entryBytes);
-					memoryChunks.release();
 				} catch (Throwable t) {
-					if (failed == null) {
-						failed = t;
-						mainThread.interrupt();
-					}
+					fail(t);
 				}
 			}
 		}
 
 		private static final int STEP_SIZE = 100000000;
 		private final int entrySize;
-		private volatile long bytesZipped = 0L;
+		private final int numEntries;
 		private final long firstByteIndex, numBytes;
-		private final Semaphore memoryChunks;
 		private final int nThreads;
-		private final CountDownLatch[] threadsFinished;
-		private final CountDownLatch[] memoryAcquired;
-		private final ZipChunkOutputStream[] streams;
+		private final int maxInFlight;
+		private final Semaphore inFlight;
+		private final AtomicInteger nextEntry = new AtomicInteger(0);
+		private final byte[][] reorderBuffer;
 		private final Database readFrom;
 		private final GZippedDatabase writeTo;
 		private final Progressable progress;
 		private final boolean synchronizedRead;
-		private volatile long lastProgressPoint = 0;
 		private volatile Throwable failed = null;
-		private Thread mainThread;
 
 		public Zipper(Configuration conf, final Database readFrom,
 				final GZippedDatabase writeTo, Progressable progress,
@@ -328,98 +374,105 @@ public abstract class GZippedDatabase extends Database {
 			if (writeTo.entrySize > Integer.MAX_VALUE)
 				throw new Error("Entry size is too large to fit in int");
 			entrySize = (int) writeTo.entrySize;
+			numEntries = writeTo.numEntries;
 			firstByteIndex = readFrom.firstByteIndex();
 			numBytes = readFrom.numBytes();
 			nThreads = conf.getInteger("gamesman.threads", 1);
 			long availableMem = conf.getNumBytes("gamesman.memory", 1L << 25);
-			int permits = (int) Math.min(Integer.MAX_VALUE,
-					Math.max(3, availableMem / entrySize));
-			memoryChunks = new Semaphore(permits);
-			// No deadlock because newFixedThreadPool is a queue
-			memoryAcquired = new CountDownLatch[writeTo.numEntries];
-			threadsFinished = new CountDownLatch[writeTo.numEntries];
-			streams = new ZipChunkOutputStream[writeTo.numEntries];
+			// Each worker holds one uncompressed entry and each entry in flight
+			// holds at most about one entry's worth of compressed bytes
+			long entriesInMemory = availableMem / entrySize - nThreads;
+			maxInFlight = (int) Math.min(numEntries,
+					Math.max(2L * nThreads, entriesInMemory));
+			inFlight = new Semaphore(maxInFlight);
+			reorderBuffer = new byte[maxInFlight][];
 			this.readFrom = readFrom;
 			this.writeTo = writeTo;
 			this.progress = progress;
 			this.synchronizedRead = synchronizedRead;
 		}
 
-		private void zipProgress() {
-			lastProgressPoint = bytesZipped / STEP_SIZE;
-			if (progress != null) {
-				synchronized (this) {
-					progress.progress();
-				}
-			}
-			Util.debug(DebugFacility.DATABASE, bytesZipped * 10000 / numBytes
-					/ 100F + "% finished zipping");
+		private synchronized void finished(int entry, byte[] zipped) {
+			reorderBuffer[entry % maxInFlight] = zipped;
+			notifyAll();
 		}
 
-		private void writeProgress(long bytesWritten) {
-			if (progress != null) {
-				synchronized (this) {
-					progress.progress();
+		private synchronized void fail(Throwable t) {
+			if (failed == null)
+				failed = t;
+			notifyAll();
+		}
+
+		private synchronized byte[] awaitEntry(int entry) throws IOException {
+			int slot = entry % maxInFlight;
+			while (reorderBuffer[slot] == null && failed == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					fail(e);
 				}
 			}
+			if (failed != null)
+				throwError(failed);
+			byte[] zipped = reorderBuffer[slot];
+			reorderBuffer[slot] = null;
+			return zipped;
+		}
+
+		private void writeProgress(long bytesWritten, long zippedBytes,
+				long startTime) {
+			if (progress != null)
+				progress.progress();
+			long millis = Math.max(1L, System.currentTimeMillis() - startTime);
 			Util.debug(DebugFacility.DATABASE, bytesWritten * 10000 / numBytes
-					/ 100F + "% finished writing zipped bytes");
+					/ 100F + "% finished zipping (" + bytesWritten * 1000
+					/ millis / (1 << 20) + " MB/s, " + zippedBytes * 100
+					/ Math.max(1L, bytesWritten) + "% of original size)");
 		}
 
 		public void run() throws IOException {
-			System.out.println("Started zipping");
+			System.out.println("Started zipping with " + nThreads
+					+ " threads and up to " + maxInFlight
+					+ " entries in memory");
 			long startTime = System.currentTimeMillis();
-			mainThread = Thread.currentThread();
 			ExecutorService zipperService = Executors
 					.newFixedThreadPool(nThreads);
-			for (int i = 0; i < writeTo.numEntries; i++) {
-				memoryAcquired[i] = new CountDownLatch(1);
-				threadsFinished[i] = new CountDownLatch(1);
-				zipperService.submit(new ZipRunner(i));
-				if (failed != null) {
-					throwError(failed);
-				}
-			}
+			for (int i = 0; i < nThreads; i++)
+				zipperService.submit(new ZipRunner());
 			zipperService.shutdown();
-			long bytesWritten = 0L;
+			long bytesWritten = 0L, zippedBytes = 0L;
 			long lastStep = 0;
-			for (int i = 0; i < writeTo.numEntries; i++) {
-				writeTo.entryTable[i] = writeTo.writer.getFilePointer();
-				try {
-					threadsFinished[i].await();
-				} catch (InterruptedException e) {
-					if (failed == null)
-						failed = e;
-				}
-				if (failed != null)
-					throwError(failed);
-				streams[i].finishAndWriteChunk();
-				chunkerPool.release(streams[i]);
-				memoryChunks.release(2);
-				if (i < writeTo.numEntries - 1) {
-					bytesWritten += entrySize;
+			try {
+				for (int i = 0; i < numEntries; i++) {
+					byte[] zipped = awaitEntry(i);
+					writeTo.entryTable[i] = writeTo.writer.getFilePointer();
+					writeTo.writer.write(zipped);
+					inFlight.release();
+					bytesWritten = Math.min(numBytes, bytesWritten + entrySize);
+					zippedBytes += zipped.length;
 					if (bytesWritten / STEP_SIZE > lastStep) {
 						lastStep = bytesWritten / STEP_SIZE;
-						writeProgress(bytesWritten);
+						writeProgress(bytesWritten, zippedBytes, startTime);
 					}
 				}
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			} catch (RuntimeException e) {
+				fail(e);
+				throw e;
+			} catch (Error e) {
+				fail(e);
+				throw e;
+			} finally {
+				// Wake any worker waiting for a permit so it sees the failure
+				inFlight.release(nThreads);
 			}
-			if (failed != null)
-				throwError(failed);
-			System.out.println("Zipped in "
-					+ Util.millisToETA(System.currentTimeMillis() - startTime));
-		}
-
-		private void readBytes(int len, long byteIndex, byte[] entryBytes)
-				throws IOException {
-			DatabaseHandle readDh = handlePool.get();
-			readFrom.readFullBytes(readDh, byteIndex, entryBytes, 0, len);
-			handlePool.release(readDh);
-		}
-
-		private synchronized void synchronizedReadBytes(int len,
-				long byteIndex, byte[] entryBytes) throws IOException {
-			readBytes(len, byteIndex, entryBytes);
+			long millis = Math.max(1L, System.currentTimeMillis() - startTime);
+			System.out.println("Zipped " + (numBytes >> 20) + " MB to "
+					+ (zippedBytes >> 20) + " MB in "
+					+ Util.millisToETA(millis) + " ("
+					+ numBytes * 1000 / millis / (1 << 20) + " MB/s)");
 		}
 
 		private void throwError(Throwable failed) throws IOException {
@@ -0,0 +1,192 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+/**
+ * A database stored in a single file (with the same layout as a FileDatabase)
+ * whose records are memory-mapped rather than read through a shared stream.
+ * Since every access goes straight to the mapped buffers, reads and writes
+ * from different threads never need to synchronize or seek. An existing
+ * FileDatabase file may be opened with this class via
+ * Database.openDatabase("MappedFileDatabase", uri)
+ */
+public class MappedFileDatabase extends Database {
+	/**
+	 * The largest segment which may be mapped at once (as a power of two)
+	 */
+	public static final int MAX_SEGMENT_BITS = 30;
+
+	private class MappedHandle extends DatabaseHandle {
+		private final ByteBuffer[] views;
+
+		private MappedHandle(int numBytes, boolean reading) {
+			super(numBytes, reading);
+			views = new ByteBuffer[segments.length];
+		}
+
+		private ByteBuffer getView(int segment) {
+			ByteBuffer view = views[segment];
+			if (view == null) {
+				view = segments[segment].duplicate();
+				views[segment] = view;
+			}
+			return view;
+		}
+	}
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private final int segmentBits;
+	private final long segmentMask;
+	private final long headerLen;
+	private final long firstByteIndex;
+
+	/**
+	 * @param uri
+	 *            The file to map
+	 * @param conf
+	 *            The configuration object
+	 * @param firstRecordIndex
+	 *            The index of the first record contained in this database
+	 * @param numRecords
+	 *            The number of records contained in this database
+	 * @param reading
+	 *            Whether to open the database for reading
+	 * @param writing
+	 *            Whether to open the database for writing (if true, any
+	 *            existing file is overwritten)
+	 * @throws IOException
+	 *             If an IOException occurs while opening or mapping the file
+	 */
+	public MappedFileDatabase(String uri, Configuration conf,
+			long firstRecordIndex, long numRecords, boolean reading,
+			boolean writing) throws IOException {
+		super(conf, firstRecordIndex, numRecords, reading, writing);
+		segmentBits = Math.min(MAX_SEGMENT_BITS,
+				conf.getInteger("gamesman.database.map.bits", MAX_SEGMENT_BITS));
+		segmentMask = (1L << segmentBits) - 1;
+		firstByteIndex = firstByteIndex();
+		long numBytes = numBytes();
+		if (writing) {
+			raf = new RandomAccessFile(uri, "rw");
+			headerLen = writeHeader(raf);
+			raf.setLength(headerLen + numBytes);
+		} else {
+			raf = new RandomAccessFile(uri, "r");
+			headerLen = skipHeader(raf);
+			if (raf.length() < headerLen + numBytes)
+				throw new IOException("File " + uri + " is too short to hold "
+						+ numRecords + " records");
+		}
+		channel = raf.getChannel();
+		MapMode mode = writing ? MapMode.READ_WRITE : MapMode.READ_ONLY;
+		int numSegments = (int) ((numBytes + segmentMask) >>> segmentBits);
+		segments = new MappedByteBuffer[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			long segmentStart = (long) i << segmentBits;
+			long segmentSize = Math.min(segmentMask + 1, numBytes
+					- segmentStart);
+			segments[i] = channel.map(mode, headerLen + segmentStart,
+					segmentSize);
+		}
+	}
+
+	@Override
+	public DatabaseHandle getHandle(boolean reading) {
+		assert reading ? this.reading : this.writing;
+		return new MappedHandle(myLogic.recordBytes, reading);
+	}
+
+	@Override
+	protected int readBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) {
+		long offset = location - firstByteIndex;
+		int segment = (int) (offset >>> segmentBits);
+		ByteBuffer view = ((MappedHandle) dh).getView(segment);
+		view.position((int) (offset & segmentMask));
+		len = Math.min(len, view.remaining());
+		view.get(array, off, len);
+		return len;
+	}
+
+	@Override
+	protected int writeBytes(DatabaseHandle dh, long location, byte[] array,
+			int off, int len) {
+		long offset = location - firstByteIndex;
+		int segment = (int) (offset >>> segmentBits);
+		ByteBuffer view = ((MappedHandle) dh).getView(segment);
+		view.position((int) (offset & segmentMask));
+		len = Math.min(len, view.remaining());
+		view.put(array, off, len);
+		return len;
+	}
+
+	@Override
+	protected long readRecordFromByteIndex(DatabaseHandle dh, long byteIndex) {
+		byte[] recordBytes = dh.currentRecord;
+		long offset = byteIndex - firstByteIndex;
+		for (int i = 0; i < recordBytes.length; i++, offset++) {
+			recordBytes[i] = segments[(int) (offset >>> segmentBits)]
+					.get((int) (offset & segmentMask));
+		}
+		return myLogic.getRecord(recordBytes, 0);
+	}
+
+	@Override
+	protected void writeRecordFromByteIndex(DatabaseHandle dh, long byteIndex,
+			long record) {
+		byte[] recordBytes = dh.currentRecord;
+		myLogic.fillBytes(record, recordBytes, 0);
+		long offset = byteIndex - firstByteIndex;
+		for (int i = 0; i < recordBytes.length; i++, offset++) {
+			segments[(int) (offset >>> segmentBits)].put(
+					(int) (offset & segmentMask), recordBytes[i]);
+		}
+	}
+
+	@Override
+	public long readNextRecord(DatabaseHandle dh) throws IOException {
+		if (myLogic.isGrouped())
+			return super.readNextRecord(dh);
+		else if (dh.numBytes < 0)
+			throw new UnpreparedHandleException(dh);
+		else if (dh.remainingBytes < myLogic.recordBytes)
+			throw new EOFException();
+		long record = readRecordFromByteIndex(dh, dh.location);
+		incrementRecord(dh);
+		return record;
+	}
+
+	@Override
+	public void writeNextRecord(DatabaseHandle dh, long record)
+			throws IOException {
+		if (myLogic.isGrouped()) {
+			super.writeNextRecord(dh, record);
+			return;
+		} else if (dh.numBytes < 0)
+			throw new UnpreparedHandleException(dh);
+		else if (dh.remainingBytes < myLogic.recordBytes)
+			throw new EOFException();
+		writeRecordFromByteIndex(dh, dh.location, record);
+		incrementRecord(dh);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (writing) {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+		}
+		channel.close();
+		raf.close();
+	}
+}
@@ -124,6 +124,16 @@ public class ReadWriteDatabase extends Database {
 		writeDb.close();
 	}
 
+	@Override
+	public long getBytesRead() {
+		return readDb.getBytesRead();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return writeDb.getBytesWritten();
+	}
+
 	@Override
 	protected int writeBytes(DatabaseHandle dh, byte[] array, int off,
 			int maxLen) throws IOException {
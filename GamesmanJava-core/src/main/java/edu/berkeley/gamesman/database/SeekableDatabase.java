@@ -65,6 +65,16 @@ public abstract class SeekableDatabase extends Database {
 		return bytesRead;
 	}
 
+	/**
+	 * Nearby records are read together so that reading all the children of a
+	 * position takes few seeks
+	 */
+	@Override
+	public void readRecords(DatabaseHandle dh, long[] recordIndices, int n,
+			long[] records) throws IOException {
+		readCoalescedRecords(dh, recordIndices, n, records);
+	}
+
 	@Override
 	protected synchronized int writeBytes(DatabaseHandle dh, long location,
 			byte[] array, int off, int len) throws IOException {
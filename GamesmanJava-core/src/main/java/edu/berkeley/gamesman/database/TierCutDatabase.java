@@ -13,13 +13,17 @@ import java.util.Stack;
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.cache.SolvedRecordCache;
 import edu.berkeley.gamesman.game.TierGame;
 import edu.berkeley.gamesman.game.util.TierState;
+import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Util;
 
 /**
  * A {@link Database} wrapper for tier games that supports having a number of
- * its tiers missing. Values in the missing tiers are solved for upon request.
+ * its tiers missing. Values in the missing tiers are solved for upon request
+ * and the solved records are remembered in a cache shared by all handles
+ * (gamesman.database.tiercut.cache.entries records, 0 to disable).
  */
 public final class TierCutDatabase extends Database {
 
@@ -27,6 +31,7 @@ public final class TierCutDatabase extends Database {
 	private final TierGame myTierGame;
 	private final boolean[] inDatabase;
 	private final Database inner;
+	private final SolvedRecordCache solvedCache;
 
 	public TierCutDatabase(String uri, Configuration conf,
 			long firstRecordIndex, long numRecords, boolean reading,
@@ -51,6 +56,7 @@ public final class TierCutDatabase extends Database {
 		} catch (ClassNotFoundException e) {
 			throw new Error(e);
 		}
+		solvedCache = reading ? makeCache(conf) : null;
 	}
 
 	public TierCutDatabase(Database inner, String uri, Configuration conf,
@@ -64,6 +70,18 @@ public final class TierCutDatabase extends Database {
 			inDatabase[i] = true;
 		}
 		this.inner = inner;
+		// Only used to write the header, so nothing is ever solved
+		solvedCache = null;
+	}
+
+	private static SolvedRecordCache makeCache(Configuration conf) {
+		int entries = conf.getInteger("gamesman.database.tiercut.cache.entries",
+				1 << 20);
+		if (entries <= 0)
+			return null;
+		return new SolvedRecordCache(entries, conf.getInteger(
+				"gamesman.database.tiercut.cache.ways", 4), conf.getInteger(
+				"gamesman.database.tiercut.cache.shards", 64));
 	}
 
 	private int[] makeArray(int numTiersCut, int numberOfTiers) {
@@ -96,8 +114,11 @@ public final class TierCutDatabase extends Database {
 				myTierGame.release(pos);
 				return val;
 			} else {
-				// Perform a solve for the missing tiers.
 				myTierGame.release(pos);
+				long cached = getCached(recordIndex);
+				if (cached >= 0)
+					return cached;
+				// Perform a solve for the missing tiers.
 				Record alpha = myTierGame.getPoolRecord();
 				Record beta = myTierGame.getPoolRecord();
 				alpha.value = Value.UNDECIDED;
@@ -107,6 +128,7 @@ public final class TierCutDatabase extends Database {
 						beta);
 				myTierGame.release(alpha);
 				myTierGame.release(beta);
+				putCached(recordIndex, val);
 				return val;
 			}
 		}
@@ -147,13 +169,40 @@ public final class TierCutDatabase extends Database {
 				myTierGame.release(pos);
 				return val;
 			} else {
-				// Perform a solve for the missing tiers.
 				myTierGame.release(pos);
-				return alphaBetaMissingTierSolve(dh, recordIndex, alpha, beta);
+				long cached = getCached(recordIndex);
+				if (cached >= 0)
+					return cached;
+				// Perform a solve for the missing tiers. Only a search with an
+				// open window gives the exact record, so only that is cached.
+				boolean exact = alpha.value == Value.UNDECIDED
+						&& beta.value == Value.UNDECIDED;
+				long val = alphaBetaMissingTierSolve(dh, recordIndex, alpha,
+						beta);
+				if (exact)
+					putCached(recordIndex, val);
+				return val;
 			}
 		}
 	}
 
+	private long getCached(long recordIndex) {
+		return solvedCache == null ? -1L : solvedCache.get(recordIndex);
+	}
+
+	private void putCached(long recordIndex, long record) {
+		if (solvedCache != null)
+			solvedCache.put(recordIndex, record);
+	}
+
+	/**
+	 * @return The cache of solved records from the missing tiers (or null if
+	 *         there isn't one)
+	 */
+	public SolvedRecordCache getSolvedCache() {
+		return solvedCache;
+	}
+
 	/**
 	 * Solves for the value of the state corresponding to the given index.
 	 * Alpha-Beta pruning is supported.
@@ -307,6 +356,10 @@ public final class TierCutDatabase extends Database {
 	private long getRecordValue(Map<Long, Long> cachedDb, long initialStateHash) {
 		if (cachedDb.containsKey(initialStateHash)) {
 			return cachedDb.get(initialStateHash);
+		}
+		long cached = getCached(initialStateHash);
+		if (cached >= 0) {
+			return cached;
 		} else {
 			// Value not in DB, so solve for it.
 			TierState pos = myTierGame.getPoolState();
@@ -478,6 +531,8 @@ public final class TierCutDatabase extends Database {
 			writeHeader(dos);
 			dos.close();
 		}
+		if (solvedCache != null)
+			Util.debug(DebugFacility.DATABASE, solvedCache.toString());
 		inner.close();
 	}
 
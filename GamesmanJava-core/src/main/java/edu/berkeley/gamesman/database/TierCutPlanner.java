@@ -0,0 +1,406 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.game.TierGame;
+import edu.berkeley.gamesman.game.util.TierState;
+
+/**
+ * Chooses which tiers of a solved tier game to keep in a
+ * {@link TierCutDatabase} so that the stored tiers fit in a disk budget and
+ * the expected time to look up a position is as small as possible.<br />
+ * The planner plays random games through the full database (as
+ * TierGameDbAnalyzer does) and measures for each tier how often it's visited,
+ * how long a stored read takes, how long it takes to expand a position and
+ * how many children a non-primitive position has. A position in a cut tier
+ * costs one expansion plus the cost of each of its children (which are in the
+ * next tier), so the cost of every tier only depends on the next stored tier.
+ * This makes the choice a knapsack over pairs of consecutive stored tiers,
+ * which is solved exactly by dynamic programming once the budget is divided
+ * into units. The cost model ignores alpha-beta pruning and the solved record
+ * cache, so the predicted times for cut tiers are upper bounds.
+ */
+public class TierCutPlanner {
+	private static final int BUDGET_UNITS = 1 << 12;
+
+	private final Database db;
+	private final TierGame game;
+	private final int numTiers;
+	private final long[] tierBytes;
+	private final long[] visits;
+	private final long[] children;
+	private final double[] readNanos;
+	private final double[] expandNanos;
+	private long playouts = 0L;
+
+	/**
+	 * @param db
+	 *            A complete database for a tier game
+	 */
+	public TierCutPlanner(Database db) {
+		this.db = db;
+		game = (TierGame) db.conf.getGame();
+		numTiers = game.numberOfTiers();
+		tierBytes = new long[numTiers];
+		for (int tier = 0; tier < numTiers; tier++)
+			tierBytes[tier] = db.getNumBytes(game.numHashesForTier(tier));
+		visits = new long[numTiers];
+		children = new long[numTiers];
+		readNanos = new double[numTiers];
+		expandNanos = new double[numTiers];
+	}
+
+	/**
+	 * A planner for given measurements rather than sampled ones. It can plan
+	 * but not sample or write a database.
+	 *
+	 * @param tierBytes
+	 *            The number of bytes each tier takes
+	 * @param visits
+	 *            The number of positions visited in each tier
+	 * @param children
+	 *            The total number of children of those positions
+	 * @param readNanos
+	 *            The total time spent reading them
+	 * @param expandNanos
+	 *            The total time spent expanding them
+	 * @param playouts
+	 *            The number of games the visits came from
+	 */
+	TierCutPlanner(long[] tierBytes, long[] visits, long[] children,
+			double[] readNanos, double[] expandNanos, long playouts) {
+		db = null;
+		game = null;
+		numTiers = tierBytes.length;
+		this.tierBytes = tierBytes;
+		this.visits = visits;
+		this.children = children;
+		this.readNanos = readNanos;
+		this.expandNanos = expandNanos;
+		this.playouts = playouts;
+	}
+
+	/**
+	 * Plays random games until every reachable tier has been visited at least
+	 * numSamples times (or until numSamples games have been played for every
+	 * tier)
+	 *
+	 * @param numSamples
+	 *            The number of samples to take from each tier
+	 * @param random
+	 *            The source of the random moves
+	 * @throws IOException
+	 *             If an IOException occurs while reading the database
+	 */
+	public void sample(int numSamples, Random random) throws IOException {
+		DatabaseHandle dh = db.getHandle(true);
+		Collection<TierState> starts = game.startingPositions();
+		TierState[] startStates = starts.toArray(new TierState[starts.size()]);
+		TierState pos = game.newState();
+		TierState[] childStates = new TierState[game.maxChildren()];
+		for (int i = 0; i < childStates.length; i++)
+			childStates[i] = game.newState();
+		long maxPlayouts = (long) numSamples * numTiers;
+		while (playouts < maxPlayouts && !doneSampling(numSamples)) {
+			pos.set(startStates[random.nextInt(startStates.length)]);
+			playouts++;
+			while (true) {
+				int tier = pos.tier;
+				long hash = game.stateToHash(pos);
+				long start = System.nanoTime();
+				db.readRecord(dh, hash);
+				readNanos[tier] += System.nanoTime() - start;
+				start = System.nanoTime();
+				Value value = game.primitiveValue(pos);
+				int numChildren = 0;
+				if (value == Value.UNDECIDED) {
+					numChildren = game.validMoves(pos, childStates);
+					for (int i = 0; i < numChildren; i++)
+						game.stateToHash(childStates[i]);
+				}
+				expandNanos[tier] += System.nanoTime() - start;
+				visits[tier]++;
+				if (numChildren == 0)
+					break;
+				children[tier] += numChildren;
+				pos.set(childStates[random.nextInt(numChildren)]);
+			}
+		}
+	}
+
+	private boolean doneSampling(int numSamples) {
+		for (int tier = 0; tier < numTiers; tier++) {
+			if (visits[tier] < numSamples)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Per-tier averages from the samples. Unvisited tiers borrow the averages
+	 * of the closest visited tier before them.
+	 */
+	private final class Estimates {
+		private final double[] weight = new double[numTiers];
+		private final double[] read = new double[numTiers];
+		private final double[] expand = new double[numTiers];
+		private final double[] branching = new double[numTiers];
+
+		private Estimates() {
+			int source = -1;
+			for (int tier = 0; tier < numTiers; tier++) {
+				if (visits[tier] > 0)
+					source = tier;
+				weight[tier] = playouts == 0 ? 0 : (double) visits[tier]
+						/ playouts;
+				if (source < 0)
+					continue;
+				read[tier] = readNanos[source] / visits[source];
+				expand[tier] = expandNanos[source] / visits[source];
+				// Expected number of children of a random position in the
+				// tier (primitive positions have none)
+				branching[tier] = (double) children[source] / visits[source];
+			}
+		}
+
+		/**
+		 * @return The expected cost of looking up a position in tier (which
+		 *         must be cut unless tier == nextStored) when nextStored is
+		 *         the next tier kept in the database (numTiers if none is)
+		 */
+		private double[][] costs() {
+			double[][] cost = new double[numTiers + 1][numTiers + 1];
+			for (int next = 0; next <= numTiers; next++) {
+				cost[next][next] = next == numTiers ? 0 : read[next];
+				for (int tier = next - 1; tier >= 0; tier--)
+					cost[tier][next] = expand[tier] + branching[tier]
+							* cost[tier + 1][next];
+			}
+			return cost;
+		}
+	}
+
+	/**
+	 * @param budgetBytes
+	 *            The number of bytes available for the stored tiers
+	 * @return The tiers to store (in increasing order)
+	 */
+	public int[] plan(long budgetBytes) {
+		Estimates est = new Estimates();
+		double[][] cost = est.costs();
+		// segment[a][k] is the weighted cost of tiers a..k-1 when all are cut
+		// and k is the next stored tier
+		double[][] segment = new double[numTiers + 1][numTiers + 1];
+		for (int k = 0; k <= numTiers; k++) {
+			for (int a = k - 1; a >= 0; a--)
+				segment[a][k] = segment[a + 1][k] + est.weight[a] * cost[a][k];
+		}
+		long unit = Math.max(1L, (budgetBytes + BUDGET_UNITS - 1)
+				/ BUDGET_UNITS);
+		int units = (int) Math.min(BUDGET_UNITS, budgetBytes / unit);
+		int[] size = new int[numTiers];
+		for (int tier = 0; tier < numTiers; tier++)
+			size[tier] = (int) Math.min(Integer.MAX_VALUE,
+					(tierBytes[tier] + unit - 1) / unit);
+		// best[k][u] is the least weighted cost of tiers k..numTiers-1 when k
+		// is stored and the stored tiers from k on use at most u units.
+		// next[k][u] is the stored tier after k in that plan.
+		double[][] best = new double[numTiers + 1][units + 1];
+		int[][] next = new int[numTiers][units + 1];
+		for (int k = numTiers - 1; k >= 0; k--) {
+			for (int u = 0; u <= units; u++) {
+				best[k][u] = Double.POSITIVE_INFINITY;
+				if (size[k] > u)
+					continue;
+				int left = u - size[k];
+				for (int j = k + 1; j <= numTiers; j++) {
+					double c = segment[k + 1][j] + best[j][left];
+					if (c < best[k][u]) {
+						best[k][u] = c;
+						next[k][u] = j;
+					}
+				}
+				best[k][u] += est.weight[k] * cost[k][k];
+			}
+		}
+		int first = numTiers;
+		double firstCost = segment[0][numTiers];
+		for (int j = 0; j < numTiers; j++) {
+			double c = segment[0][j] + best[j][units];
+			if (c < firstCost) {
+				firstCost = c;
+				first = j;
+			}
+		}
+		int numStored = 0;
+		int[] stored = new int[numTiers];
+		for (int k = first, u = units; k < numTiers;) {
+			stored[numStored++] = k;
+			int j = next[k][u];
+			u -= size[k];
+			k = j;
+		}
+		return Arrays.copyOf(stored, numStored);
+	}
+
+	/**
+	 * @param storedTiers
+	 *            The tiers kept in the database
+	 * @return The expected time (in nanoseconds) to look up a position from
+	 *         a random game
+	 */
+	public double expectedNanos(int[] storedTiers) {
+		Estimates est = new Estimates();
+		double[][] cost = est.costs();
+		boolean[] stored = new boolean[numTiers];
+		for (int tier : storedTiers)
+			stored[tier] = true;
+		double total = 0;
+		int nextStored = numTiers;
+		for (int tier = numTiers - 1; tier >= 0; tier--) {
+			if (stored[tier])
+				nextStored = tier;
+			total += est.weight[tier] * cost[tier][nextStored];
+		}
+		return total;
+	}
+
+	/**
+	 * @param storedTiers
+	 *            The tiers kept in the database
+	 * @return The number of bytes the stored tiers take
+	 */
+	public long storedBytes(int[] storedTiers) {
+		long total = 0L;
+		for (int tier : storedTiers)
+			total += tierBytes[tier];
+		return total;
+	}
+
+	/**
+	 * Writes a TierCutDatabase at uri which keeps only the given tiers. Each
+	 * run of consecutive stored tiers is copied into its own FileDatabase
+	 * (uri.tiers_first_last) and these are joined by a SplitLocalDatabase
+	 * (uri.inner) in which the cut tiers are filled in by DummyDatabases.
+	 *
+	 * @param uri
+	 *            The file to write the cut database header to
+	 * @param storedTiers
+	 *            The tiers to keep (in increasing order)
+	 * @throws IOException
+	 *             If an IOException occurs while copying the records
+	 */
+	public void writeCutDatabase(String uri, int[] storedTiers)
+			throws IOException {
+		String innerUri = uri + ".inner";
+		Configuration innerConf = db.conf.cloneAll();
+		innerConf.setProperty("gamesman.database",
+				SplitLocalDatabase.class.getName());
+		SplitDBMaker maker = new SplitDBMaker(innerUri, innerConf,
+				db.firstRecordIndex, db.numRecords);
+		long covered = db.firstRecordIndex;
+		for (int i = 0; i < storedTiers.length;) {
+			int firstTier = storedTiers[i];
+			int lastTier = firstTier;
+			while (++i < storedTiers.length && storedTiers[i] == lastTier + 1)
+				lastTier++;
+			long first = game.hashOffsetForTier(firstTier);
+			long end = lastTier + 1 == numTiers ? game.numHashes() : game
+					.hashOffsetForTier(lastTier + 1);
+			// Keep whole groups so that no byte is shared by two databases
+			first = Math.max(covered, first - db.myLogic.getGroupOffset(first));
+			int endOffset = db.myLogic.getGroupOffset(end);
+			if (endOffset > 0)
+				end = Math.min(game.numHashes(), end
+						+ db.myLogic.recordsPerGroup - endOffset);
+			if (first > covered)
+				maker.addDb(DummyDatabase.class.getName(), "null", covered,
+						first - covered);
+			String pieceUri = uri + ".tiers_" + firstTier + "_" + lastTier;
+			maker.addDb(FileDatabase.class.getName(), pieceUri, first, end
+					- first);
+			copyRecords(pieceUri, first, end - first);
+			covered = end;
+		}
+		long dbEnd = db.firstRecordIndex + db.numRecords;
+		if (covered < dbEnd)
+			maker.addDb(DummyDatabase.class.getName(), "null", covered, dbEnd
+					- covered);
+		maker.close();
+		Database inner;
+		try {
+			inner = Database.openDatabase(innerUri);
+		} catch (ClassNotFoundException e) {
+			throw new Error(e);
+		}
+		Configuration cutConf = db.conf.cloneAll();
+		cutConf.setProperty("gamesman.database.stored.tiers",
+				Arrays.toString(storedTiers));
+		cutConf.setProperty("gamesman.db.inner.uri", innerUri);
+		cutConf.setProperty("gamesman.database",
+				TierCutDatabase.class.getName());
+		new TierCutDatabase(inner, uri, cutConf, db.firstRecordIndex,
+				db.numRecords, storedTiers).close();
+	}
+
+	private void copyRecords(String pieceUri, long firstRecord,
+			long numRecords) throws IOException {
+		Configuration pieceConf = db.conf.cloneAll();
+		pieceConf.setProperty("gamesman.database",
+				FileDatabase.class.getName());
+		Database piece = new FileDatabase(pieceUri, pieceConf, firstRecord,
+				numRecords, false, true);
+		DatabaseHandle readHandle = db.getHandle(true);
+		DatabaseHandle writeHandle = piece.getHandle(false);
+		db.prepareReadRecordRange(readHandle, firstRecord, numRecords);
+		piece.prepareWriteRecordRange(writeHandle, firstRecord, numRecords);
+		for (long i = 0; i < numRecords; i++)
+			piece.writeNextRecord(writeHandle, db.readNextRecord(readHandle));
+		piece.close();
+	}
+
+	/**
+	 * Plans and writes a cut database
+	 *
+	 * @param args
+	 *            The complete database, the budget for the stored tiers (in
+	 *            bytes, with an optional K, M or G suffix), the uri for the
+	 *            cut database and optionally the number of samples to take
+	 *            from each tier (default 1000). If the uri is omitted the plan
+	 *            is only printed.
+	 * @throws IOException
+	 *             If an IOException occurs while reading or writing
+	 * @throws ClassNotFoundException
+	 *             If the database's configuration names a missing class
+	 */
+	public static void main(String[] args) throws IOException,
+			ClassNotFoundException {
+		Database db = Database.openDatabase(args[0]);
+		Configuration budgetConf = db.conf.cloneAll();
+		budgetConf.setProperty("gamesman.database.budget", args[1]);
+		long budget = budgetConf.getNumBytes("gamesman.database.budget", 0L);
+		String uri = args.length > 2 ? args[2] : null;
+		int numSamples = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		TierCutPlanner planner = new TierCutPlanner(db);
+		planner.sample(numSamples, new Random());
+		Estimates est = planner.new Estimates();
+		System.out.println("Tier\tBytes\tWeight\tRead ns\tExpand ns\tChildren");
+		for (int tier = 0; tier < planner.numTiers; tier++) {
+			System.out.printf("%d\t%d\t%.3f\t%.0f\t%.0f\t%.2f%n", tier,
+					planner.tierBytes[tier], est.weight[tier], est.read[tier],
+					est.expand[tier], est.branching[tier]);
+		}
+		int[] stored = planner.plan(budget);
+		System.out.printf("Store tiers %s: %d bytes, %.0f ns per lookup%n",
+				Arrays.toString(stored), planner.storedBytes(stored),
+				planner.expectedNanos(stored));
+		if (uri != null)
+			planner.writeCutDatabase(uri, stored);
+		db.close();
+	}
+}
@@ -40,11 +40,21 @@ public class C4Cache extends TierCache {
 		}
 	}
 
+	@Override
+	public void flushCounts() {
+		super.flushCounts();
+		for (RecordRangeCache range : ranges)
+			range.flushCounts();
+	}
+
 	private long ensureContains(TierState currentPosition, TierState child,
 			int place) {
 		long childHash = game.stateToHash(child);
-		if (ranges[place].containsRecord(childHash))
+		if (ranges[place].containsRecord(childHash)) {
+			countHit();
 			return childHash;
+		}
+		countMiss();
 		long addHash = Math.min(db.recordsForBytes(memPerChild) * 2,
 				game.numHashesForTier(currentPosition.tier)
 						- currentPosition.hash);
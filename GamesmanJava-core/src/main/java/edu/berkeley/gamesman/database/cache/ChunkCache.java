@@ -0,0 +1,103 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded least-recently-used cache of byte chunks keyed by chunk index. The
+ * cache is split into shards (each with its own lock and LRU order) so that
+ * threads looking up different chunks rarely contend.
+ */
+public class ChunkCache {
+	private static class Shard extends LinkedHashMap<Integer, byte[]> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		private Shard(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	private final Shard[] shards;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	/**
+	 * @param numChunks
+	 *            The maximum number of chunks to hold (across all shards)
+	 * @param numShards
+	 *            The number of independently locked shards
+	 */
+	public ChunkCache(int numChunks, int numShards) {
+		numShards = Math.max(1, Math.min(numShards, numChunks));
+		shards = new Shard[numShards];
+		for (int i = 0; i < numShards; i++)
+			shards[i] = new Shard(Math.max(1, numChunks / numShards));
+	}
+
+	private Shard shardFor(int chunk) {
+		return shards[chunk % shards.length];
+	}
+
+	/**
+	 * @param chunk
+	 *            The index of the chunk
+	 * @return The cached chunk or null if it is not in the cache
+	 */
+	public byte[] get(int chunk) {
+		Shard shard = shardFor(chunk);
+		byte[] bytes;
+		synchronized (shard) {
+			bytes = shard.get(chunk);
+		}
+		if (bytes == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return bytes;
+	}
+
+	/**
+	 * Adds a chunk to the cache, evicting the least recently used chunk in its
+	 * shard if the shard is full. Cached chunks must not be modified.
+	 *
+	 * @param chunk
+	 *            The index of the chunk
+	 * @param bytes
+	 *            The contents of the chunk
+	 */
+	public void put(int chunk, byte[] bytes) {
+		Shard shard = shardFor(chunk);
+		synchronized (shard) {
+			shard.put(chunk, bytes);
+		}
+	}
+
+	/**
+	 * @return The number of lookups which found their chunk
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups which didn't find their chunk
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits(), misses = getMisses();
+		long total = hits + misses;
+		return "ChunkCache: " + hits + " hits, " + misses + " misses"
+				+ (total == 0 ? "" : " (" + hits * 100 / total + "% hit rate)");
+	}
+}
@@ -0,0 +1,174 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.game.TierGame;
+import edu.berkeley.gamesman.game.util.TierState;
+
+/**
+ * A cache for any TierGame which implements validMoves(children, cachePlaces)
+ * and numCachePlaces. Each cache place has a window of records. When a child
+ * isn't in its place's window, a new window starting at the child is read in
+ * one sequential read, and the window after it is read by a background I/O
+ * thread while the solver works through the current one.<br />
+ * This works best when the hash of the child in each place never decreases as
+ * the parent's hash increases (as with the columns of Connect 4), since then
+ * every record read is used. Windows never extend past
+ * TierGame.childHashLimit for the positions the cache could use them for.
+ */
+public class PrefetchCache extends TierCache {
+	private static ExecutorService ioThreads;
+
+	private final TierGame game;
+	private final DatabaseHandle dh;
+	private final RecordRangeCache[] ranges, ahead;
+	private final DatabaseHandle[] aheadHandles;
+	private final Future<?>[] pending;
+	private final int windowRecords;
+
+	public PrefetchCache(TierGame g, Database db, long availableMemory) {
+		super(db, availableMemory);
+		game = g;
+		dh = db.getHandle(true);
+		int numPlaces = g.numCachePlaces();
+		// Each place has a window being read and one being prefetched
+		windowRecords = (int) Math.max(1L, Math.min(Integer.MAX_VALUE,
+				db.recordsForBytes(availableMemory / (2 * numPlaces))));
+		ranges = new RecordRangeCache[numPlaces];
+		ahead = new RecordRangeCache[numPlaces];
+		aheadHandles = new DatabaseHandle[numPlaces];
+		pending = new Future<?>[numPlaces];
+		for (int i = 0; i < numPlaces; i++) {
+			ranges[i] = new RecordRangeCache(db);
+			ahead[i] = new RecordRangeCache(db);
+			aheadHandles[i] = db.getHandle(true);
+		}
+	}
+
+	@Override
+	public void fetchChildren(TierState position, int numChildren,
+			TierState[] children, int[] hints, Record[] values) {
+		for (int i = 0; i < numChildren; i++) {
+			int place = hints[i];
+			TierState child = children[i];
+			long childHash = game.stateToHash(child);
+			if (ranges[place].containsRecord(childHash))
+				countHit();
+			else {
+				countMiss();
+				load(position, child, childHash, place);
+			}
+			game.longToRecord(child, ranges[place].readRecord(childHash),
+					values[i]);
+		}
+	}
+
+	@Override
+	public void flushCounts() {
+		super.flushCounts();
+		for (int place = 0; place < ranges.length; place++) {
+			ranges[place].flushCounts();
+			ahead[place].flushCounts();
+		}
+	}
+
+	private void load(TierState position, TierState child, long childHash,
+			int place) {
+		long limit = Math.max(childHash + 1, windowLimit(position, child));
+		RecordRangeCache range = ranges[place];
+		if (pending[place] != null) {
+			await(place);
+			pending[place] = null;
+			if (covers(ahead[place], childHash)) {
+				ranges[place] = ahead[place];
+				ahead[place] = range;
+				range = ranges[place];
+			}
+		}
+		if (!covers(range, childHash)) {
+			try {
+				readWindow(range, dh, childHash, limit);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+		}
+		long nextFirst = range.getFirstRecordIndex() + range.getNumRecords();
+		if (nextFirst < limit)
+			prefetch(place, nextFirst, limit);
+	}
+
+	private static boolean covers(RecordRangeCache range, long hash) {
+		long place = hash - range.getFirstRecordIndex();
+		return place >= 0 && place < range.getNumRecords();
+	}
+
+	/**
+	 * @return A bound on the children (in child's tier) of the positions from
+	 *         this one on which the current and prefetched windows may serve
+	 */
+	private long windowLimit(TierState position, TierState child) {
+		long childOffset = game.hashOffsetForTier(child.tier);
+		long limit = childOffset + game.numHashesForTier(child.tier);
+		if (child.tier == position.tier + 1) {
+			long numHashes = Math.min(4L * windowRecords,
+					game.numHashesForTier(position.tier) - position.hash);
+			limit = Math.min(limit, childOffset
+					+ game.childHashLimit(position.tier, position.hash,
+							numHashes));
+			game.setState(position);
+		}
+		return limit;
+	}
+
+	private void readWindow(RecordRangeCache range, DatabaseHandle handle,
+			long firstRecord, long limit) throws IOException {
+		int numRecords = (int) Math.min(windowRecords, limit - firstRecord);
+		range.setRange(firstRecord, numRecords);
+		range.readRecordsFromDatabase(db, handle, firstRecord, numRecords);
+	}
+
+	private void prefetch(int place, final long firstRecord, final long limit) {
+		final RecordRangeCache range = ahead[place];
+		final DatabaseHandle handle = aheadHandles[place];
+		pending[place] = getIOThreads().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				readWindow(range, handle, firstRecord, limit);
+				return null;
+			}
+		});
+	}
+
+	private void await(int place) {
+		try {
+			pending[place].get();
+		} catch (InterruptedException e) {
+			throw new Error(e);
+		} catch (ExecutionException e) {
+			throw new Error(e.getCause());
+		}
+	}
+
+	private static synchronized ExecutorService getIOThreads() {
+		if (ioThreads == null) {
+			ioThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return ioThreads;
+	}
+}
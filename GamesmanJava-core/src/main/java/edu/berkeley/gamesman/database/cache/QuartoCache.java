@@ -44,7 +44,10 @@ public class QuartoCache extends TierCache {
 			long childHash = game.stateToHash(children[child]);
 			boolean childFetched = fetchChild(children[child], values[child],
 					piece, place, childHash);
-			if (!childFetched) {
+			if (childFetched)
+				countHit();
+			else {
+				countMiss();
 				setCache(place, piece);
 				childFetched = fetchChild(children[child], values[child],
 						piece, place, childHash);
@@ -53,6 +56,14 @@ public class QuartoCache extends TierCache {
 		}
 	}
 
+	@Override
+	public void flushCounts() {
+		super.flushCounts();
+		for (RecordRangeCache[] placeCaches : upperCaches)
+			for (RecordRangeCache cache : placeCaches)
+				cache.flushCounts();
+	}
+
 	private void setCache(int place, int piece) {
 		boolean success;
 		success = setCacheThroughAll(place, cacheMemory);
@@ -8,15 +8,21 @@ import edu.berkeley.gamesman.database.DatabaseHandle;
 import edu.berkeley.gamesman.database.DatabaseLogic;
 import edu.berkeley.gamesman.database.UnpreparedHandleException;
 import edu.berkeley.gamesman.util.DebugFacility;
+import edu.berkeley.gamesman.util.StripedCounter;
 import edu.berkeley.gamesman.util.Util;
 
 public class RecordRangeCache {
+	private static final StripedCounter hits = new StripedCounter(),
+			misses = new StripedCounter();
+
 	private byte[] recordBytes = new byte[0];
 	private long firstRecordIndex;
 	private int numRecords;
 	private long firstByteIndex;
 	private int numBytes;
 	private final DatabaseLogic myLogic;
+	// Hits are added to the shared counter when flushed
+	private long unflushedHits = 0L;
 
 	public RecordRangeCache(DatabaseLogic logic) {
 		myLogic = logic;
@@ -27,15 +33,17 @@ public class RecordRangeCache {
 	}
 
 	public void setRange(long firstRecordIndex, int numRecords) {
+		flushCounts();
 		this.firstRecordIndex = firstRecordIndex;
-		ensureCapacity(numRecords, false);
+		numBytes = (int) myLogic.getNumBytes(firstRecordIndex, numRecords);
+		ensureByteCapacity(numBytes, false);
 		this.numRecords = numRecords;
 		firstByteIndex = myLogic.getByteIndex(firstRecordIndex);
-		numBytes = (int) myLogic.getNumBytes(numRecords);
 	}
 
 	public void ensureCapacity(int numRecords, boolean saveCurrent) {
-		ensureByteCapacity((int) myLogic.getNumBytes(numRecords), saveCurrent);
+		ensureByteCapacity((int) myLogic.getMaxNumBytes(numRecords),
+				saveCurrent);
 	}
 
 	public void ensureByteCapacity(int numBytes, boolean saveCurrent) {
@@ -75,6 +83,10 @@ public class RecordRangeCache {
 
 	public long readRecord(long recordIndex) {
 		assert recordIndex < firstRecordIndex + numRecords;
+		if (myLogic.isGrouped())
+			return myLogic.getRecord(recordBytes,
+					(int) (myLogic.getByteIndex(recordIndex) - firstByteIndex),
+					recordIndex);
 		return readRecordFromByteIndex(myLogic.getByteIndex(recordIndex));
 	}
 
@@ -85,7 +97,12 @@ public class RecordRangeCache {
 	}
 
 	public void writeRecord(long recordIndex, long record) {
-		writeRecordFromByteIndex(myLogic.getByteIndex(recordIndex), record);
+		if (myLogic.isGrouped())
+			myLogic.fillBytes(record, recordBytes,
+					(int) (myLogic.getByteIndex(recordIndex) - firstByteIndex),
+					recordIndex);
+		else
+			writeRecordFromByteIndex(myLogic.getByteIndex(recordIndex), record);
 	}
 
 	public void writeRecordFromByteIndex(long byteIndex, long record) {
@@ -106,7 +123,7 @@ public class RecordRangeCache {
 		Util.debug(DebugFacility.CACHE, "Reading records " + recordIndex + "-"
 				+ (recordIndex + numRecords - 1) + " from database");
 		readBytesFromDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
 	}
 
 	public void readBytesFromDatabase(Database db, DatabaseHandle dh,
@@ -130,15 +147,16 @@ public class RecordRangeCache {
 	public void readNextRecordsFromDatabase(Database db, DatabaseHandle dh,
 			long recordIndex, int numRecords) throws IOException {
 		readNextBytesFromDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
 	}
 
 	public void writeRecordsToDatabase(Database db, DatabaseHandle dh,
 			long recordIndex, int numRecords) throws IOException {
 		assert Util.debug(DebugFacility.CACHE, "Writing records " + recordIndex
 				+ "-" + (recordIndex + numRecords - 1) + " to database");
+		mergePartialGroups(db, recordIndex, numRecords);
 		writeBytesToDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
 	}
 
 	public void writeBytesToDatabase(Database db, DatabaseHandle dh,
@@ -169,12 +187,81 @@ public class RecordRangeCache {
 
 	public boolean containsRecord(long hash) {
 		long place = hash - firstRecordIndex;
-		return place >= 0 && place < numRecords;
+		if (place >= 0 && place < numRecords) {
+			unflushedHits++;
+			return true;
+		} else {
+			misses.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * Adds this cache's hits to the totals (this happens whenever the range
+	 * changes, but should also be called when done with the cache)
+	 */
+	public void flushCounts() {
+		hits.add(unflushedHits);
+		unflushedHits = 0L;
+	}
+
+	/**
+	 * @return The number of containsRecord calls (on any RecordRangeCache)
+	 *         which returned true (hits are only counted once they're
+	 *         flushed)
+	 */
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of containsRecord calls which returned false
+	 */
+	public static long getMisses() {
+		return misses.sum();
 	}
 
 	public void writeNextRecordsToDatabase(Database db, DatabaseHandle dh,
 			long recordIndex, int numRecords) throws IOException {
+		mergePartialGroups(db, recordIndex, numRecords);
 		writeNextBytesToDatabase(db, dh, myLogic.getByteIndex(recordIndex),
-				(int) myLogic.getNumBytes(numRecords));
+				(int) myLogic.getNumBytes(recordIndex, numRecords));
+	}
+
+	/**
+	 * When records are packed into groups, the first and last groups of a
+	 * range may also contain records outside the range. Those records are read
+	 * from the database so that writing the groups back doesn't overwrite
+	 * them.
+	 */
+	private void mergePartialGroups(Database db, long recordIndex,
+			int numRecords) throws IOException {
+		if (!myLogic.isGrouped() || !db.reading || numRecords == 0)
+			return;
+		long dbEnd = db.firstRecordIndex + db.numRecords;
+		long groupStart = recordIndex - myLogic.getGroupOffset(recordIndex);
+		long end = recordIndex + numRecords;
+		long lastGroupStart = end - 1 - myLogic.getGroupOffset(end - 1);
+		long groupEnd = Math.min(dbEnd, lastGroupStart
+				+ myLogic.recordsPerGroup);
+		groupStart = Math.max(groupStart, db.firstRecordIndex);
+		for (long i = groupStart; i < recordIndex; i++)
+			writeRecord(i, readWrittenRecord(db, i));
+		for (long i = end; i < groupEnd; i++)
+			writeRecord(i, readWrittenRecord(db, i));
+	}
+
+	/**
+	 * Reads a record which may not have been written yet (if it lies past the
+	 * current end of the database, 0 is returned instead; whoever writes it
+	 * later merges in this range's records)
+	 */
+	private static long readWrittenRecord(Database db, long recordIndex)
+			throws IOException {
+		try {
+			return db.readRecord(db.getHandle(true), recordIndex);
+		} catch (EOFException e) {
+			return 0L;
+		}
 	}
 }
@@ -0,0 +1,148 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of records keyed by position hash, for records which are
+ * expensive to recompute. Keys and records are kept in primitive arrays. The
+ * table is set-associative: each hash may be stored in any of the ways of one
+ * set, and when the set is full its least recently used entry is evicted
+ * (with one way this is a direct-mapped table). Sets are guarded by a fixed
+ * number of stripe locks so threads looking up different positions rarely
+ * contend.
+ */
+public class SolvedRecordCache {
+	private static final class Stripe {
+		private long clock = 0L;
+	}
+
+	// keys[i] is hash + 1 (0 means empty)
+	private final long[] keys;
+	private final long[] records;
+	private final long[] used;
+	private final int ways;
+	private final int setMask;
+	private final Stripe[] stripes;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+			evictions = new AtomicLong();
+
+	/**
+	 * @param numEntries
+	 *            The maximum number of records to hold (rounded up so the
+	 *            number of sets is a power of 2)
+	 * @param ways
+	 *            The number of entries in each set
+	 * @param numStripes
+	 *            The number of locks the sets are divided between
+	 */
+	public SolvedRecordCache(int numEntries, int ways, int numStripes) {
+		this.ways = Math.max(1, ways);
+		int numSets = 1;
+		while (numSets < (1 << 30) / this.ways
+				&& (long) numSets * this.ways < numEntries)
+			numSets <<= 1;
+		setMask = numSets - 1;
+		keys = new long[numSets * this.ways];
+		records = new long[keys.length];
+		used = new long[keys.length];
+		stripes = new Stripe[Math.max(1, Math.min(numStripes, numSets))];
+		for (int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private int setFor(long hash) {
+		long mixed = hash * 0x9E3779B97F4A7C15L;
+		return (int) (mixed ^ (mixed >>> 32)) & setMask;
+	}
+
+	/**
+	 * @param hash
+	 *            The hash of a position
+	 * @return The cached record for that position or -1 if it isn't cached
+	 */
+	public long get(long hash) {
+		long key = hash + 1;
+		int set = setFor(hash);
+		Stripe stripe = stripes[set % stripes.length];
+		int first = set * ways;
+		synchronized (stripe) {
+			for (int i = first; i < first + ways; i++) {
+				if (keys[i] == key) {
+					used[i] = ++stripe.clock;
+					hits.incrementAndGet();
+					return records[i];
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return -1L;
+	}
+
+	/**
+	 * Adds a record to the cache, evicting the least recently used record in
+	 * its set if the set is full
+	 *
+	 * @param hash
+	 *            The hash of the position
+	 * @param record
+	 *            Its record (which must not be negative)
+	 */
+	public void put(long hash, long record) {
+		long key = hash + 1;
+		int set = setFor(hash);
+		Stripe stripe = stripes[set % stripes.length];
+		int first = set * ways;
+		synchronized (stripe) {
+			int victim = first;
+			for (int i = first; i < first + ways; i++) {
+				if (keys[i] == key || keys[i] == 0) {
+					victim = i;
+					break;
+				} else if (used[i] < used[victim])
+					victim = i;
+			}
+			if (keys[victim] != key && keys[victim] != 0)
+				evictions.incrementAndGet();
+			keys[victim] = key;
+			records[victim] = record;
+			used[victim] = ++stripe.clock;
+		}
+	}
+
+	/**
+	 * @return The maximum number of records this cache holds
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @return The number of lookups which found their record
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of lookups which didn't find their record
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return The number of records which have been pushed out by others
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits(), misses = getMisses();
+		long total = hits + misses;
+		return "SolvedRecordCache: " + hits + " hits, " + misses + " misses, "
+				+ getEvictions() + " evictions"
+				+ (total == 0 ? "" : " (" + hits * 100 / total + "% hit rate)");
+	}
+}
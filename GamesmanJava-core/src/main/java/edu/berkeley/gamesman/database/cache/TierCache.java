@@ -3,10 +3,16 @@ package edu.berkeley.gamesman.database.cache;
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.database.Database;
 import edu.berkeley.gamesman.game.util.TierState;
+import edu.berkeley.gamesman.util.StripedCounter;
 
 public abstract class TierCache {
+	private static final StripedCounter hits = new StripedCounter(),
+			misses = new StripedCounter();
+
 	protected final Database db;
 	protected final long availableMemory;
+	// Hits are added to the shared counter on each miss (or flush)
+	private long unflushedHits = 0L;
 
 	public TierCache(Database db, long availableMemory) {
 		this.db = db;
@@ -15,4 +21,43 @@ public abstract class TierCache {
 
 	public abstract void fetchChildren(TierState position, int numChildren,
 			TierState[] children, int[] hints, Record[] values);
+
+	/**
+	 * Subclasses call this for each child found in the cache
+	 */
+	protected final void countHit() {
+		unflushedHits++;
+	}
+
+	/**
+	 * Subclasses call this for each child which had to be read from the
+	 * database
+	 */
+	protected final void countMiss() {
+		flushCounts();
+		misses.increment();
+	}
+
+	/**
+	 * Adds this cache's hits to the totals (call when done with the cache).
+	 * Subclasses should also flush any RecordRangeCaches they use.
+	 */
+	public void flushCounts() {
+		hits.add(unflushedHits);
+		unflushedHits = 0L;
+	}
+
+	/**
+	 * @return The number of children found in any TierCache
+	 */
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of children any TierCache had to read
+	 */
+	public static long getMisses() {
+		return misses.sum();
+	}
 }
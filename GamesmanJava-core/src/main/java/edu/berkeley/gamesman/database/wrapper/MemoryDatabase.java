@@ -18,7 +18,7 @@ public class MemoryDatabase extends DatabaseWrapper {
 			throws IOException {
 		super(db, config, firstRecord, numRecords, reading, writing);
 		recordCache = new RecordRangeCache(myLogic);
-		long numBytes = myLogic.getNumBytes(numRecords);
+		long numBytes = myLogic.getNumBytes(firstRecord, numRecords);
 		if (numBytes > Integer.MAX_VALUE)
 			throw new ArrayIndexOutOfBoundsException(
 					"MemoryDatabase cannot hold more than 2 GB of records");
@@ -44,9 +44,10 @@ public class MemoryDatabase extends DatabaseWrapper {
 	}
 
 	@Override
-	public long readNextRecord(DatabaseHandle dh) throws EOFException,
-			UnpreparedHandleException {
-		if (dh.numBytes < 0)
+	public long readNextRecord(DatabaseHandle dh) throws IOException {
+		if (myLogic.isGrouped())
+			return super.readNextRecord(dh);
+		else if (dh.numBytes < 0)
 			throw new UnpreparedHandleException(dh);
 		else if (dh.numBytes >= myLogic.recordBytes) {
 			long record = readRecordFromByteIndex(dh, dh.location);
@@ -64,8 +65,10 @@ public class MemoryDatabase extends DatabaseWrapper {
 
 	@Override
 	public void writeNextRecord(DatabaseHandle dh, long record)
-			throws EOFException, UnpreparedHandleException {
-		if (dh.numBytes < 0)
+			throws IOException {
+		if (myLogic.isGrouped())
+			super.writeNextRecord(dh, record);
+		else if (dh.numBytes < 0)
 			throw new UnpreparedHandleException(dh);
 		else if (dh.numBytes >= myLogic.recordBytes) {
 			writeRecordFromByteIndex(dh, dh.location, record);
@@ -0,0 +1,333 @@
+package edu.berkeley.gamesman.game;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.game.util.TierState;
+import edu.berkeley.gamesman.hasher.CanonicalIndex;
+import edu.berkeley.gamesman.util.Pair;
+import edu.berkeley.gamesman.util.TableSnapshot;
+
+/**
+ * Wraps a Symmetric tier game so that only one position out of every set of
+ * symmetric positions is hashed (use gamesman.game = CanonicalTierGame:Game).
+ * The canonical position is the one with the smallest hash in the wrapped
+ * game. Each tier keeps a CanonicalIndex of its canonical hashes and the hash
+ * of a position is its rank in that index, so a database only holds records
+ * for canonical positions. Children are canonicalized as they're generated.
+ * Images of positions are hashed by a second instance of the wrapped game so
+ * that the wrapped game itself never leaves the canonical position.<br />
+ * The indices are built when the game is constructed by visiting every
+ * position of the wrapped game and are shared between configurations with the
+ * same properties. Building them takes about as long as solving the wrapped
+ * game without symmetries, so they're also saved in a TableSnapshot (at
+ * gamesman.canonical.snapshot, or else the database uri followed by
+ * ".canonical") and later configurations map that file instead. The wrapped
+ * game's cache can't be used (its child hashes aren't canonical), so a
+ * CacheTierSolver uses a PrefetchCache over the wrapped game's cache places
+ * instead.
+ */
+public final class CanonicalTierGame extends TierGame {
+	private static final Map<Properties, CanonicalIndex[]> sharedIndices =
+			new WeakHashMap<Properties, CanonicalIndex[]>();
+
+	private final TierGame myGame;
+	private final TierGame imageGame;
+	private final int[][] symmetries;
+	private final CanonicalIndex[] indices;
+	private final TierState innerState, imageState, innerRecordState;
+
+	public CanonicalTierGame(Game<?> game) {
+		super(game.conf);
+		myGame = (TierGame) game;
+		try {
+			imageGame = (TierGame) game.getClass()
+					.getConstructor(Configuration.class).newInstance(conf);
+		} catch (InstantiationException e) {
+			throw new Error(e);
+		} catch (IllegalAccessException e) {
+			throw new Error(e);
+		} catch (InvocationTargetException e) {
+			throw new Error(e.getCause());
+		} catch (NoSuchMethodException e) {
+			throw new Error(e);
+		}
+		symmetries = ((Symmetric) game).getSymmetryFinder().getPermutations();
+		innerState = myGame.newState();
+		imageState = myGame.newState();
+		innerRecordState = myGame.newState();
+		synchronized (sharedIndices) {
+			CanonicalIndex[] shared = sharedIndices.get(conf.props);
+			if (shared == null) {
+				shared = loadIndices();
+				sharedIndices.put(conf.props, shared);
+			}
+			indices = shared;
+		}
+	}
+
+	private CanonicalIndex[] loadIndices() {
+		String defaultFile = conf.getProperty("gamesman.db.uri", null);
+		if (defaultFile != null)
+			defaultFile += ".canonical";
+		String fileName = conf.getProperty("gamesman.canonical.snapshot",
+				defaultFile);
+		if (fileName == null)
+			return buildIndices();
+		File file = new File(fileName);
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append(myGame.getClass().getName()).append(' ')
+				.append(myGame.describe()).append(' ')
+				.append(symmetries.length);
+		int numTiers = myGame.numberOfTiers();
+		for (int tier = 0; tier < numTiers; tier++)
+			fingerprint.append(' ').append(myGame.numHashesForTier(tier));
+		LongBuffer[] tables;
+		try {
+			tables = TableSnapshot.map(file, fingerprint.toString());
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		if (tables != null && tables.length == 2 * numTiers) {
+			CanonicalIndex[] indices = new CanonicalIndex[numTiers];
+			for (int tier = 0; tier < numTiers; tier++)
+				indices[tier] = new CanonicalIndex(
+						myGame.numHashesForTier(tier), tables[2 * tier],
+						tables[2 * tier + 1]);
+			return indices;
+		}
+		CanonicalIndex[] indices = buildIndices();
+		tables = new LongBuffer[2 * numTiers];
+		for (int tier = 0; tier < numTiers; tier++) {
+			tables[2 * tier] = indices[tier].getBits();
+			tables[2 * tier + 1] = indices[tier].getBlockRanks();
+		}
+		try {
+			TableSnapshot.write(file, fingerprint.toString(), tables);
+		} catch (IOException e) {
+			// The snapshot only saves time, so the game works without it
+			System.err.println("Could not write " + file + ": " + e);
+		}
+		return indices;
+	}
+
+	private CanonicalIndex[] buildIndices() {
+		CanonicalIndex[] indices = new CanonicalIndex[myGame.numberOfTiers()];
+		for (int tier = 0; tier < indices.length; tier++) {
+			long numHashes = myGame.numHashesForTier(tier);
+			indices[tier] = new CanonicalIndex(numHashes);
+			if (numHashes > 0) {
+				myGame.setState(newState(tier, 0L));
+				for (long hash = 0; hash < numHashes; hash++) {
+					if (hash > 0)
+						myGame.nextHashInTier();
+					if (smallestImage(myGame) == hash)
+						indices[tier].add(hash);
+				}
+			}
+			indices[tier].finish();
+		}
+		return indices;
+	}
+
+	/**
+	 * Finds the smallest hash of any image of a position of the wrapped game
+	 * (which may be imageGame itself)
+	 */
+	private long smallestImage(TierGame game) {
+		game.getState(imageState);
+		long smallest = imageState.hash;
+		String board = game.stateToString();
+		char[] pieces = board.toCharArray();
+		char[] image = new char[pieces.length];
+		for (int s = 1; s < symmetries.length; s++) {
+			int[] symmetry = symmetries[s];
+			System.arraycopy(pieces, 0, image, 0, pieces.length);
+			for (int place = 0; place < symmetry.length; place++)
+				image[symmetry[place]] = pieces[place];
+			String imageBoard = new String(image);
+			if (imageBoard.equals(board))
+				continue;
+			imageGame.setFromString(imageBoard);
+			imageGame.getState(imageState);
+			smallest = Math.min(smallest, imageState.hash);
+		}
+		return smallest;
+	}
+
+	/**
+	 * Moves the wrapped game to the canonical image of its position
+	 */
+	private void canonicalize() {
+		myGame.getState(innerState);
+		long hash = smallestImage(myGame);
+		if (hash != innerState.hash) {
+			innerState.hash = hash;
+			myGame.setState(innerState);
+		}
+	}
+
+	/**
+	 * Replaces a state of the wrapped game with the canonical state
+	 */
+	private void toCanonicalState(TierState state) {
+		imageGame.setState(state);
+		state.hash = indices[state.tier].rank(smallestImage(imageGame));
+	}
+
+	private void toInnerState(TierState state, TierState inner) {
+		inner.tier = state.tier;
+		inner.hash = indices[state.tier].select(state.hash);
+	}
+
+	@Override
+	public void setState(TierState pos) {
+		toInnerState(pos, innerState);
+		myGame.setState(innerState);
+	}
+
+	@Override
+	public Value primitiveValue() {
+		return myGame.primitiveValue();
+	}
+
+	@Override
+	public Collection<Pair<String, TierState>> validMoves() {
+		Collection<Pair<String, TierState>> moves = myGame.validMoves();
+		ArrayList<Pair<String, TierState>> canonicalMoves =
+				new ArrayList<Pair<String, TierState>>(moves.size());
+		for (Pair<String, TierState> move : moves) {
+			TierState child = move.cdr.clone();
+			toCanonicalState(child);
+			canonicalMoves.add(new Pair<String, TierState>(move.car, child));
+		}
+		return canonicalMoves;
+	}
+
+	@Override
+	public int getTier() {
+		return myGame.getTier();
+	}
+
+	@Override
+	public String stateToString() {
+		return myGame.stateToString();
+	}
+
+	@Override
+	public void setFromString(String pos) {
+		myGame.setFromString(pos);
+		canonicalize();
+	}
+
+	@Override
+	public void getState(TierState state) {
+		myGame.getState(state);
+		state.hash = indices[state.tier].rank(state.hash);
+	}
+
+	@Override
+	public long numHashesForTier(int tier) {
+		return indices[tier].numCanonical();
+	}
+
+	@Override
+	public String displayState() {
+		return myGame.displayState();
+	}
+
+	@Override
+	public void setStartingPosition(int n) {
+		myGame.setStartingPosition(n);
+		canonicalize();
+	}
+
+	@Override
+	public int numStartingPositions() {
+		return myGame.numStartingPositions();
+	}
+
+	@Override
+	public boolean hasNextHashInTier() {
+		myGame.getState(innerState);
+		CanonicalIndex index = indices[innerState.tier];
+		return index.rank(innerState.hash) < index.numCanonical() - 1;
+	}
+
+	@Override
+	public void nextHashInTier() {
+		CanonicalIndex index = indices[myGame.getTier()];
+		do {
+			myGame.nextHashInTier();
+			myGame.getState(innerState);
+		} while (!index.contains(innerState.hash));
+	}
+
+	@Override
+	public int numberOfTiers() {
+		return myGame.numberOfTiers();
+	}
+
+	@Override
+	public int maxChildren() {
+		return myGame.maxChildren();
+	}
+
+	@Override
+	public int validMoves(TierState[] moves) {
+		int numChildren = myGame.validMoves(moves);
+		for (int i = 0; i < numChildren; i++)
+			toCanonicalState(moves[i]);
+		return numChildren;
+	}
+
+	@Override
+	public int validMoves(TierState[] children, int[] cachePlaces) {
+		int numChildren = myGame.validMoves(children, cachePlaces);
+		for (int i = 0; i < numChildren; i++)
+			toCanonicalState(children[i]);
+		return numChildren;
+	}
+
+	@Override
+	public int numCachePlaces() {
+		return myGame.numCachePlaces();
+	}
+
+	@Override
+	public String describe() {
+		return myGame.describe();
+	}
+
+	@Override
+	public long recordStates() {
+		return myGame.recordStates();
+	}
+
+	@Override
+	public void longToRecord(TierState recordState, long record, Record toStore) {
+		toInnerState(recordState, innerRecordState);
+		myGame.longToRecord(innerRecordState, record, toStore);
+	}
+
+	@Override
+	public long recordToLong(TierState recordState, Record fromRecord) {
+		toInnerState(recordState, innerRecordState);
+		return myGame.recordToLong(innerRecordState, fromRecord);
+	}
+
+	@Override
+	public Value strictPrimitiveValue() {
+		return myGame.strictPrimitiveValue();
+	}
+}
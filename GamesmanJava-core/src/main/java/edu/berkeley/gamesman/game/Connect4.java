@@ -1,6 +1,8 @@
 package edu.berkeley.gamesman.game;
 
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 import edu.berkeley.gamesman.core.Configuration;
@@ -11,6 +13,8 @@ import edu.berkeley.gamesman.database.cache.C4Cache;
 import edu.berkeley.gamesman.game.util.BitSetBoard;
 import edu.berkeley.gamesman.game.util.PieceRearranger;
 import edu.berkeley.gamesman.game.util.TierState;
+import edu.berkeley.gamesman.hasher.symmetry.RectangleSymmetryFinder;
+import edu.berkeley.gamesman.hasher.symmetry.SymmetryFinder;
 import edu.berkeley.gamesman.util.ExpCoefs;
 import edu.berkeley.gamesman.util.Pair;
 
@@ -19,7 +23,7 @@ import edu.berkeley.gamesman.util.Pair;
  * 
  * @author DNSpies
  */
-public final class Connect4 extends TierGame {
+public final class Connect4 extends TierGame implements Symmetric {
 	private final int[][] indices;
 
 	private final int[] colHeights;
@@ -78,6 +82,9 @@ public final class Connect4 extends TierGame {
 			for (int col = 0; col < gameWidth; col++)
 				indices[row][col] = -1;
 		gameSize = gameWidth * gameHeight;
+		if (countHashes(gameWidth, gameHeight).bitLength() >= Long.SIZE)
+			throw new Error(gameWidth + "x" + gameHeight
+					+ " board has too many positions to hash in a long");
 		pieces = new ArrayList<Place>(gameSize);
 		moveArrangement = new long[gameWidth];
 		colHeights = new int[gameWidth];
@@ -85,13 +92,43 @@ public final class Connect4 extends TierGame {
 		ec = new ExpCoefs(gameHeight, gameWidth + 1);
 		multiplier = new long[gameSize + 1];
 		multiplier[0] = 1;
+		// C(i, i/2), dividing first where the quotient is whole so the
+		// product can't overflow when the result fits
 		for (int i = 1; i <= gameSize; i++)
-			multiplier[i] = multiplier[i - 1] * i / ((i + 1) / 2);
+			multiplier[i] = i % 2 == 0 ? multiplier[i - 1] * 2
+					: multiplier[i - 1] / ((i + 1) / 2) * i;
 		children = new long[gameWidth];
 		openColumn = new int[gameWidth];
 		groupSizes = new int[gameWidth];
 	}
 
+	/**
+	 * @return The exact number of hashes for a board of the given size: for
+	 *         each number of pieces, the ways to fill the columns to that many
+	 *         pieces times the ways to split them between the players
+	 */
+	private static BigInteger countHashes(int width, int height) {
+		// fills[n] is the number of ways the columns so far hold n pieces
+		BigInteger[] fills = { BigInteger.ONE };
+		for (int col = 0; col < width; col++) {
+			BigInteger[] nextFills = new BigInteger[fills.length + height];
+			Arrays.fill(nextFills, BigInteger.ZERO);
+			for (int n = 0; n < fills.length; n++)
+				for (int h = 0; h <= height; h++)
+					nextFills[n + h] = nextFills[n + h].add(fills[n]);
+			fills = nextFills;
+		}
+		BigInteger total = BigInteger.ZERO;
+		BigInteger splits = BigInteger.ONE;
+		for (int n = 0; n < fills.length; n++) {
+			if (n > 0)
+				splits = splits.multiply(BigInteger.valueOf(n)).divide(
+						BigInteger.valueOf((n + 1) / 2));
+			total = total.add(fills[n].multiply(splits));
+		}
+		return total;
+	}
+
 	@Override
 	public String displayState() {
 		String s = stateToString();
@@ -424,6 +461,11 @@ public final class Connect4 extends TierGame {
 		return lenChildren;
 	}
 
+	@Override
+	public int numCachePlaces() {
+		return gameWidth;
+	}
+
 	/**
 	 * @param moves
 	 *            Returns the value of the last time of move was possible in
@@ -609,9 +651,36 @@ public final class Connect4 extends TierGame {
 		}
 	}
 
+	/**
+	 * Gravity rules out every symmetry but the left-right mirror
+	 */
+	@Override
+	public SymmetryFinder getSymmetryFinder() {
+		return new RectangleSymmetryFinder(gameHeight, gameWidth);
+	}
+
 	@Override
 	public C4Cache getCache(Database db, long availableMem) {
 		return new C4Cache(this, db, availableMem);
 
 	}
+
+	/**
+	 * The children in each column increase with the position's hash, so the
+	 * last moves of the last position in the range bound all of its children
+	 */
+	@Override
+	public long childHashLimit(int tier, long firstHash, long numHashes) {
+		if (numHashes == 0 || tier >= gameSize)
+			return 0L;
+		setState(newState(tier, firstHash + numHashes - 1));
+		TierState[] lastChildren = newStateArray(gameWidth);
+		lastMoves(lastChildren);
+		long limit = 0L;
+		for (TierState child : lastChildren) {
+			if (child.tier == tier + 1)
+				limit = Math.max(limit, child.hash + 1);
+		}
+		return limit;
+	}
 }
\ No newline at end of file
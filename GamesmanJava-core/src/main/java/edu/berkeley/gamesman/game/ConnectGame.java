@@ -193,6 +193,11 @@ public abstract class ConnectGame extends TierGame {
 		return validMoves(children, null);
 	}
 
+	@Override
+	public final int numCachePlaces() {
+		return getBoardSize();
+	}
+
 	@Override
 	public final long recordStates() {
 		if (conf.hasRemoteness)
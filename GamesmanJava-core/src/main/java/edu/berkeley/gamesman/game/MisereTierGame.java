@@ -136,4 +136,9 @@ public final class MisereTierGame extends TierGame {
 	public int validMoves(TierState[] children, int[] cachePlaces) {
 		return myGame.validMoves(children, cachePlaces);
 	}
+
+	@Override
+	public int numCachePlaces() {
+		return myGame.numCachePlaces();
+	}
 }
@@ -391,6 +391,11 @@ public class Quarto extends TierGame {
 		return numMoves;
 	}
 
+	@Override
+	public int numCachePlaces() {
+		return 256;
+	}
+
 	/**
 	 * @param qs
 	 *            A StrictQuarto state
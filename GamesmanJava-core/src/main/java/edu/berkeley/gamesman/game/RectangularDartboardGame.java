@@ -10,10 +10,14 @@ import edu.berkeley.gamesman.database.Database;
 import edu.berkeley.gamesman.database.cache.DartboardCache;
 import edu.berkeley.gamesman.game.util.TierState;
 import edu.berkeley.gamesman.hasher.DartboardHasher;
+import edu.berkeley.gamesman.hasher.symmetry.RectangleSymmetryFinder;
+import edu.berkeley.gamesman.hasher.symmetry.SquareSymmetryFinder;
+import edu.berkeley.gamesman.hasher.symmetry.SymmetryFinder;
 import edu.berkeley.gamesman.util.Pair;
 import edu.berkeley.gamesman.util.Util;
 
-public abstract class RectangularDartboardGame extends TierGame {
+public abstract class RectangularDartboardGame extends TierGame implements
+		Symmetric {
 	protected final int gameWidth, gameHeight, gameSize;
 	protected final DartboardHasher myHasher;
 	private DartboardCache myCache;
@@ -178,6 +182,11 @@ public abstract class RectangularDartboardGame extends TierGame {
 		return validMoves(moves, null);
 	}
 
+	@Override
+	public int numCachePlaces() {
+		return gameSize;
+	}
+
 	@Override
 	public long recordStates() {
 		if (conf.hasRemoteness) {
@@ -288,6 +297,15 @@ public abstract class RectangularDartboardGame extends TierGame {
 		return myCache;
 	}
 
+	@Override
+	public SymmetryFinder getSymmetryFinder() {
+		if (gameWidth == gameHeight)
+			return new SquareSymmetryFinder(gameWidth);
+		else
+			return new RectangleSymmetryFinder(gameHeight, gameWidth, false,
+					true, true);
+	}
+
 	@Override
 	public String toString() {
 		return displayState();
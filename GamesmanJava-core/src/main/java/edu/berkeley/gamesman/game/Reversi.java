@@ -26,6 +26,7 @@ public class Reversi extends TierGame {
 	private final static int BLACK = 1;
 	private final static int WHITE = 0;
 	private final TierState[] children;
+	private final int[] childPlaces;
 	private int numChildren;
 	private boolean isChildrenValid;
 	private final long[][][] offsetTable;
@@ -126,6 +127,7 @@ public class Reversi extends TierGame {
 		board[height / 2][width / 2].setPiece('X');
 		isChildrenValid = false;
 		children = newStateArray(maxChildren());
+		childPlaces = new int[maxChildren()];
 		stringMoves = new String[maxChildren()]; // only for testing.
 		oldPosition = new char[boardSize];
 		tempPosition = new char[boardSize];
@@ -329,16 +331,28 @@ public class Reversi extends TierGame {
 
 	@Override
 	public int validMoves(TierState[] moves) {
+		return validMoves(moves, null);
+	}
+
+	@Override
+	public int validMoves(TierState[] moves, int[] cachePlaces) {
 		if (!(isChildrenValid))
 			getChildren(false);
 		for (int i = 0; i < numChildren; i++) {
 			moves[i].set(children[i]);
+			if (cachePlaces != null)
+				cachePlaces[i] = childPlaces[i];
 		}
 		if (numChildren == 0)
 			throw new Error("No children at this position");
 		return numChildren;
 	}
 
+	@Override
+	public int numCachePlaces() {
+		return boardSize;
+	}
+
 	private void getChildren(boolean setStringMoves) {
 		dbh.getCharArray(oldPosition);
 		int counter = 0;
@@ -371,6 +385,7 @@ public class Reversi extends TierGame {
 							children[counter].tier = nextTier;
 							children[counter].hash = offsetTable[nextTier][opposite(turn)][newWhitePieces]
 									+ dbh.setNumsAndHash(tempPosition);
+							childPlaces[counter] = place.boardNum;
 							counter++;
 							dbh.setNumsAndHash(oldPosition);
 							break;
@@ -0,0 +1,17 @@
+package edu.berkeley.gamesman.game;
+
+import edu.berkeley.gamesman.hasher.symmetry.SymmetryFinder;
+
+/**
+ * A game played on a board whose symmetries map positions to equivalent
+ * positions. The first height * width characters of stateToString must be the
+ * board with the piece in a given row and column at row * width + column, and
+ * setFromString must accept any such string with the board permuted by one of
+ * the symmetries.
+ */
+public interface Symmetric {
+	/**
+	 * @return A symmetry finder for the board
+	 */
+	public SymmetryFinder getSymmetryFinder();
+}
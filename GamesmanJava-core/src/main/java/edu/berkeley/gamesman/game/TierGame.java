@@ -7,6 +7,7 @@ import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.core.Value;
 import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.cache.PrefetchCache;
 import edu.berkeley.gamesman.database.cache.TierCache;
 import edu.berkeley.gamesman.game.util.TierState;
 import edu.berkeley.gamesman.hasher.TierHasher;
@@ -281,8 +282,9 @@ public abstract class TierGame extends Game<TierState> {
 	}
 
 	/**
-	 * If over-ridden, creates a cache for a particular game and database given
-	 * a certain amount of memory
+	 * Creates a cache for a particular game and database given a certain
+	 * amount of memory. Unless over-ridden, this is a PrefetchCache for games
+	 * which implement validMoves(children, cachePlaces) and numCachePlaces.
 	 * 
 	 * @param db
 	 *            The database to cache
@@ -290,11 +292,32 @@ public abstract class TierGame extends Game<TierState> {
 	 *            The amount of memory available to use
 	 * @return The cache for the tier
 	 * @throws UnsupportedOperationException
-	 *             If not over-ridden
+	 *             If not over-ridden and the game has no cache places
 	 */
 	public TierCache getCache(Database db, long availableMem)
 			throws UnsupportedOperationException {
-		throw new UnsupportedOperationException();
+		if (numCachePlaces() == 0)
+			throw new UnsupportedOperationException();
+		return new PrefetchCache(this, db, availableMem);
+	}
+
+	/**
+	 * Bounds the hashes of the children of a range of positions. The tier
+	 * solver uses this to start solving a range as soon as the part of the
+	 * next tier it depends on has been written. By default the entire next
+	 * tier is required. This method may change the current state.
+	 *
+	 * @param tier
+	 *            The tier containing the range
+	 * @param firstHash
+	 *            The offset into the tier of the first position in the range
+	 * @param numHashes
+	 *            The number of positions in the range
+	 * @return One more than the largest offset into tier + 1 of any child of a
+	 *         position in the range
+	 */
+	public long childHashLimit(int tier, long firstHash, long numHashes) {
+		return numHashesForTier(tier + 1);
 	}
 
 	/**
@@ -336,7 +359,9 @@ public abstract class TierGame extends Game<TierState> {
 
 	/**
 	 * An implementation of validMoves in which the game can tell the cache
-	 * where to find each child using the cachePlaces array
+	 * where to find each child using the cachePlaces array. Caches read fewer
+	 * records when the hash of the child in each place never decreases as the
+	 * hash of the position increases.
 	 * 
 	 * @param children
 	 *            The array to store the states of the children
@@ -349,4 +374,12 @@ public abstract class TierGame extends Game<TierState> {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * @return The number of cache places validMoves(children, cachePlaces)
+	 *         may put children in, or 0 if it isn't implemented
+	 */
+	public int numCachePlaces() {
+		return 0;
+	}
+
 }
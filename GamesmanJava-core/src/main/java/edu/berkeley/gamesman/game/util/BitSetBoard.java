@@ -1,11 +1,19 @@
 package edu.berkeley.gamesman.game.util;
 
 /**
+ * A bitboard with one bit per place for each player. Places are numbered
+ * column by column with an extra empty row above each column so that lines
+ * can be found by shifting without wrapping from one column to the next. A
+ * board of more than 64 bits is split across several longs and shifted across
+ * the word boundaries.
+ * 
  * @author dnspies
  */
 public class BitSetBoard {
 
-	private long xPlayer = 0L, oPlayer = 0L;
+	private final long[] xPlayer, oPlayer;
+
+	private final long[] line;
 
 	private final int height, width;
 
@@ -18,9 +26,10 @@ public class BitSetBoard {
 	public BitSetBoard(int gameHeight, int gameWidth) {
 		height = gameHeight;
 		width = gameWidth;
-		if ((height + 1) * width > 64)
-			throw new IllegalArgumentException(
-					"Only works when (height+1)*width<=64");
+		int words = ((height + 1) * width + 63) >>> 6;
+		xPlayer = new long[words];
+		oPlayer = new long[words];
+		line = new long[words];
 	}
 
 	private int getBit(int row, int col) {
@@ -42,13 +51,15 @@ public class BitSetBoard {
 
 	public void flipPiece(int bit) {
 		assert oneHas(bit);
+		int word = bit >>> 6;
 		long xorWith = 1L << bit;
-		xPlayer ^= xorWith;
-		oPlayer ^= xorWith;
+		xPlayer[word] ^= xorWith;
+		oPlayer[word] ^= xorWith;
 	}
 
 	private boolean oneHas(int bit) {
-		return ((xPlayer ^ oPlayer) & (1L << bit)) != 0;
+		int word = bit >>> 6;
+		return ((xPlayer[word] ^ oPlayer[word]) & (1L << bit)) != 0;
 	}
 
 	/**
@@ -66,9 +77,10 @@ public class BitSetBoard {
 
 	public void removePiece(int bit) {
 		assert oneHas(bit);
+		int word = bit >>> 6;
 		long andWith = ~(1L << bit);
-		xPlayer &= andWith;
-		oPlayer &= andWith;
+		xPlayer[word] &= andWith;
+		oPlayer[word] &= andWith;
 	}
 
 	/**
@@ -87,18 +99,20 @@ public class BitSetBoard {
 	}
 
 	private boolean noneHas(int bit) {
-		return ((xPlayer | oPlayer) & (1L << bit)) == 0;
+		int word = bit >>> 6;
+		return ((xPlayer[word] | oPlayer[word]) & (1L << bit)) == 0;
 	}
 
 	public void addPiece(int bit, char color) throws Error {
 		assert noneHas(bit);
+		int word = bit >>> 6;
 		long shamt = 1L << bit;
 		switch (color) {
 		case 'X':
-			xPlayer |= shamt;
+			xPlayer[word] |= shamt;
 			break;
 		case 'O':
-			oPlayer |= shamt;
+			oPlayer[word] |= shamt;
 			break;
 		default:
 			throw new Error("Bad piece");
@@ -109,9 +123,11 @@ public class BitSetBoard {
 	 * Switches X with O
 	 */
 	public void switchColors() {
-		long tmp = xPlayer;
-		xPlayer = oPlayer;
-		oPlayer = tmp;
+		for (int word = 0; word < xPlayer.length; word++) {
+			long tmp = xPlayer[word];
+			xPlayer[word] = oPlayer[word];
+			oPlayer[word] = tmp;
+		}
 	}
 
 	/**
@@ -123,10 +139,19 @@ public class BitSetBoard {
 	 *         the board. 0 for false, 1 for true.
 	 */
 	public boolean xInALine(int x, char color) {
-		long board = (color == 'X' ? xPlayer : oPlayer);
-		return checkDirection(x, 1, board) || checkDirection(x, height, board)
-				|| checkDirection(x, height + 1, board)
-				|| checkDirection(x, height + 2, board);
+		long[] words = (color == 'X' ? xPlayer : oPlayer);
+		if (words.length == 1) {
+			long board = words[0];
+			return checkDirection(x, 1, board)
+					|| checkDirection(x, height, board)
+					|| checkDirection(x, height + 1, board)
+					|| checkDirection(x, height + 2, board);
+		} else {
+			return checkDirection(x, 1, words)
+					|| checkDirection(x, height, words)
+					|| checkDirection(x, height + 1, words)
+					|| checkDirection(x, height + 2, words);
+		}
 	}
 
 	private boolean checkDirection(int x, int direction, long board) {
@@ -141,12 +166,46 @@ public class BitSetBoard {
 		return board != 0;
 	}
 
+	private boolean checkDirection(int x, int direction, long[] board) {
+		System.arraycopy(board, 0, line, 0, line.length);
+		int dist = direction * x;
+		int checked = direction;
+		while (checked << 1 < dist) {
+			andShifted(checked);
+			checked <<= 1;
+		}
+		andShifted(dist - checked);
+		for (long word : line) {
+			if (word != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * line &= line >>> shift across all the words of line. Each word only
+	 * depends on itself and the words above it, so the words are updated in
+	 * place from the bottom up.
+	 */
+	private void andShifted(int shift) {
+		int wordShift = shift >>> 6, bitShift = shift & 63;
+		for (int word = 0; word < line.length; word++) {
+			int from = word + wordShift;
+			long shifted = from < line.length ? line[from] >>> bitShift : 0L;
+			if (bitShift != 0 && from + 1 < line.length)
+				shifted |= line[from + 1] << (64 - bitShift);
+			line[word] &= shifted;
+		}
+	}
+
 	/**
 	 * Clears the board
 	 */
 	public void clear() {
-		xPlayer = 0L;
-		oPlayer = 0L;
+		for (int word = 0; word < xPlayer.length; word++) {
+			xPlayer[word] = 0L;
+			oPlayer[word] = 0L;
+		}
 	}
 
 	public String toString() {
@@ -154,9 +213,10 @@ public class BitSetBoard {
 		for (int row = height - 1; row >= 0; row--) {
 			str.append('|');
 			for (int col = 0; col < width; col++) {
-				if ((xPlayer & (1L << getBit(row, col))) > 0L)
+				int bit = getBit(row, col);
+				if ((xPlayer[bit >>> 6] & (1L << bit)) != 0L)
 					str.append('X');
-				else if ((oPlayer & (1L << getBit(row, col))) > 0L)
+				else if ((oPlayer[bit >>> 6] & (1L << bit)) != 0L)
 					str.append('O');
 				else
 					str.append(' ');
@@ -168,20 +228,21 @@ public class BitSetBoard {
 	}
 
 	public void setPiece(int bit, char c) throws Error {
+		int word = bit >>> 6;
 		long orWith = 1L << bit;
 		long andWith = ~orWith;
 		switch (c) {
 		case ' ':
-			xPlayer &= andWith;
-			oPlayer &= andWith;
+			xPlayer[word] &= andWith;
+			oPlayer[word] &= andWith;
 			break;
 		case 'X':
-			oPlayer &= andWith;
-			xPlayer |= orWith;
+			oPlayer[word] &= andWith;
+			xPlayer[word] |= orWith;
 			break;
 		case 'O':
-			xPlayer &= andWith;
-			oPlayer |= orWith;
+			xPlayer[word] &= andWith;
+			oPlayer[word] |= orWith;
 			break;
 		default:
 			throw new Error("Bad piece");
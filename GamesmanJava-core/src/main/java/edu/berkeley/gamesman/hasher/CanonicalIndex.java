@@ -0,0 +1,155 @@
+package edu.berkeley.gamesman.hasher;
+
+import java.nio.LongBuffer;
+
+/**
+ * Numbers the canonical hashes among a range of hashes 0 through numHashes - 1
+ * consecutively. One bit is kept per hash, plus the number of canonical hashes
+ * preceding every block of eight words, so the rank of a canonical hash (and
+ * the canonical hash with a given rank) is found by counting the bits of at
+ * most eight words. The two tables may be saved and later read back from a
+ * TableSnapshot.
+ */
+public final class CanonicalIndex {
+	private static final int BLOCK_BITS = 3;
+
+	private final long numHashes;
+	private final LongBuffer bits;
+	private final LongBuffer blockRanks;
+	private long numCanonical = 0L;
+	private long lastHash = -1L;
+
+	/**
+	 * @param numHashes
+	 *            The number of hashes in the range
+	 */
+	public CanonicalIndex(long numHashes) {
+		this.numHashes = numHashes;
+		int numWords = (int) ((numHashes + 63) >>> 6);
+		bits = LongBuffer.allocate(numWords);
+		blockRanks = LongBuffer.allocate(((numWords + (1 << BLOCK_BITS) - 1)
+				>>> BLOCK_BITS) + 1);
+	}
+
+	/**
+	 * Reads a finished index back from the tables returned by getBits and
+	 * getBlockRanks
+	 *
+	 * @param numHashes
+	 *            The number of hashes in the range
+	 * @param bits
+	 *            The bits of the index
+	 * @param blockRanks
+	 *            The ranks at the start of each block
+	 */
+	public CanonicalIndex(long numHashes, LongBuffer bits,
+			LongBuffer blockRanks) {
+		this.numHashes = numHashes;
+		this.bits = bits;
+		this.blockRanks = blockRanks;
+		lastHash = numHashes;
+		numCanonical = blockRanks.get(blockRanks.limit() - 1);
+	}
+
+	/**
+	 * Marks a hash as canonical. Hashes must be added in increasing order.
+	 *
+	 * @param hash
+	 *            The hash
+	 */
+	public void add(long hash) {
+		if (hash <= lastHash || hash >= numHashes)
+			throw new IllegalArgumentException("Hash " + hash
+					+ " is out of order");
+		int block = (int) (hash >>> (6 + BLOCK_BITS));
+		int lastBlock = lastHash < 0 ? 0
+				: (int) (lastHash >>> (6 + BLOCK_BITS));
+		for (int b = lastBlock + 1; b <= block; b++)
+			blockRanks.put(b, numCanonical);
+		int word = (int) (hash >>> 6);
+		bits.put(word, bits.get(word) | (1L << hash));
+		numCanonical++;
+		lastHash = hash;
+	}
+
+	/**
+	 * Must be called once every canonical hash has been added
+	 */
+	public void finish() {
+		int lastBlock = lastHash < 0 ? 0
+				: (int) (lastHash >>> (6 + BLOCK_BITS));
+		for (int b = lastBlock + 1; b < blockRanks.limit(); b++)
+			blockRanks.put(b, numCanonical);
+	}
+
+	/**
+	 * @return The number of canonical hashes
+	 */
+	public long numCanonical() {
+		return numCanonical;
+	}
+
+	/**
+	 * @return The bits of the index (one per hash)
+	 */
+	public LongBuffer getBits() {
+		return bits.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return The number of canonical hashes before each block of eight words
+	 *         (and at the end)
+	 */
+	public LongBuffer getBlockRanks() {
+		return blockRanks.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @param hash
+	 *            A hash in the range
+	 * @return Whether it is canonical
+	 */
+	public boolean contains(long hash) {
+		return (bits.get((int) (hash >>> 6)) & (1L << hash)) != 0;
+	}
+
+	/**
+	 * @param hash
+	 *            A hash in the range
+	 * @return The number of canonical hashes less than hash
+	 */
+	public long rank(long hash) {
+		int word = (int) (hash >>> 6);
+		long rank = blockRanks.get(word >>> BLOCK_BITS);
+		for (int w = word >>> BLOCK_BITS << BLOCK_BITS; w < word; w++)
+			rank += Long.bitCount(bits.get(w));
+		return rank + Long.bitCount(bits.get(word) & ((1L << hash) - 1));
+	}
+
+	/**
+	 * @param rank
+	 *            A number less than numCanonical()
+	 * @return The canonical hash with that rank
+	 */
+	public long select(long rank) {
+		int low = 0, high = blockRanks.limit() - 2;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (blockRanks.get(mid) <= rank)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		rank -= blockRanks.get(low);
+		int word = low << BLOCK_BITS;
+		int count = Long.bitCount(bits.get(word));
+		while (rank >= count) {
+			rank -= count;
+			count = Long.bitCount(bits.get(++word));
+		}
+		long wordBits = bits.get(word);
+		for (; rank > 0; rank--)
+			wordBits &= wordBits - 1;
+		return ((long) word << 6) + Long.numberOfTrailingZeros(wordBits);
+	}
+}
@@ -1,15 +1,12 @@
 package edu.berkeley.gamesman.hasher.invhasher;
 
-import java.util.HashMap;
-
 import edu.berkeley.gamesman.hasher.genhasher.GenHasher;
 import edu.berkeley.gamesman.hasher.genhasher.GenState;
-import edu.berkeley.gamesman.util.LongSet;
+import edu.berkeley.gamesman.util.LongLongMap;
 
 public abstract class InvariantHasher<S extends GenState> extends GenHasher<S> {
-	private HashMap<LongSet, Long>[] invariantCounts;
+	private final LongLongMap[] invariantCounts;
 	private final int countingPlace;
-	private final LongSet tempVal = new LongSet();
 
 	/**
 	 * @param numElements
@@ -22,12 +19,25 @@ public abstract class InvariantHasher<S extends GenState> extends GenHasher<S> {
 
 	public InvariantHasher(int[] digitBase, int countingPlace) {
 		super(digitBase);
-		invariantCounts = new HashMap[numElements + 1];
+		invariantCounts = new LongLongMap[numElements + 1];
 		for (int i = 0; i <= numElements; i++)
-			invariantCounts[i] = new HashMap<LongSet, Long>();
+			invariantCounts[i] = new LongLongMap();
 		this.countingPlace = countingPlace;
 	}
 
+	/**
+	 * Sizes the invariant table for the prefixes starting at a given place
+	 * ahead of time so it needn't grow while hashing
+	 * 
+	 * @param place
+	 *            The start of the prefixes
+	 * @param expectedInvariants
+	 *            The number of distinct invariants expected there
+	 */
+	public void presizeInvariants(int place, int expectedInvariants) {
+		invariantCounts[place].ensureCapacity(expectedInvariants);
+	}
+
 	@Override
 	protected long innerCountCompletions(S state) {
 		return fillCompletions(state, true);
@@ -38,9 +48,8 @@ public abstract class InvariantHasher<S extends GenState> extends GenHasher<S> {
 		long inv = getInvariant(state);
 		if (inv < 0)
 			return 0L;
-		tempVal.value = inv;
-		Long count = invariantCounts[start].get(tempVal);
-		if (count != null && (!numMatters || count >= 0)) {
+		long count = invariantCounts[start].get(inv);
+		if (count != LongLongMap.MISSING && (!numMatters || count >= 0)) {
 			return count;
 		}
 		long posCount;
@@ -75,8 +84,8 @@ public abstract class InvariantHasher<S extends GenState> extends GenHasher<S> {
 			if (posCount != 0)
 				posCount = 1;
 		}
-		Long prevVal = invariantCounts[start].put(new LongSet(inv), posCount);
-		assert prevVal == null || (numMatters && prevVal == -1);
+		long prevVal = invariantCounts[start].put(inv, posCount);
+		assert prevVal == LongLongMap.MISSING || (numMatters && prevVal == -1);
 		return posCount;
 	}
 
@@ -113,7 +122,7 @@ public abstract class InvariantHasher<S extends GenState> extends GenHasher<S> {
 
 	public long maximum(int i) {
 		long max = Long.MIN_VALUE;
-		for (Long l : invariantCounts[i].values()) {
+		for (long l : invariantCounts[i].values()) {
 			if (l > max)
 				max = l;
 		}
@@ -1,9 +1,7 @@
 package edu.berkeley.gamesman.hasher.invhasher;
 
-import java.util.HashMap;
-
 import edu.berkeley.gamesman.hasher.genhasher.GenState;
-import edu.berkeley.gamesman.util.LongSet;
+import edu.berkeley.gamesman.util.LongLongMap;
 
 /**
  * Whereas the only assumption made by the InvariantHasher is that if two
@@ -22,8 +20,7 @@ import edu.berkeley.gamesman.util.LongSet;
  */
 public abstract class OptimizingInvariantHasher<S extends GenState> extends
 		InvariantHasher<S> {
-	private HashMap<LongSet, Long>[][] invariantVals;
-	private final LongSet tempVal = new LongSet();
+	private final LongLongMap[][] invariantVals;
 
 	public OptimizingInvariantHasher(int[] digitBase) {
 		this(digitBase, 0);
@@ -37,11 +34,20 @@ public abstract class OptimizingInvariantHasher<S extends GenState> extends
 	 */
 	public OptimizingInvariantHasher(int[] digitBase, int countingPlace) {
 		super(digitBase, countingPlace);
-		invariantVals = new HashMap[numElements][];
+		invariantVals = new LongLongMap[numElements][];
 		for (int i = 0; i < numElements; i++) {
-			invariantVals[i] = new HashMap[digitBase[i]];
+			invariantVals[i] = new LongLongMap[digitBase[i]];
 			for (int j = 0; j < digitBase[i]; j++)
-				invariantVals[i][j] = new HashMap<LongSet, Long>();
+				invariantVals[i][j] = new LongLongMap();
+		}
+	}
+
+	@Override
+	public void presizeInvariants(int place, int expectedInvariants) {
+		super.presizeInvariants(place, expectedInvariants);
+		if (place < numElements) {
+			for (LongLongMap vals : invariantVals[place])
+				vals.ensureCapacity(expectedInvariants);
 		}
 	}
 
@@ -51,13 +57,11 @@ public abstract class OptimizingInvariantHasher<S extends GenState> extends
 		int ls = leastSig(state);
 		long lastInv = lastInvariant(state);
 		assert lastInv >= 0;
-		tempVal.value = lastInv;
-		Long count = invariantVals[place][ls].get(tempVal);
-		if (count == null) {
+		long count = invariantVals[place][ls].get(lastInv);
+		if (count == LongLongMap.MISSING) {
 			count = super.sigValue(state);
-			Long prevVal = invariantVals[place][ls].put(new LongSet(lastInv),
-					count);
-			assert prevVal == null;
+			long prevVal = invariantVals[place][ls].put(lastInv, count);
+			assert prevVal == LongLongMap.MISSING;
 		}
 		return count;
 	}
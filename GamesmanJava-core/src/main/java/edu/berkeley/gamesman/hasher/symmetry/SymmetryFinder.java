@@ -1,4 +1,7 @@
 package edu.berkeley.gamesman.hasher.symmetry; 
+
+import java.util.ArrayList;
+import java.util.Arrays;
 /**
  * Abstract class for RectanularSymmetryFinder and SquareSymmetryFinder.
  * Creates public interface for using thesymmetry tools, but leaves
@@ -68,6 +71,69 @@ public abstract class SymmetryFinder {
     return max;
   }
 
+  /**
+   * Returns every symmetry of the board as a permutation of its places,
+   * numbering the place in a given row and column row * width + column.
+   * permutations[s][place] is the place symmetry s moves place to, and
+   * permutations[0] is the identity.
+   */
+  public int[][] getPermutations() {
+    ArrayList<int[]> generators = new ArrayList<int[]>();
+    if(rotation) {
+      if(height == width) {
+        //rotate right 90
+        generators.add(transformation(true, false, false));
+      } else {
+        //rotate right 180 (the only rotation of a rectangle)
+        generators.add(transformation(false, true, true));
+      }
+    }
+    if(horizontal) {
+      generators.add(transformation(false, false, true));
+    }
+    if(vertical) {
+      generators.add(transformation(false, true, false));
+    }
+
+    //close the generators under composition
+    ArrayList<int[]> permutations = new ArrayList<int[]>();
+    permutations.add(transformation(false, false, false));
+    for(int i = 0; i < permutations.size(); i++) {
+      for(int[] generator : generators) {
+        int[] composed = new int[generator.length];
+        for(int place = 0; place < composed.length; place++) {
+          composed[place] = generator[permutations.get(i)[place]];
+        }
+        boolean found = false;
+        for(int[] permutation : permutations) {
+          found = found || Arrays.equals(permutation, composed);
+        }
+        if(!found) {
+          permutations.add(composed);
+        }
+      }
+    }
+    return permutations.toArray(new int[permutations.size()][]);
+  }
+
+  private int[] transformation(boolean quarterTurn, boolean flipRows,
+      boolean flipColumns) {
+    int[] places = new int[height * width];
+    for(int row = 0; row < height; row++) {
+      for(int col = 0; col < width; col++) {
+        int newRow = flipRows ? height - row - 1 : row;
+        int newCol = flipColumns ? width - col - 1 : col;
+        if(quarterTurn) {
+          int oldRow = newRow;
+          newRow = newCol;
+          newCol = width - oldRow - 1;
+        }
+        places[row * width + col] = newRow * width + newCol;
+      }
+    }
+    return places;
+  }
+
   abstract int[][] getBoardIndices();
 
   abstract int[] getFixedPoints();
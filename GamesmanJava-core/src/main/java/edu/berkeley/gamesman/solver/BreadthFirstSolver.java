@@ -3,13 +3,14 @@ package edu.berkeley.gamesman.solver;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.core.State;
 import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.AtomicRecordArray;
 import edu.berkeley.gamesman.database.Database;
-import edu.berkeley.gamesman.database.DatabaseHandle;
 import edu.berkeley.gamesman.game.FinitePrimitives;
 import edu.berkeley.gamesman.game.Game;
 import edu.berkeley.gamesman.game.Undoable;
@@ -18,6 +19,12 @@ import edu.berkeley.gamesman.util.qll.Factory;
 import edu.berkeley.gamesman.util.qll.Pool;
 
 /**
+ * Solves outward from the primitive positions one remoteness at a time. While
+ * solving, every record is kept in an AtomicRecordArray, so any number of
+ * threads may propagate records to the same parents at once; each parent is
+ * only replaced (atomically) when the new record is better. The records are
+ * written to the database once the solve is finished.
+ *
  * @author dnspies
  * @param <T>
  *            The game state
@@ -27,6 +34,8 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 	public BreadthFirstSolver(Configuration conf, Database db) {
 		super(conf, db);
 		finitePrimitives = conf.getGame() instanceof FinitePrimitives;
+		records = new AtomicRecordArray(db.firstRecordIndex, db.numRecords,
+				conf.getGame().recordStates());
 	}
 
 	private class BreadthFirstParentTask implements Runnable {
@@ -35,7 +44,16 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 		private final Game<T> game;
 		private final Undoable<T> uGame;
 		private final T[] parentStates;
-		private final DatabaseHandle readHandle, writeHandle, parentReadHandle;
+		private final Record rec, rightNow;
+		private T parent;
+		private final AtomicRecordArray.Preference better =
+				new AtomicRecordArray.Preference() {
+					public boolean prefer(long candidate, long current) {
+						game.longToRecord(parent, current, rightNow);
+						return rightNow.value == Value.UNDECIDED
+								|| rec.compareTo(rightNow) > 0;
+					}
+				};
 
 		@SuppressWarnings("unchecked")
 		private BreadthFirstParentTask(long firstRecordIndex, long numRecords) {
@@ -45,57 +63,33 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 			game = conf.getCheckedGame();
 			uGame = (Undoable<T>) game;
 			parentStates = game.newStateArray(uGame.maxParents());
-			readHandle = db.getHandle(true);
-			parentReadHandle = db.getHandle(true);
-			writeHandle = db.getHandle(false);
+			rec = game.newRecord();
+			rightNow = game.newRecord();
 		}
 
 		@Override
 		public void run() {
 			long hash = firstRecordIndex;
 			T state = game.newState();
-			Record rec = game.newRecord();
-			Record rightNow = game.newRecord();
 			long positionsFound = 0;
-			try {
-				db.prepareReadRecordRange(readHandle, firstRecordIndex,
-						numRecords);
-			} catch (IOException e1) {
-				throw new Error(e1);
-			}
 			for (long i = 0; i < numRecords; i++) {
-				try {
-					long recordLong = db.readNextRecord(readHandle);
-					game.longToRecord(null, recordLong, rec);
-				} catch (IOException e) {
-					throw new Error(e);
-				}
+				game.hashToState(hash, state);
+				game.longToRecord(state, records.get(hash), rec);
 				if (rec.value != Value.UNDECIDED
 						&& rec.remoteness == currentRemoteness) {
-					state = game.hashToState(hash);
 					positionsFound++;
 					rec.previousPosition();
 					int numParents = uGame.possibleParents(state, parentStates);
 					for (int p = 0; p < numParents; p++) {
-						T parent = parentStates[p];
+						parent = parentStates[p];
 						long parentHash = game.stateToHash(parent);
-						try {
-							long rightNowLong = db.readRecord(parentReadHandle,
-									parentHash);
-							game.longToRecord(parent, rightNowLong, rightNow);
-							if (rightNow.value == Value.UNDECIDED
-									|| rec.compareTo(rightNow) > 0) {
-								long recLong = game.recordToLong(parent, rec);
-								db.writeRecord(writeHandle, parentHash, recLong);
-							}
-						} catch (IOException e) {
-							throw new Error(e);
-						}
+						records.improve(parentHash,
+								game.recordToLong(parent, rec), better);
 					}
 				}
 				hash++;
 			}
-			BreadthFirstSolver.this.positionsFound += positionsFound;
+			BreadthFirstSolver.this.positionsFound.addAndGet(positionsFound);
 			confPool.release(conf);
 			tasksFinished.countDown();
 		}
@@ -104,14 +98,12 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 
 	private class BreadthFirstPrimitiveTask implements Runnable {
 		private final long firstRecordIndex, numRecords;
-		private final DatabaseHandle writeHandle;
 		private final Game<T> game;
 		private final Configuration conf;
 
 		private BreadthFirstPrimitiveTask(long firstRecordIndex, long numRecords) {
 			this.firstRecordIndex = firstRecordIndex;
 			this.numRecords = numRecords;
-			writeHandle = db.getHandle(false);
 			conf = confPool.get();
 			game = conf.getCheckedGame();
 		}
@@ -122,23 +114,18 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 			T state = game.newState();
 			Record rec = game.newRecord();
 			long primitivesFound = 0;
-			for (int i = 0; i < numRecords; i++) {
+			for (long i = 0; i < numRecords; i++) {
 				game.hashToState(hash, state);
 				Value v = game.primitiveValue(state);
 				if (v != Value.UNDECIDED) {
 					primitivesFound++;
 					rec.value = v;
 					rec.remoteness = 0;
-					long recLong = game.recordToLong(state, rec);
-					try {
-						db.writeRecord(writeHandle, hash, recLong);
-					} catch (IOException e) {
-						throw new Error(e);
-					}
+					records.set(hash, game.recordToLong(state, rec));
 				}
 				hash++;
 			}
-			positionsFound += primitivesFound;
+			positionsFound.addAndGet(primitivesFound);
 			confPool.release(conf);
 			tasksFinished.countDown();
 		}
@@ -157,28 +144,23 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 					DEFAULT_PREFERRED_SPLIT_SIZE);
 			splits = Util.getSplits(0L, game.numHashes(), minSplitSize,
 					minSplits, preferredSplitSize);
-			DatabaseHandle dh = db.getHandle(false);
 			Record r = game.newRecord();
 			r.value = Value.UNDECIDED;
 			long record = game.recordToLong(game.startingPositions().iterator()
 					.next(), r);
-			try {
-				db.fill(dh, record);
-				if (finitePrimitives) {
-					FinitePrimitives<T> pGame;
-					pGame = (FinitePrimitives<T>) game;
-					Collection<T> primitives = pGame.getPrimitives();
-					for (T primitive : primitives) {
-						r.value = game.primitiveValue(primitive);
-						r.remoteness = 0;
-						record = game.recordToLong(primitive, r);
-						db.writeRecord(dh, game.stateToHash(primitive), record);
-					}
-					if (primitives.size() > 0)
-						positionsFound += primitives.size();
+			records.fill(record);
+			if (finitePrimitives) {
+				FinitePrimitives<T> pGame;
+				pGame = (FinitePrimitives<T>) game;
+				Collection<T> primitives = pGame.getPrimitives();
+				for (T primitive : primitives) {
+					r.value = game.primitiveValue(primitive);
+					r.remoteness = 0;
+					record = game.recordToLong(primitive, r);
+					records.set(game.stateToHash(primitive), record);
 				}
-			} catch (IOException e) {
-				throw new Error(e);
+				if (primitives.size() > 0)
+					positionsFound.addAndGet(primitives.size());
 			}
 			tasksFinished.countDown();
 		}
@@ -191,7 +173,8 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 	private long[] splits = new long[0];
 	private int currentSplit = 0;
 	private CountDownLatch tasksFinished = new CountDownLatch(1);
-	private volatile long positionsFound = 0L;
+	private final AtomicLong positionsFound = new AtomicLong();
+	private final AtomicRecordArray records;
 	private final Pool<Configuration> confPool = new Pool<Configuration>(
 			new Factory<Configuration>() {
 
@@ -213,10 +196,18 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 		}
 		if (currentSplit >= splits.length - 1 || !firstTaskFinished) {
 			tasksFinished.await();
-			if (positionsFound == 0)
+			if (firstTaskFinished && positionsFound.get() == 0) {
+				try {
+					records.writeTo(db);
+				} catch (IOException e) {
+					throw new Error(e);
+				}
 				return null;
+			}
 			if (firstTaskFinished || finitePrimitives)
 				addRemoteness();
+			else
+				tasksFinished = new CountDownLatch(splits.length - 1);
 			firstTaskFinished = true;
 		}
 		return nextJob();
@@ -224,12 +215,12 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 
 	private Runnable nextJob() {
 		Runnable result;
+		long first = splits[currentSplit];
+		long numRecords = splits[currentSplit + 1] - first;
 		if (currentRemoteness == -1) {
-			result = new BreadthFirstPrimitiveTask(splits[currentSplit],
-					splits[currentSplit + 1]);
+			result = new BreadthFirstPrimitiveTask(first, numRecords);
 		} else {
-			result = new BreadthFirstParentTask(splits[currentSplit],
-					splits[currentSplit + 1]);
+			result = new BreadthFirstParentTask(first, numRecords);
 		}
 		currentSplit++;
 		return result;
@@ -238,10 +229,10 @@ public class BreadthFirstSolver<T extends State<T>> extends Solver {
 	private void addRemoteness() {
 		if (currentRemoteness >= 0)
 			System.out.println("Positions at remoteness " + currentRemoteness
-					+ ": " + positionsFound);
+					+ ": " + positionsFound.get());
 		currentRemoteness++;
 		currentSplit = 0;
-		positionsFound = 0;
+		positionsFound.set(0L);
 		tasksFinished = new CountDownLatch(splits.length - 1);
 	}
 }
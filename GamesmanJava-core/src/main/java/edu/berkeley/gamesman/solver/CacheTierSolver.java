@@ -95,16 +95,24 @@ public class CacheTierSolver extends TierSolver {
 			writeCache = new RecordRangeCache(db);
 			writeCache.ensureByteCapacity(
 					(int) Math.min(Integer.MAX_VALUE, writeMem), false);
-			writeCache.setRange(
-					firstRecordIndex,
-					(int) Math.min(Integer.MAX_VALUE,
-							Math.min(numRecords, writeRecords)));
+			// End the first range on a group boundary so later ranges never
+			// share a group with it
+			writeCache.setRange(firstRecordIndex, (int) Math.min(
+					Integer.MAX_VALUE, Math.min(numRecords, writeRecords
+							- db.myLogic.getGroupOffset(firstRecordIndex))));
+		}
+
+		@Override
+		protected boolean usesStore() {
+			return false;
 		}
 
 		@Override
 		public void solvePartialTier() {
 			super.solvePartialTier();
 			writeBack();
+			readCache.flushCounts();
+			writeCache.flushCounts();
 		}
 
 		@Override
@@ -136,6 +144,8 @@ public class CacheTierSolver extends TierSolver {
 			} catch (IOException e) {
 				throw new Error(e);
 			}
+			markWritten(writeCache.getFirstRecordIndex()
+					+ writeCache.getNumRecords());
 		}
 	}
 
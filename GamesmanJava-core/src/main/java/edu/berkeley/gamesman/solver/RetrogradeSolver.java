@@ -0,0 +1,430 @@
+package edu.berkeley.gamesman.solver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.core.State;
+import edu.berkeley.gamesman.core.Value;
+import edu.berkeley.gamesman.database.AtomicRecordArray;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.game.Game;
+import edu.berkeley.gamesman.game.Undoable;
+import edu.berkeley.gamesman.util.Util;
+import edu.berkeley.gamesman.util.qll.Factory;
+import edu.berkeley.gamesman.util.qll.Pool;
+
+/**
+ * Solves a loopy Undoable game in memory by retrograde analysis rather than by
+ * sweeping every hash until nothing changes (as VISolver does). The game must
+ * be able to store DRAW records.<br />
+ * First every position is visited once to find the primitives and to count
+ * the children of everything else. Then the positions are resolved one
+ * remoteness at a time starting from the primitives: a parent of a LOSE is a
+ * WIN and a parent is resolved as soon as its last child is (a LOSE unless
+ * some child was a TIE). When no more positions resolve, ties are spread
+ * through what's left in order of remoteness and every position still
+ * unresolved is a DRAW. Each parent edge is followed once.<br />
+ * Records and remaining child counts are kept in AtomicRecordArrays so any
+ * number of threads may resolve positions at once, and the records are
+ * written to the database at the end.
+ *
+ * @param <S>
+ *            The game state
+ */
+public class RetrogradeSolver<S extends State<S>> extends Solver {
+	/**
+	 * A list of hashes which grows as needed
+	 */
+	private static final class HashList {
+		private long[] hashes = new long[16];
+		private int size = 0;
+
+		private void add(long hash) {
+			if (size == hashes.length) {
+				long[] newHashes = new long[size * 2];
+				System.arraycopy(hashes, 0, newHashes, 0, size);
+				hashes = newHashes;
+			}
+			hashes[size++] = hash;
+		}
+
+		private static long[] concat(ArrayList<HashList> lists) {
+			int size = 0;
+			for (HashList list : lists)
+				size += list.size;
+			long[] result = new long[size];
+			int place = 0;
+			for (HashList list : lists) {
+				System.arraycopy(list.hashes, 0, result, place, list.size);
+				place += list.size;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Takes a game from the pool only while running so there are never more
+	 * games than threads
+	 */
+	private abstract class RetrogradeTask implements Runnable {
+		protected Game<S> game;
+		protected S state;
+		protected Record rec, other;
+		protected final HashList next = new HashList();
+		protected long positions = 0;
+
+		protected RetrogradeTask() {
+			tasks.add(this);
+		}
+
+		@Override
+		public final void run() {
+			Configuration conf = confPool.get();
+			game = conf.getCheckedGame();
+			state = game.newState();
+			rec = game.newRecord();
+			other = game.newRecord();
+			solve();
+			metrics.addPositions(positions, 0L);
+			game = null;
+			confPool.release(conf);
+			tasksFinished.countDown();
+		}
+
+		protected abstract void solve();
+	}
+
+	/**
+	 * Finds the primitives (which make up the first frontier) and counts the
+	 * distinct children of everything else
+	 */
+	private class CountTask extends RetrogradeTask {
+		private final long firstHash, numHashes;
+
+		private CountTask(long firstHash, long numHashes) {
+			this.firstHash = firstHash;
+			this.numHashes = numHashes;
+		}
+
+		@Override
+		protected void solve() {
+			S[] children = game.newStateArray(game.maxChildren());
+			long[] childHashes = new long[game.maxChildren()];
+			for (long hash = firstHash; hash < firstHash + numHashes; hash++) {
+				game.hashToState(hash, state);
+				Value v = game.primitiveValue(state);
+				if (v == Value.UNDECIDED) {
+					int numChildren = game.validMoves(state, children);
+					for (int i = 0; i < numChildren; i++)
+						childHashes[i] = game.stateToHash(children[i]);
+					counts.set(hash, distinct(childHashes, numChildren));
+					rec.value = Value.DRAW;
+				} else {
+					rec.value = v;
+					rec.remoteness = 0;
+					next.add(hash);
+					positions++;
+				}
+				records.set(hash, game.recordToLong(state, rec));
+			}
+		}
+	}
+
+	/**
+	 * Resolves the parents of one piece of the frontier
+	 */
+	private class FrontierTask extends RetrogradeTask {
+		private final long[] frontier;
+		private final int first, num;
+		private S parent;
+		private final AtomicRecordArray.Preference better =
+				new AtomicRecordArray.Preference() {
+					public boolean prefer(long candidate, long current) {
+						game.longToRecord(parent, current, other);
+						return rec.compareTo(other) > 0;
+					}
+				};
+
+		private FrontierTask(long[] frontier, int first, int num) {
+			this.frontier = frontier;
+			this.first = first;
+			this.num = num;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void solve() {
+			Undoable<S> uGame = (Undoable<S>) game;
+			S[] parents = game.newStateArray(uGame.maxParents());
+			long[] parentHashes = new long[uGame.maxParents()];
+			for (int i = first; i < first + num; i++) {
+				long hash = frontier[i];
+				game.hashToState(hash, state);
+				game.longToRecord(state, records.get(hash), rec);
+				rec.previousPosition();
+				int numParents = uGame.possibleParents(state, parents);
+				for (int p = 0; p < numParents; p++)
+					parentHashes[p] = game.stateToHash(parents[p]);
+				for (int p = 0; p < numParents; p++) {
+					parent = parents[p];
+					long parentHash = parentHashes[p];
+					if (appearsBefore(parentHashes, p))
+						continue;
+					if (rec.value == Value.WIN || spreadingTies)
+						resolveNow(parentHash);
+					else
+						removeChild(parentHash);
+				}
+			}
+		}
+
+		/**
+		 * The parent can't do better than rec (and no other child has
+		 * resolved it yet), so it's resolved
+		 */
+		private void resolveNow(long parentHash) {
+			while (true) {
+				long count = counts.get(parentHash);
+				if (count == 0)
+					return;
+				if (counts.compareAndSet(parentHash, count, 0)) {
+					records.set(parentHash, game.recordToLong(parent, rec));
+					next.add(parentHash);
+					positions++;
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Keeps rec if it's the parent's best child so far and resolves the
+		 * parent if this was its last child
+		 */
+		private void removeChild(long parentHash) {
+			if (counts.get(parentHash) == 0)
+				return;
+			long recLong = game.recordToLong(parent, rec);
+			if (rec.value.compareTo(Value.DRAW) > 0)
+				records.improve(parentHash, recLong, better);
+			while (true) {
+				long count = counts.get(parentHash);
+				if (count == 0)
+					return;
+				if (counts.compareAndSet(parentHash, count, count - 1)) {
+					if (count == 1) {
+						// Every child is resolved and none was a LOSE, so the
+						// parent is the best tie kept so far or else a LOSE
+						// one further than this child (the last resolved)
+						game.longToRecord(parent, records.get(parentHash),
+								other);
+						if (other.value == Value.DRAW)
+							records.set(parentHash, recLong);
+						next.add(parentHash);
+						positions++;
+					}
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the unresolved positions which have a child that's a TIE
+	 */
+	private class TieSeedTask extends RetrogradeTask {
+		private final long firstHash, numHashes;
+		private final ArrayList<HashList> seeds = new ArrayList<HashList>();
+
+		private TieSeedTask(long firstHash, long numHashes) {
+			this.firstHash = firstHash;
+			this.numHashes = numHashes;
+		}
+
+		@Override
+		protected void solve() {
+			for (long hash = firstHash; hash < firstHash + numHashes; hash++) {
+				if (counts.get(hash) == 0)
+					continue;
+				game.hashToState(hash, state);
+				game.longToRecord(state, records.get(hash), rec);
+				if (rec.value == Value.TIE) {
+					while (seeds.size() <= rec.remoteness)
+						seeds.add(new HashList());
+					seeds.get(rec.remoteness).add(hash);
+				}
+			}
+		}
+	}
+
+	private final Pool<Configuration> confPool = new Pool<Configuration>(
+			new Factory<Configuration>() {
+
+				@Override
+				public Configuration newObject() {
+					return conf.cloneAll();
+				}
+
+				@Override
+				public void reset(Configuration t) {
+				}
+			});
+	private final AtomicRecordArray records, counts;
+	private final long numHashes;
+	private final long[] hashSplits;
+	private final long minSplitSize, preferredSplitSize;
+	private final ArrayList<RetrogradeTask> tasks =
+			new ArrayList<RetrogradeTask>();
+	private CountDownLatch tasksFinished = new CountDownLatch(0);
+	private boolean counted = false, spreadingTies = false;
+	private int remoteness = 0;
+	private long[] frontier = null;
+	private ArrayList<long[]> tieSeeds = null;
+	private final ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+
+	/**
+	 * @param conf
+	 *            The configuration object
+	 * @param db
+	 *            The database to store the records in
+	 */
+	public RetrogradeSolver(Configuration conf, Database db) {
+		super(conf, db);
+		Game<?> game = conf.getGame();
+		numHashes = game.numHashes();
+		records = new AtomicRecordArray(0L, numHashes, game.recordStates());
+		counts = new AtomicRecordArray(0L, numHashes, game.maxChildren() + 1);
+		minSplitSize = conf.getLong("gamesman.minimum.split.size",
+				DEFAULT_MIN_SPLIT_SIZE);
+		preferredSplitSize = conf.getLong("gamesman.preferred.split.size",
+				DEFAULT_PREFERRED_SPLIT_SIZE);
+		hashSplits = Util.getSplits(0L, numHashes, minSplitSize,
+				conf.getInteger("gamesman.minimum.splits", nThreads),
+				preferredSplitSize);
+	}
+
+	@Override
+	public Runnable nextAvailableJob() throws InterruptedException {
+		while (jobs.isEmpty()) {
+			tasksFinished.await();
+			if (!counted) {
+				counted = true;
+				for (int i = 0; i < hashSplits.length - 1; i++)
+					jobs.add(new CountTask(hashSplits[i], hashSplits[i + 1]
+							- hashSplits[i]));
+			} else if (!nextFrontier()) {
+				try {
+					records.writeTo(db);
+				} catch (IOException e) {
+					throw new Error(e);
+				}
+				return null;
+			}
+			tasksFinished = new CountDownLatch(jobs.size());
+		}
+		return jobs.remove(jobs.size() - 1);
+	}
+
+	/**
+	 * Collects what the finished tasks resolved into the next frontier and
+	 * splits it into jobs
+	 *
+	 * @return Whether there are any positions left to resolve from
+	 */
+	private boolean nextFrontier() {
+		if (spreadingTies && tieSeeds == null) {
+			tieSeeds = new ArrayList<long[]>();
+			for (int r = 0;; r++) {
+				ArrayList<HashList> level = new ArrayList<HashList>();
+				for (RetrogradeTask task : tasks) {
+					ArrayList<HashList> seeds = ((TieSeedTask) task).seeds;
+					if (r < seeds.size())
+						level.add(seeds.get(r));
+				}
+				if (level.isEmpty())
+					break;
+				tieSeeds.add(HashList.concat(level));
+			}
+			tasks.clear();
+			remoteness = 0;
+			frontier = new long[0];
+		} else {
+			ArrayList<HashList> resolved = new ArrayList<HashList>();
+			for (RetrogradeTask task : tasks)
+				resolved.add(task.next);
+			tasks.clear();
+			if (frontier != null)
+				remoteness++;
+			frontier = HashList.concat(resolved);
+			if (!spreadingTies && frontier.length > 0)
+				System.out.println("Positions at remoteness " + remoteness
+						+ ": " + frontier.length);
+		}
+		if (spreadingTies) {
+			if (remoteness < tieSeeds.size())
+				frontier = claimSeeds(tieSeeds.get(remoteness), frontier);
+			else if (frontier.length == 0)
+				return false;
+		} else if (frontier.length == 0) {
+			spreadingTies = true;
+			for (int i = 0; i < hashSplits.length - 1; i++)
+				jobs.add(new TieSeedTask(hashSplits[i], hashSplits[i + 1]
+						- hashSplits[i]));
+			return true;
+		}
+		long[] splits = Util.getSplits(0L, frontier.length, minSplitSize,
+				nThreads, preferredSplitSize);
+		for (int i = 0; i < splits.length - 1; i++)
+			jobs.add(new FrontierTask(frontier, (int) splits[i],
+					(int) (splits[i + 1] - splits[i])));
+		return true;
+	}
+
+	/**
+	 * Resolves the seeds which haven't already been reached by a shorter tie
+	 * and adds them to the frontier
+	 */
+	private long[] claimSeeds(long[] seeds, long[] frontier) {
+		long[] result = new long[frontier.length + seeds.length];
+		System.arraycopy(frontier, 0, result, 0, frontier.length);
+		int size = frontier.length;
+		for (long hash : seeds) {
+			long count = counts.get(hash);
+			while (count > 0 && !counts.compareAndSet(hash, count, 0))
+				count = counts.get(hash);
+			if (count > 0)
+				result[size++] = hash;
+		}
+		if (size < result.length) {
+			long[] trimmed = new long[size];
+			System.arraycopy(result, 0, trimmed, 0, size);
+			result = trimmed;
+		}
+		return result;
+	}
+
+	/**
+	 * Moves the distinct hashes to the front
+	 *
+	 * @return The number of distinct hashes
+	 */
+	private static int distinct(long[] hashes, int num) {
+		int numDistinct = 0;
+		for (int i = 0; i < num; i++)
+			if (!appearsBefore(hashes, i))
+				hashes[numDistinct++] = hashes[i];
+		return numDistinct;
+	}
+
+	/**
+	 * @return Whether hashes[i] also appears before i
+	 */
+	private static boolean appearsBefore(long[] hashes, int i) {
+		for (int j = 0; j < i; j++)
+			if (hashes[j] == hashes[i])
+				return true;
+		return false;
+	}
+}
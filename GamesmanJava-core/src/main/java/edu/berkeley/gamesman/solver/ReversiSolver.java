@@ -110,8 +110,9 @@ public class ReversiSolver extends TierSolver {
 		System.out.println("Fixing tier " + currentTier);
 		currentSplit = 0;
 		halfTier = myGame.numHashesForTier(currentTier) / 2;
-		splits = Util.getSplits(myGame.hashOffsetForTier(currentTier),
-				halfTier, minSplitSize, minSplits, preferredSplitSize);
+		splits = db.myLogic.alignSplits(Util.getSplits(
+				myGame.hashOffsetForTier(currentTier), halfTier, minSplitSize,
+				minSplits, preferredSplitSize));
 		tasksFinished = new CountDownLatch(splits.length - 1);
 	}
 }
\ No newline at end of file
@@ -27,11 +27,14 @@ public abstract class Solver {
 
 		@Override
 		public void run() {
+			long startTime = System.nanoTime();
 			try {
 				inner.run();
 			} catch (Throwable t) {
 				fail(t);
 				mainThread.interrupt();
+			} finally {
+				metrics.addTaskTime(System.nanoTime() - startTime);
 			}
 		}
 
@@ -56,6 +59,10 @@ public abstract class Solver {
 
 	protected Database db;
 	protected Configuration conf;
+	/**
+	 * What this solve is doing (see SolverMetrics)
+	 */
+	protected final SolverMetrics metrics;
 	private ExecutorService solverService;
 
 	/**
@@ -70,6 +77,8 @@ public abstract class Solver {
 		nThreads = conf.getInteger("gamesman.threads", 1);
 		stepSize = conf.getInteger("gamesman.solver.step.size",
 				DEFAULT_STEP_SIZE);
+		metrics = new SolverMetrics(conf, db, db == null ? 0L
+				: db.numRecords);
 	}
 
 	private final Runnable getNextJob() throws InterruptedException {
@@ -98,6 +107,7 @@ public abstract class Solver {
 		System.out.println("Beginning solve for " + conf.getGame().describe()
 				+ " using " + getClass().getSimpleName());
 		long startTime = System.currentTimeMillis();
+		metrics.start();
 		mainThread = Thread.currentThread();
 		solverService = Executors.newFixedThreadPool(nThreads);
 		Runnable nextJob = null;
@@ -125,6 +135,7 @@ public abstract class Solver {
 		} catch (ExecutionException e) {
 			fail(e.getCause());
 		}
+		metrics.stop();
 		if (failed != null)
 			error();
 		else
@@ -133,6 +144,7 @@ public abstract class Solver {
 	}
 
 	private void error() {
+		metrics.stop();
 		solverService.shutdownNow();
 		throw new Error(failed);
 	}
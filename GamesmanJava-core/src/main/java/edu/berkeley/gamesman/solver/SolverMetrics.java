@@ -0,0 +1,345 @@
+package edu.berkeley.gamesman.solver;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.cache.RecordRangeCache;
+import edu.berkeley.gamesman.database.cache.TierCache;
+import edu.berkeley.gamesman.util.StripedCounter;
+
+/**
+ * Counts what a solve is doing so that a slow solve can be diagnosed while it
+ * runs: positions solved (overall and in the current tier), child records
+ * read, cache hit rates, bytes read from and written to the database and how
+ * much of each solver thread's time is spent working. Solvers add to the
+ * counters as they go. The counters are cheap enough to always be kept.<br />
+ * With gamesman.metrics.file set, a JSON object is appended to that file as a
+ * line every gamesman.metrics.interval.millis (default 10000) and once more
+ * when the solve ends. Rates in these lines are over the preceding interval.
+ * With gamesman.metrics.jmx=true the metrics are also registered as an MBean
+ * named edu.berkeley.gamesman:type=SolverMetrics,id=n for the length of the
+ * solve.
+ */
+public final class SolverMetrics implements SolverMetricsMBean {
+	private static final AtomicInteger solveIds = new AtomicInteger();
+
+	private static final class ThreadTimes {
+		private final AtomicLong taskNanos = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+	}
+
+	private final Database db;
+	private final String fileName;
+	private final long intervalMillis;
+	private final boolean jmx;
+
+	private final StripedCounter positions = new StripedCounter();
+	private final StripedCounter childReads = new StripedCounter();
+	private final Map<String, ThreadTimes> threads =
+			new ConcurrentHashMap<String, ThreadTimes>();
+	private volatile long totalPositions;
+	private volatile int tier = -1;
+	private volatile long tierSize, tierFirstPosition, tierStartNanos;
+	private long startNanos;
+	private long tierCacheHits, tierCacheMisses, rangeCacheHits,
+			rangeCacheMisses;
+
+	// The previous line's totals (for rates over the interval)
+	private long lastNanos, lastPositions, lastChildReads, lastBytesRead,
+			lastBytesWritten;
+	private Timer timer;
+	private PrintStream out;
+	private ObjectName name;
+
+	/**
+	 * @param conf
+	 *            The configuration object
+	 * @param db
+	 *            The database being solved into (may be null)
+	 * @param totalPositions
+	 *            The number of positions the solve will cover
+	 */
+	public SolverMetrics(Configuration conf, Database db, long totalPositions) {
+		this.db = db;
+		this.totalPositions = totalPositions;
+		fileName = conf.getProperty("gamesman.metrics.file", null);
+		intervalMillis = conf.getLong("gamesman.metrics.interval.millis",
+				10000L);
+		jmx = conf.getBoolean("gamesman.metrics.jmx", false);
+		startNanos = tierStartNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts the clock and begins publishing the metrics
+	 */
+	public synchronized void start() {
+		startNanos = lastNanos = tierStartNanos = System.nanoTime();
+		tierCacheHits = TierCache.getHits();
+		tierCacheMisses = TierCache.getMisses();
+		rangeCacheHits = RecordRangeCache.getHits();
+		rangeCacheMisses = RecordRangeCache.getMisses();
+		lastPositions = positions.sum();
+		lastChildReads = childReads.sum();
+		lastBytesRead = getBytesRead();
+		lastBytesWritten = getBytesWritten();
+		if (fileName != null) {
+			try {
+				out = new PrintStream(new FileOutputStream(fileName, true));
+			} catch (FileNotFoundException e) {
+				throw new Error(e);
+			}
+			timer = new Timer("Solver metrics", true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					writeLine();
+				}
+			}, intervalMillis, intervalMillis);
+		}
+		if (jmx) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				name = new ObjectName(
+						"edu.berkeley.gamesman:type=SolverMetrics,id="
+								+ solveIds.incrementAndGet());
+				server.registerMBean(this, name);
+			} catch (JMException e) {
+				throw new Error(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the last line and stops publishing the metrics
+	 */
+	public synchronized void stop() {
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+			writeLine();
+			out.close();
+			out = null;
+		}
+		if (name != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				throw new Error(e);
+			}
+			name = null;
+		}
+	}
+
+	/**
+	 * @param totalPositions
+	 *            The number of positions the solve will cover
+	 */
+	public void setTotalPositions(long totalPositions) {
+		this.totalPositions = totalPositions;
+	}
+
+	/**
+	 * Called when the solver moves on to a new tier
+	 *
+	 * @param tier
+	 *            The tier
+	 * @param numPositions
+	 *            The number of positions in it
+	 */
+	public void startTier(int tier, long numPositions) {
+		tierFirstPosition = positions.sum();
+		tierStartNanos = System.nanoTime();
+		tierSize = numPositions;
+		this.tier = tier;
+	}
+
+	/**
+	 * Solvers should add positions in batches rather than one at a time
+	 *
+	 * @param solved
+	 *            The number of positions solved
+	 * @param children
+	 *            The number of child records read to solve them
+	 */
+	public void addPositions(long solved, long children) {
+		positions.add(solved);
+		childReads.add(children);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time the current thread spent running a task for the solver
+	 */
+	public void addTaskTime(long nanos) {
+		threadTimes().taskNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time the current thread spent blocked in the middle of a task
+	 *            (this is counted as idle rather than busy)
+	 */
+	public void addWaitTime(long nanos) {
+		threadTimes().waitNanos.addAndGet(nanos);
+	}
+
+	private ThreadTimes threadTimes() {
+		String thread = Thread.currentThread().getName();
+		ThreadTimes times = threads.get(thread);
+		if (times == null) {
+			times = new ThreadTimes();
+			threads.put(thread, times);
+		}
+		return times;
+	}
+
+	private synchronized void writeLine() {
+		if (out == null)
+			return;
+		long now = System.nanoTime();
+		long positions = getPositions(), childReads = this.childReads.sum();
+		long bytesRead = getBytesRead(), bytesWritten = getBytesWritten();
+		double seconds = Math.max(1L, now - lastNanos) / 1e9;
+		long elapsedNanos = now - startNanos;
+		StringBuilder line = new StringBuilder("{");
+		line.append("\"time\":").append(System.currentTimeMillis());
+		line.append(",\"elapsedMillis\":").append(elapsedNanos / 1000000);
+		line.append(",\"tier\":").append(tier);
+		line.append(",\"tierPositions\":").append(tierSize);
+		line.append(",\"tierSolved\":").append(positions - tierFirstPosition);
+		line.append(",\"positions\":").append(positions);
+		line.append(",\"totalPositions\":").append(totalPositions);
+		appendRate(line, "positionsPerSec", positions - lastPositions,
+				seconds);
+		appendRate(line, "childReadsPerSec", childReads - lastChildReads,
+				seconds);
+		appendRate(line, "bytesReadPerSec", bytesRead - lastBytesRead,
+				seconds);
+		appendRate(line, "bytesWrittenPerSec", bytesWritten
+				- lastBytesWritten, seconds);
+		line.append(",\"bytesRead\":").append(bytesRead);
+		line.append(",\"bytesWritten\":").append(bytesWritten);
+		line.append(",\"tierCacheHitRate\":").append(getTierCacheHitRate());
+		line.append(",\"recordRangeCacheHitRate\":").append(
+				getRecordRangeCacheHitRate());
+		line.append(",\"etaMillis\":").append(getEtaMillis());
+		line.append(",\"threads\":{");
+		boolean first = true;
+		for (Map.Entry<String, ThreadTimes> thread : threads.entrySet()) {
+			ThreadTimes times = thread.getValue();
+			long busy = times.taskNanos.get() - times.waitNanos.get();
+			if (!first)
+				line.append(',');
+			first = false;
+			line.append('"').append(thread.getKey()).append("\":{");
+			line.append("\"busyMillis\":").append(busy / 1000000);
+			line.append(",\"idleMillis\":").append(
+					Math.max(0L, elapsedNanos - busy) / 1000000);
+			line.append('}');
+		}
+		line.append("}}");
+		out.println(line);
+		out.flush();
+		lastNanos = now;
+		lastPositions = positions;
+		lastChildReads = childReads;
+		lastBytesRead = bytesRead;
+		lastBytesWritten = bytesWritten;
+	}
+
+	private static void appendRate(StringBuilder line, String key, long count,
+			double seconds) {
+		line.append(",\"").append(key).append("\":").append(
+				Math.round(count / seconds));
+	}
+
+	private static double hitRate(long hits, long misses) {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0D : (double) hits / lookups;
+	}
+
+	@Override
+	public int getTier() {
+		return tier;
+	}
+
+	@Override
+	public long getPositions() {
+		return positions.sum();
+	}
+
+	@Override
+	public long getTotalPositions() {
+		return totalPositions;
+	}
+
+	@Override
+	public double getTierPositionsPerSecond() {
+		long nanos = Math.max(1L, System.nanoTime() - tierStartNanos);
+		return (getPositions() - tierFirstPosition) * 1e9 / nanos;
+	}
+
+	@Override
+	public double getChildReadsPerSecond() {
+		long nanos = Math.max(1L, System.nanoTime() - startNanos);
+		return childReads.sum() * 1e9 / nanos;
+	}
+
+	@Override
+	public double getTierCacheHitRate() {
+		return hitRate(TierCache.getHits() - tierCacheHits,
+				TierCache.getMisses() - tierCacheMisses);
+	}
+
+	@Override
+	public double getRecordRangeCacheHitRate() {
+		return hitRate(RecordRangeCache.getHits() - rangeCacheHits,
+				RecordRangeCache.getMisses() - rangeCacheMisses);
+	}
+
+	@Override
+	public long getBytesRead() {
+		return db == null ? 0L : db.getBytesRead();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return db == null ? 0L : db.getBytesWritten();
+	}
+
+	@Override
+	public double getBusyFraction() {
+		long elapsed = System.nanoTime() - startNanos;
+		if (threads.isEmpty() || elapsed <= 0)
+			return 0D;
+		long busy = 0L;
+		for (ThreadTimes times : threads.values())
+			busy += times.taskNanos.get() - times.waitNanos.get();
+		return (double) busy / (elapsed * threads.size());
+	}
+
+	@Override
+	public long getEtaMillis() {
+		long solved = getPositions();
+		long nanos = System.nanoTime() - startNanos;
+		if (solved == 0 || nanos <= 0)
+			return -1L;
+		long remaining = Math.max(0L, totalPositions - solved);
+		return (long) (remaining * (nanos / 1e6) / solved);
+	}
+}
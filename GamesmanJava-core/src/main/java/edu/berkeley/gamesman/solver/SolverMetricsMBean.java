@@ -0,0 +1,62 @@
+package edu.berkeley.gamesman.solver;
+
+/**
+ * The view of a solve's metrics published over JMX (see SolverMetrics)
+ */
+public interface SolverMetricsMBean {
+	/**
+	 * @return The tier being solved (or -1 if the solver doesn't use tiers)
+	 */
+	public int getTier();
+
+	/**
+	 * @return The number of positions solved so far
+	 */
+	public long getPositions();
+
+	/**
+	 * @return The number of positions the solve will cover
+	 */
+	public long getTotalPositions();
+
+	/**
+	 * @return Positions solved per second since the current tier began
+	 */
+	public double getTierPositionsPerSecond();
+
+	/**
+	 * @return Child records read per second since the solve began
+	 */
+	public double getChildReadsPerSecond();
+
+	/**
+	 * @return The fraction of TierCache child lookups found in the cache
+	 */
+	public double getTierCacheHitRate();
+
+	/**
+	 * @return The fraction of RecordRangeCache lookups within its range
+	 */
+	public double getRecordRangeCacheHitRate();
+
+	/**
+	 * @return Bytes read from the solver's database
+	 */
+	public long getBytesRead();
+
+	/**
+	 * @return Bytes written to the solver's database
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * @return The fraction of the solver threads' time spent working
+	 */
+	public double getBusyFraction();
+
+	/**
+	 * @return The estimated milliseconds until the solve finishes (or -1 if
+	 *         unknown)
+	 */
+	public long getEtaMillis();
+}
@@ -0,0 +1,97 @@
+package edu.berkeley.gamesman.solver;
+
+import edu.berkeley.gamesman.database.DatabaseLogic;
+
+/**
+ * Divides a range of hashes among a fixed number of workers. Each worker takes
+ * small chunks from the front of its own range. Once its range is empty, it
+ * steals the back half of whichever range has the most hashes left. This
+ * keeps every worker busy until the very end of a tier even when some parts of
+ * the tier are much slower to solve than others.
+ */
+class StealingRanges {
+	private final long[] next, end;
+	private final long chunkSize;
+	private final DatabaseLogic logic;
+	private int steals = 0;
+
+	/**
+	 * @param splits
+	 *            The initial boundaries of the workers' ranges (there will be
+	 *            splits.length - 1 workers)
+	 * @param chunkSize
+	 *            The number of hashes a worker solves at a time
+	 * @param logic
+	 *            The database logic (boundaries are kept group-aligned so no
+	 *            two chunks write to the same group)
+	 */
+	StealingRanges(long[] splits, long chunkSize, DatabaseLogic logic) {
+		next = new long[splits.length - 1];
+		end = new long[splits.length - 1];
+		for (int i = 0; i < next.length; i++) {
+			next[i] = splits[i];
+			end[i] = splits[i + 1];
+		}
+		this.chunkSize = Math.max(1L, chunkSize);
+		this.logic = logic;
+	}
+
+	private long align(long hash) {
+		return hash - logic.getGroupOffset(hash);
+	}
+
+	/**
+	 * Claims the next chunk for a worker, stealing if necessary
+	 *
+	 * @param worker
+	 *            The worker's index
+	 * @param chunk
+	 *            An array of length 2 to store the first hash and number of
+	 *            hashes in the chunk
+	 * @return false if there is nothing left to solve
+	 */
+	synchronized boolean nextChunk(int worker, long[] chunk) {
+		if (next[worker] == end[worker] && !steal(worker))
+			return false;
+		long first = next[worker];
+		long last = align(first + chunkSize);
+		if (last <= first || last > end[worker])
+			last = end[worker];
+		next[worker] = last;
+		chunk[0] = first;
+		chunk[1] = last - first;
+		return true;
+	}
+
+	private boolean steal(int thief) {
+		int victim = -1;
+		long mostLeft = 0L;
+		for (int i = 0; i < next.length; i++) {
+			long left = end[i] - next[i];
+			if (left > mostLeft) {
+				mostLeft = left;
+				victim = i;
+			}
+		}
+		if (victim < 0)
+			return false;
+		long mid = next[victim];
+		if (mostLeft >= 2 * chunkSize) {
+			mid = align(next[victim] + mostLeft / 2);
+			if (mid <= next[victim])
+				mid = next[victim];
+		}
+		next[thief] = mid;
+		end[thief] = end[victim];
+		end[victim] = mid;
+		steals++;
+		return true;
+	}
+
+	/**
+	 * @return The number of times a worker has stolen from another
+	 */
+	synchronized int getSteals() {
+		return steals;
+	}
+}
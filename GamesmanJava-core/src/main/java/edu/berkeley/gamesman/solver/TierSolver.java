@@ -1,7 +1,12 @@
 package edu.berkeley.gamesman.solver;
 
 import java.io.IOException;
+import java.util.LinkedList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
@@ -20,7 +25,20 @@ import edu.berkeley.gamesman.util.qll.Pool;
  * A tier solver solves a TierGame by taking advantage of its tier structure. It
  * solves each tier in sequence starting from the highest-indexed tier and
  * working backwards to the beginning of the game. This solver is particularly
- * useful because of how easily it can be parallelized.
+ * useful because of how easily it can be parallelized.<br />
+ * With gamesman.solver.stealing=true, each tier is instead divided into one
+ * range per thread and threads which run out of work steal half of the largest
+ * remaining range (see StealingRanges). After each tier, the fraction of the
+ * available thread time actually spent solving is printed.<br />
+ * With gamesman.solver.overlap=true (and without stealing), there is no
+ * barrier between tiers. Each split advances a watermark as it writes (see
+ * TierWatermarks) and a split of the next tier starts solving as soon as the
+ * prefix of the previous tier containing all its children (as bounded by
+ * TierGame.childHashLimit) has been written.<br />
+ * With gamesman.solver.write.behind set to a number of bytes, each task
+ * collects its records in buffers of that size which are written by a single
+ * background I/O thread (see WriteBehind). At most
+ * gamesman.solver.write.behind.depth buffers per task are queued at once.
  * 
  * @author DNSpies
  */
@@ -39,20 +57,86 @@ public class TierSolver extends Solver {
 		private Record currentValue;
 		protected TierState[] childStates;
 		protected Record[] childRecords;
+		protected long[] childHashes, childRecordLongs;
+		private final CountDownLatch finished;
+		private final TierWatermarks myWatermarks, childWatermarks;
+		private final TierProgress myProgress;
+		private WriteBehind writeBehind;
 
 		public TierSolveTask(long firstRecordIndex, long numRecords) {
 			this.firstRecordIndex = firstRecordIndex;
 			this.numRecords = numRecords;
 			myReadHandle = db.getHandle(true);
 			myWriteHandle = db.getHandle(false);
+			finished = tasksFinished;
+			myProgress = tierProgress;
+			myWatermarks = watermarks;
+			childWatermarks = prevWatermarks;
 		}
 
 		@Override
 		public final void run() {
+			solve();
+			finished.countDown();
+		}
+
+		/**
+		 * Prepares, solves and cleans up after this task (without counting it
+		 * as a finished split)
+		 */
+		public final void solve() {
+			long startTime = System.nanoTime();
 			prepareSolve();
+			startTime += awaitChildren();
 			solvePartialTier();
+			if (writeBehind != null)
+				writeBehind.flush();
+			markWritten(firstRecordIndex + numRecords);
 			confPool.release(conf);
-			tasksFinished.countDown();
+			busyNanos.addAndGet(System.nanoTime() - startTime);
+		}
+
+		/**
+		 * When overlapping tiers, waits until all the children of this task's
+		 * positions have been written
+		 * 
+		 * @return The number of nanoseconds spent waiting
+		 */
+		private long awaitChildren() {
+			if (childWatermarks == null)
+				return 0L;
+			int tier = currentState.tier;
+			long tierOffset = myGame.hashOffsetForTier(tier);
+			long childOffset = myGame.hashOffsetForTier(tier + 1);
+			long limit = myGame.childHashLimit(tier, firstRecordIndex
+					- tierOffset, numRecords);
+			myGame.setState(currentState);
+			// The last group of this task may be shared with the first group
+			// of the next tier, which must be written before it's merged
+			if (db.myLogic.isGrouped())
+				limit = Math.max(limit, db.myLogic.recordsPerGroup);
+			long waitStart = System.nanoTime();
+			try {
+				childWatermarks.awaitWritten(childOffset + limit);
+			} catch (InterruptedException e) {
+				throw new Error(e);
+			}
+			long waited = System.nanoTime() - waitStart;
+			metrics.addWaitTime(waited);
+			return waited;
+		}
+
+		/**
+		 * Records that every position before writtenEnd has been written to
+		 * the database (so that tasks from the previous tier waiting on them
+		 * may start)
+		 * 
+		 * @param writtenEnd
+		 *            The end of the written range
+		 */
+		protected final void markWritten(long writtenEnd) {
+			if (myWatermarks != null)
+				myWatermarks.advance(firstRecordIndex, writtenEnd);
 		}
 
 		public void prepareSolve() {
@@ -63,6 +147,14 @@ public class TierSolver extends Solver {
 			currentValue = myGame.newRecord();
 			childStates = myGame.newStateArray(myGame.maxChildren());
 			childRecords = myGame.newRecordArray(myGame.maxChildren());
+			childHashes = new long[myGame.maxChildren()];
+			childRecordLongs = new long[myGame.maxChildren()];
+			if (writeBehindBytes > 0 && usesStore()) {
+				writeBehind = new WriteBehind(db, getIOThread(),
+						writeBehindDepth + 1, writeBehindBytes,
+						firstRecordIndex, numRecords, myWatermarks);
+				return;
+			}
 			try {
 				db.prepareWriteRecordRange(myWriteHandle, firstRecordIndex,
 						numRecords);
@@ -71,6 +163,14 @@ public class TierSolver extends Solver {
 			}
 		}
 
+		/**
+		 * @return Whether records are written with this class's store method
+		 *         (which is where the write-behind buffer is used)
+		 */
+		protected boolean usesStore() {
+			return true;
+		}
+
 		/**
 		 * Solves the prepared portion of the game. This method contains the
 		 * "main" for loop for a tier solve. Anything calling this method need
@@ -81,9 +181,11 @@ public class TierSolver extends Solver {
 			long hash = firstRecordIndex;
 			int lastCount = (int) (firstRecordIndex % stepSize);
 			int modCount = lastCount;
+			int unreported = 0;
+			long children = 0L;
 			for (long trial = 0; trial < numRecords; trial++) {
 				if (modCount == stepSize) {
-					addFinished(modCount - lastCount);
+					myProgress.addFinished(modCount - lastCount);
 					modCount = 0;
 					lastCount = 0;
 				}
@@ -91,6 +193,7 @@ public class TierSolver extends Solver {
 				Value v = myGame.primitiveValue();
 				if (v == Value.UNDECIDED) {
 					int numChildren = fetchChildren(currentValue);
+					children += numChildren;
 					currentValue.set(combineChildren(numChildren));
 					store(hash, currentValue);
 				} else {
@@ -102,8 +205,14 @@ public class TierSolver extends Solver {
 					myGame.nextHashInTier();
 				hash++;
 				modCount++;
+				if (++unreported == METRICS_STEP) {
+					metrics.addPositions(unreported, children);
+					unreported = 0;
+					children = 0L;
+				}
 			}
-			addFinished(modCount - lastCount);
+			myProgress.addFinished(modCount - lastCount);
+			metrics.addPositions(unreported, children);
 		}
 
 		/**
@@ -116,16 +225,17 @@ public class TierSolver extends Solver {
 		 */
 		protected int fetchChildren(Record currentValue) {
 			int numChildren = myGame.validMoves(childStates);
-			for (int i = 0; i < numChildren; i++) {
-				try {
-					long recordLong = db.readRecord(myReadHandle,
-							myGame.stateToHash(childStates[i]));
-					myGame.longToRecord(childStates[i], recordLong,
-							childRecords[i]);
-				} catch (IOException e) {
-					throw new Error(e);
-				}
+			for (int i = 0; i < numChildren; i++)
+				childHashes[i] = myGame.stateToHash(childStates[i]);
+			try {
+				db.readRecords(myReadHandle, childHashes, numChildren,
+						childRecordLongs);
+			} catch (IOException e) {
+				throw new Error(e);
 			}
+			for (int i = 0; i < numChildren; i++)
+				myGame.longToRecord(childStates[i], childRecordLongs[i],
+						childRecords[i]);
 			return numChildren;
 		}
 
@@ -148,6 +258,10 @@ public class TierSolver extends Solver {
 
 		protected void store(long recordIndex, Record currentValue) {
 			long recordNum = myGame.recordToLong(currentValue);
+			if (writeBehind != null) {
+				writeBehind.write(recordIndex, recordNum);
+				return;
+			}
 			try {
 				db.writeNextRecord(myWriteHandle, recordNum);
 			} catch (IOException e) {
@@ -157,6 +271,63 @@ public class TierSolver extends Solver {
 
 	}
 
+	/**
+	 * Solves chunks of a tier (stealing from other workers when its own range
+	 * runs out) until the entire tier has been claimed
+	 */
+	private class StealingWorker implements Runnable {
+		private final int worker;
+		private final StealingRanges ranges;
+		private final CountDownLatch finished;
+
+		private StealingWorker(int worker, StealingRanges ranges,
+				CountDownLatch finished) {
+			this.worker = worker;
+			this.ranges = ranges;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			long[] chunk = new long[2];
+			while (ranges.nextChunk(worker, chunk))
+				getSolveTask(chunk[0], chunk[1]).solve();
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Counts the positions solved in one tier. Each task reports to the tier
+	 * it was made for, since with overlapping tiers a task may still be
+	 * finishing a tier after the next one has started.
+	 */
+	private final class TierProgress {
+		private final int tier;
+		private final long numHashes;
+		private final AtomicLong finished = new AtomicLong(0L);
+
+		private TierProgress(int tier, long numHashes) {
+			this.tier = tier;
+			this.numHashes = numHashes;
+		}
+
+		private void addFinished(long hashes) {
+			long recordsFinished = finished.addAndGet(hashes);
+			Util.debug(DebugFacility.SOLVER, (wholeGame ? "Tier " + tier
+					+ " " : "")
+					+ recordsFinished * 10000 / numHashes / 100F
+					+ "% complete");
+			if (progress != null)
+				synchronized (progress) {
+					progress.progress();
+				}
+		}
+	}
+
+	/**
+	 * The number of positions each task solves between adding to the metrics
+	 */
+	private static final int METRICS_STEP = 1 << 12;
 	protected final long minSplitSize;
 	protected int currentTier;
 	protected TierGame myGame;
@@ -179,9 +350,20 @@ public class TierSolver extends Solver {
 	private long numHashes;
 	private final boolean wholeGame;
 	private final Progressable progress;
-	private volatile long recordsFinished;
+	private TierProgress tierProgress;
 	protected final int minSplits;
 	protected final long preferredSplitSize;
+	private final boolean stealing;
+	private StealingRanges ranges;
+	private final AtomicLong busyNanos = new AtomicLong(0L);
+	private long tierStartTime = -1L;
+	private final boolean overlap;
+	private TierWatermarks watermarks, prevWatermarks;
+	private final LinkedList<CountDownLatch> overlappedTiers =
+			new LinkedList<CountDownLatch>();
+	private final long writeBehindBytes;
+	private final int writeBehindDepth;
+	private ExecutorService ioThread;
 
 	public TierSolver(Configuration conf, Database db) {
 		super(conf, db);
@@ -193,21 +375,16 @@ public class TierSolver extends Solver {
 				DEFAULT_MIN_SPLIT_SIZE);
 		preferredSplitSize = conf.getLong("gamesman.preferred.split.size",
 				DEFAULT_PREFERRED_SPLIT_SIZE);
+		stealing = conf.getBoolean("gamesman.solver.stealing", false);
+		overlap = !stealing
+				&& conf.getBoolean("gamesman.solver.overlap", false);
+		writeBehindBytes = conf.getNumBytes("gamesman.solver.write.behind", 0L);
+		writeBehindDepth = conf.getInteger("gamesman.solver.write.behind.depth",
+				2);
 		wholeGame = true;
 		progress = null;
 	}
 
-	private void addFinished(long hashes) {
-		recordsFinished += hashes;
-		Util.debug(DebugFacility.SOLVER, (wholeGame ? "Tier " + currentTier
-				+ " " : "")
-				+ recordsFinished * 10000 / numHashes / 100F + "% complete");
-		if (progress != null)
-			synchronized (progress) {
-				progress.progress();
-			}
-	}
-
 	/**
 	 * To be used for solving a small range and not the entire game
 	 * 
@@ -235,22 +412,38 @@ public class TierSolver extends Solver {
 				DEFAULT_MIN_SPLIT_SIZE);
 		preferredSplitSize = conf.getLong("gamesman.preferred.split.size",
 				DEFAULT_PREFERRED_SPLIT_SIZE);
+		stealing = conf.getBoolean("gamesman.solver.stealing", false);
+		overlap = false;
+		writeBehindBytes = conf.getNumBytes("gamesman.solver.write.behind", 0L);
+		writeBehindDepth = conf.getInteger("gamesman.solver.write.behind.depth",
+				2);
 		this.firstHash = firstHash;
 		this.numHashes = numHashes;
 		wholeGame = false;
-		splits = Util.getSplits(firstHash, numHashes, minSplitSize, minSplits,
-				preferredSplitSize);
+		splits = makeSplits(firstHash, numHashes);
 		currentSplit = 0;
+		tierStartTime = System.nanoTime();
 		tasksFinished = new CountDownLatch(splits.length - 1);
 		this.progress = progress;
+		tierProgress = new TierProgress(tier, numHashes);
+		metrics.setTotalPositions(numHashes);
+		metrics.startTier(tier, numHashes);
 	}
 
 	@Override
 	public Runnable nextAvailableJob() throws InterruptedException {
 		if (currentSplit >= splits.length - 1) {
-			if (currentTier == 0 || !wholeGame)
+			if (currentTier == 0 || !wholeGame) {
+				if (tierStartTime >= 0) {
+					while (!overlappedTiers.isEmpty())
+						overlappedTiers.remove().await();
+					tasksFinished.await();
+					reportTier();
+				}
 				return null;
-			tasksFinished.await();
+			}
+			if (!overlap)
+				tasksFinished.await();
 			decrTier();
 		}
 		return nextJob();
@@ -260,7 +453,66 @@ public class TierSolver extends Solver {
 		long firstRecordIndex = splits[currentSplit], numRecords = splits[currentSplit + 1]
 				- firstRecordIndex;
 		currentSplit++;
-		return getSolveTask(firstRecordIndex, numRecords);
+		if (stealing)
+			return new StealingWorker(currentSplit - 1, ranges, tasksFinished);
+		else
+			return getSolveTask(firstRecordIndex, numRecords);
+	}
+
+	/**
+	 * @param firstHash
+	 *            The first hash in the tier (or range)
+	 * @param numHashes
+	 *            The number of hashes in the tier (or range)
+	 * @return The boundaries of the splits (for stealing, one range per
+	 *         thread)
+	 */
+	private long[] makeSplits(long firstHash, long numHashes) {
+		if (stealing) {
+			long[] workerSplits = db.myLogic.alignSplits(Util.getSplits(
+					firstHash, numHashes, minSplitSize, nThreads,
+					Long.MAX_VALUE));
+			long chunkSize = Math.max(minSplitSize, Math.min(
+					preferredSplitSize, numHashes / (nThreads * 16L)));
+			ranges = new StealingRanges(workerSplits, chunkSize, db.myLogic);
+			return workerSplits;
+		} else
+			return db.myLogic.alignSplits(Util.getSplits(firstHash,
+					numHashes, minSplitSize, minSplits, preferredSplitSize));
+	}
+
+	/**
+	 * Prints how long the last tier took and what fraction of the threads'
+	 * time was spent solving (the rest was spent idle at the end of the tier)
+	 */
+	private void reportTier() {
+		long wallTime = Math.max(1L, System.nanoTime() - tierStartTime);
+		long busyTime = busyNanos.getAndSet(0L);
+		System.out.println((overlap ? "Tiers " + currentTier + "-"
+				+ (myGame.numberOfTiers() - 1) : "Tier " + currentTier)
+				+ " took "
+				+ Util.millisToETA(wallTime / 1000000) + " at "
+				+ busyTime * 100 / (wallTime * nThreads)
+				+ "% core utilization"
+				+ (stealing ? " (" + ranges.getSteals() + " steals)" : ""));
+	}
+
+	/**
+	 * @return The thread which writes all the tasks' write-behind buffers (it
+	 *         is a daemon since every task waits for its writes to finish)
+	 */
+	private synchronized ExecutorService getIOThread() {
+		if (ioThread == null) {
+			ioThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Write-behind");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return ioThread;
 	}
 
 	protected TierSolveTask getSolveTask(long firstRecordIndex, long numRecords) {
@@ -268,14 +520,28 @@ public class TierSolver extends Solver {
 	}
 
 	protected void decrTier() {
+		if (overlap) {
+			// The tiers are only timed as a whole since they run concurrently
+			if (tierStartTime < 0)
+				tierStartTime = System.nanoTime();
+			overlappedTiers.add(tasksFinished);
+		} else {
+			if (tierStartTime >= 0)
+				reportTier();
+			tierStartTime = System.nanoTime();
+		}
 		currentTier--;
 		System.out.println("Solving tier " + currentTier);
 		currentSplit = 0;
 		firstHash = myGame.hashOffsetForTier(currentTier);
 		numHashes = myGame.numHashesForTier(currentTier);
-		recordsFinished = 0L;
-		splits = Util.getSplits(firstHash, numHashes, minSplitSize, minSplits,
-				preferredSplitSize);
+		metrics.startTier(currentTier, numHashes);
+		tierProgress = new TierProgress(currentTier, numHashes);
+		splits = makeSplits(firstHash, numHashes);
 		tasksFinished = new CountDownLatch(splits.length - 1);
+		if (overlap) {
+			prevWatermarks = watermarks;
+			watermarks = new TierWatermarks(splits);
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+package edu.berkeley.gamesman.solver;
+
+import java.util.Arrays;
+
+/**
+ * Tracks how much of each split of a tier has been written to the database.
+ * Every split has a watermark (the first hash in the split which may not have
+ * been written yet) which is only ever moved forward by the task solving that
+ * split. Tasks in the previous tier wait on the prefix of the tier which is
+ * entirely written to cover all the children they will read.
+ */
+class TierWatermarks {
+	private final long[] splits;
+	private final long[] watermarks;
+	private int firstUnfinished = 0;
+
+	/**
+	 * @param splits
+	 *            The boundaries of the splits of the tier
+	 */
+	TierWatermarks(long[] splits) {
+		this.splits = splits;
+		watermarks = new long[splits.length - 1];
+		for (int i = 0; i < watermarks.length; i++)
+			watermarks[i] = splits[i];
+		skipFinished();
+	}
+
+	/**
+	 * Records that a split has been written up to (but not including) a hash
+	 *
+	 * @param splitStart
+	 *            The first hash of the split
+	 * @param writtenEnd
+	 *            The end of the written part of the split
+	 */
+	synchronized void advance(long splitStart, long writtenEnd) {
+		int split = Arrays.binarySearch(splits, splitStart);
+		assert split >= 0 && split < watermarks.length;
+		assert writtenEnd <= splits[split + 1];
+		if (writtenEnd > watermarks[split]) {
+			watermarks[split] = writtenEnd;
+			if (split == firstUnfinished) {
+				skipFinished();
+				notifyAll();
+			}
+		}
+	}
+
+	private void skipFinished() {
+		while (firstUnfinished < watermarks.length
+				&& watermarks[firstUnfinished] == splits[firstUnfinished + 1])
+			firstUnfinished++;
+	}
+
+	/**
+	 * @return The first hash of the tier which may not have been written yet
+	 *         (every hash before it has been)
+	 */
+	synchronized long writtenPrefix() {
+		if (firstUnfinished == watermarks.length)
+			return splits[splits.length - 1];
+		else
+			return watermarks[firstUnfinished];
+	}
+
+	/**
+	 * Blocks until every hash before end has been written
+	 *
+	 * @param end
+	 *            The end of the range which must be written (this is clipped
+	 *            to the end of the tier)
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while waiting
+	 */
+	synchronized void awaitWritten(long end) throws InterruptedException {
+		end = Math.min(end, splits[splits.length - 1]);
+		while (writtenPrefix() < end)
+			wait();
+	}
+}
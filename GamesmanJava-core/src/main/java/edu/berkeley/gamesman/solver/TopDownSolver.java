@@ -1,6 +1,9 @@
 package edu.berkeley.gamesman.solver;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
 
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
@@ -8,20 +11,44 @@ import edu.berkeley.gamesman.core.State;
 import edu.berkeley.gamesman.core.Value;
 import edu.berkeley.gamesman.database.Database;
 import edu.berkeley.gamesman.database.DatabaseHandle;
-import edu.berkeley.gamesman.game.Game;
 import edu.berkeley.gamesman.game.TopDownGame;
 import edu.berkeley.gamesman.game.TopDownMutaGame;
 import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Util;
+import edu.berkeley.gamesman.util.qll.Factory;
+import edu.berkeley.gamesman.util.qll.Pool;
 
 /**
- * A solver for top-down mutable games
+ * A solver for top-down mutable games<br />
+ * With more than one thread, the positions gamesman.solver.split.depth moves
+ * from the start (default 4) are each solved as a separate job by whichever
+ * thread is free. The threads share a lock-free table of solved positions
+ * (with room for gamesman.solver.table.entries records) in front of the
+ * database. Once every job is done, the positions above the split depth are
+ * solved from the starting positions as usual.
  * 
  * @author dnspies
  */
 public class TopDownSolver<S extends State<S>> extends Solver {
 	private boolean askedJob = false;
 	private final boolean debugSolver;
+	private final int splitDepth;
+	private final TranspositionTable table;
+	private long[] frontier;
+	private int nextFrontier;
+	private CountDownLatch frontierSolved;
+	private final Pool<TopDownMutaGame> gamePool = new Pool<TopDownMutaGame>(
+			new Factory<TopDownMutaGame>() {
+
+				@Override
+				public TopDownMutaGame newObject() {
+					return getGame(conf.cloneAll());
+				}
+
+				@Override
+				public void reset(TopDownMutaGame t) {
+				}
+			});
 
 	/**
 	 * The default constructor
@@ -32,26 +59,49 @@ public class TopDownSolver<S extends State<S>> extends Solver {
 	public TopDownSolver(final Configuration conf, Database db) {
 		super(conf, db);
 		debugSolver = Util.debug(DebugFacility.SOLVER);
+		splitDepth = conf.getInteger("gamesman.solver.split.depth", 4);
+		if (nThreads > 1)
+			table = new TranspositionTable(conf.getInteger(
+					"gamesman.solver.table.entries", 1 << 20));
+		else
+			table = null;
+	}
+
+	private TopDownMutaGame getGame(Configuration conf) {
+		if (conf.getGame() instanceof TopDownMutaGame) {
+			return (TopDownMutaGame) conf.getGame();
+		} else {
+			return new TopDownGame<S>(conf.<S> getCheckedGame());
+		}
+	}
+
+	private void fillUndecided(TopDownMutaGame game) {
+		Record defaultRecord = game.newRecord();
+		defaultRecord.value = Value.UNDECIDED;
+		try {
+			db.fill(db.getHandle(false), game.recordToLong(defaultRecord));
+		} catch (IOException e) {
+			throw new Error(e);
+		}
 	}
 
 	public class TopDownSolveTask implements Runnable {
+		private final boolean fill;
+
+		public TopDownSolveTask() {
+			this(true);
+		}
+
+		private TopDownSolveTask(boolean fill) {
+			this.fill = fill;
+		}
+
 		public void run() {
-			Game<S> g = conf.<S> getCheckedGame();
-			TopDownMutaGame game;
-			if (conf.getGame() instanceof TopDownMutaGame) {
-				game = (TopDownMutaGame) conf.getGame();
-			} else {
-				game = wrapGame(g);
-			}
-			Record defaultRecord = game.newRecord();
-			defaultRecord.value = Value.UNDECIDED;
+			TopDownMutaGame game = getGame(conf);
+			if (fill)
+				fillUndecided(game);
 			DatabaseHandle readHandle = db.getHandle(true);
 			DatabaseHandle writeHandle = db.getHandle(false);
-			try {
-				db.fill(writeHandle, game.recordToLong(defaultRecord));
-			} catch (IOException e) {
-				throw new Error(e);
-			}
 			for (int startNum = 0; startNum < game.numStartingPositions(); startNum++) {
 				game.setStartingPosition(startNum);
 				long currentTimeMillis = System.currentTimeMillis();
@@ -61,67 +111,152 @@ public class TopDownSolver<S extends State<S>> extends Solver {
 						+ " time to complete");
 			}
 		}
+	}
 
-		private TopDownMutaGame wrapGame(Game<S> g) {
-			return new TopDownGame<S>(g);
+	/**
+	 * Solves the subtree below a single position at the split depth
+	 */
+	private class SubtreeTask implements Runnable {
+		private final long hash;
+
+		private SubtreeTask(long hash) {
+			this.hash = hash;
 		}
 
-		private void solve(TopDownMutaGame game, Record value, int depth,
-				DatabaseHandle readDh, DatabaseHandle writeDh) {
-			if (depth < 3 && debugSolver) {
-				if (Util.debug(DebugFacility.SOLVER)) {
-					System.out.println(game.displayState());
-				}
-			}
-			long hash = game.getHash();
-			try {
-				game.longToRecord(db.readRecord(readDh, hash), value);
-			} catch (IOException e) {
-				throw new Error(e);
-			}
-			if (value.value != Value.UNDECIDED)
-				return;
-			Value pv = game.primitiveValue();
-			switch (pv) {
-			case UNDECIDED:
-				Record bestRecord = game.getPoolRecord();
-				bestRecord.value = Value.UNDECIDED;
-				int numChildren = game.makeMove();
-				for (int child = 0; child < numChildren; child++) {
-					solve(game, value, depth + 1, readDh, writeDh);
-					value.previousPosition();
-					if (bestRecord.value == Value.UNDECIDED
-							|| value.compareTo(bestRecord) > 0)
-						bestRecord.set(value);
-					game.changeMove();
-				}
-				if (numChildren > 0)
-					game.undoMove();
-				value.set(bestRecord);
-				game.release(bestRecord);
-				break;
-			case IMPOSSIBLE:
-				throw new Error(
-						"Top-down solve should not reach impossible positions");
-			default:
-				value.value = pv;
-				value.remoteness = 0;
+		@Override
+		public void run() {
+			TopDownMutaGame game = gamePool.get();
+			game.setToHash(hash);
+			solve(game, game.newRecord(), splitDepth, db.getHandle(true),
+					db.getHandle(false));
+			gamePool.release(game);
+			frontierSolved.countDown();
+		}
+	}
+
+	private void solve(TopDownMutaGame game, Record value, int depth,
+			DatabaseHandle readDh, DatabaseHandle writeDh) {
+		if (depth < 3 && debugSolver) {
+			if (Util.debug(DebugFacility.SOLVER)) {
+				System.out.println(game.displayState());
 			}
-			try {
-				db.writeRecord(writeDh, hash, game.recordToLong(value));
-			} catch (IOException e) {
-				throw new Error(e);
+		}
+		long hash = game.getHash();
+		try {
+			game.longToRecord(readRecord(readDh, hash), value);
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+		if (value.value != Value.UNDECIDED)
+			return;
+		Value pv = game.primitiveValue();
+		switch (pv) {
+		case UNDECIDED:
+			Record bestRecord = game.getPoolRecord();
+			bestRecord.value = Value.UNDECIDED;
+			int numChildren = game.makeMove();
+			for (int child = 0; child < numChildren; child++) {
+				solve(game, value, depth + 1, readDh, writeDh);
+				value.previousPosition();
+				if (bestRecord.value == Value.UNDECIDED
+						|| value.compareTo(bestRecord) > 0)
+					bestRecord.set(value);
+				game.changeMove();
 			}
+			if (numChildren > 0)
+				game.undoMove();
+			value.set(bestRecord);
+			game.release(bestRecord);
+			break;
+		case IMPOSSIBLE:
+			throw new Error(
+					"Top-down solve should not reach impossible positions");
+		default:
+			value.value = pv;
+			value.remoteness = 0;
+		}
+		try {
+			writeRecord(writeDh, hash, game.recordToLong(value));
+		} catch (IOException e) {
+			throw new Error(e);
 		}
 	}
 
+	private long readRecord(DatabaseHandle dh, long hash) throws IOException {
+		if (table != null) {
+			long record = table.get(hash);
+			if (record >= 0)
+				return record;
+		}
+		return db.readRecord(dh, hash);
+	}
+
+	private void writeRecord(DatabaseHandle dh, long hash, long record)
+			throws IOException {
+		db.writeRecord(dh, hash, record);
+		if (table != null)
+			table.put(hash, record);
+	}
+
+	/**
+	 * Finds every distinct non-primitive position splitDepth moves from one of
+	 * the starting positions
+	 */
+	private long[] findFrontier(TopDownMutaGame game) {
+		HashSet<Long> seen = new HashSet<Long>();
+		ArrayList<Long> positions = new ArrayList<Long>();
+		for (int startNum = 0; startNum < game.numStartingPositions(); startNum++) {
+			game.setStartingPosition(startNum);
+			addFrontier(game, 0, seen, positions);
+		}
+		long[] result = new long[positions.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = positions.get(i);
+		return result;
+	}
+
+	private void addFrontier(TopDownMutaGame game, int depth,
+			HashSet<Long> seen, ArrayList<Long> positions) {
+		if (game.primitiveValue() != Value.UNDECIDED)
+			return;
+		if (depth == splitDepth) {
+			if (seen.add(game.getHash()))
+				positions.add(game.getHash());
+			return;
+		}
+		int numChildren = game.makeMove();
+		for (int child = 0; child < numChildren; child++) {
+			addFrontier(game, depth + 1, seen, positions);
+			game.changeMove();
+		}
+		if (numChildren > 0)
+			game.undoMove();
+	}
+
 	@Override
-	public Runnable nextAvailableJob() {
-		if (askedJob) {
-			return null;
-		} else {
-			askedJob = true;
-			return new TopDownSolveTask();
+	public Runnable nextAvailableJob() throws InterruptedException {
+		if (table == null) {
+			if (askedJob) {
+				return null;
+			} else {
+				askedJob = true;
+				return new TopDownSolveTask();
+			}
+		}
+		if (frontier == null) {
+			TopDownMutaGame game = getGame(conf);
+			fillUndecided(game);
+			frontier = findFrontier(game);
+			frontierSolved = new CountDownLatch(frontier.length);
+			System.out.println("Solving " + frontier.length
+					+ " positions at depth " + splitDepth + " in parallel");
 		}
+		if (nextFrontier < frontier.length)
+			return new SubtreeTask(frontier[nextFrontier++]);
+		else if (askedJob)
+			return null;
+		frontierSolved.await();
+		askedJob = true;
+		return new TopDownSolveTask(false);
 	}
 }
@@ -0,0 +1,97 @@
+package edu.berkeley.gamesman.solver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size hash table of solved records shared by all the threads of a
+ * top-down solve. Slots are claimed with compareAndSet so lookups and
+ * insertions never lock. Each hash probes a few consecutive slots; if they are
+ * all taken by other hashes the record simply isn't cached (the database
+ * always has it).
+ */
+class TranspositionTable {
+	private static final int PROBES = 8;
+	// entries[2 * slot] is hash + 1 and entries[2 * slot + 1] is record + 1
+	// (0 means empty in both cases)
+	private final AtomicLongArray entries;
+	private final int mask;
+	private final int shift;
+
+	/**
+	 * @param capacity
+	 *            The number of records to make room for (rounded up to a power
+	 *            of 2)
+	 */
+	TranspositionTable(int capacity) {
+		int bits = 1;
+		while (bits < 30 && (1 << bits) < capacity)
+			bits++;
+		entries = new AtomicLongArray(2 << bits);
+		mask = (1 << bits) - 1;
+		shift = 64 - bits;
+	}
+
+	/**
+	 * @return The first slot hash probes
+	 */
+	int slot(long hash) {
+		return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	/**
+	 * @param hash
+	 *            The hash of a position
+	 * @return The record for that position or -1 if it isn't in the table
+	 */
+	long get(long hash) {
+		long key = hash + 1;
+		int slot = slot(hash);
+		for (int i = 0; i < PROBES; i++) {
+			long k = entries.get(2 * slot);
+			if (k == key)
+				return entries.get(2 * slot + 1) - 1;
+			else if (k == 0)
+				return -1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds a solved record to the table (if there's room)
+	 *
+	 * @param hash
+	 *            The hash of the position
+	 * @param record
+	 *            Its record (which must not be negative)
+	 */
+	void put(long hash, long record) {
+		int slot = claim(hash);
+		if (slot >= 0)
+			entries.set(2 * slot + 1, record + 1);
+	}
+
+	/**
+	 * Finds the slot holding hash or claims an empty one for it. Until put
+	 * sets the record, get treats a claimed slot as missing.
+	 *
+	 * @param hash
+	 *            The hash of the position
+	 * @return The slot or -1 if every slot hash probes holds another hash
+	 */
+	int claim(long hash) {
+		long key = hash + 1;
+		int slot = slot(hash);
+		for (int i = 0; i < PROBES; i++) {
+			long k = entries.get(2 * slot);
+			if (k == 0 && entries.compareAndSet(2 * slot, 0, key))
+				k = key;
+			else if (k == 0)
+				k = entries.get(2 * slot);
+			if (k == key)
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+}
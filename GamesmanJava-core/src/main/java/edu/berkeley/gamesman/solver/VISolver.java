@@ -157,6 +157,10 @@ public class VISolver extends Solver {
 		 * 
 		 */
 		protected final long[] childHashes;
+		/**
+		 * The records read for childHashes (before conversion)
+		 */
+		protected final long[] childRecordLongs;
 		/**
 		 * 
 		 */
@@ -187,6 +191,7 @@ public class VISolver extends Solver {
 			this.firstIndex = firstIndex;
 			this.numIndices = numIndices;
 			this.childHashes = new long[maxChildren];
+			this.childRecordLongs = new long[maxChildren];
 		}
 
 		@Override
@@ -257,15 +262,15 @@ public class VISolver extends Solver {
 		 */
 		protected int fetchChildren() {
 			int numMoves = myGame.validMoves(childHashes);
+			try {
+				db.readRecords(readHandle, childHashes, numMoves,
+						childRecordLongs);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
 			for (int i = 0; i < numMoves; i++) {
-				try {
-					myGame.longToRecord(
-							db.readRecord(readHandle, childHashes[i]),
-							childRecords[i]);
-					childRecords[i].previousPosition();
-				} catch (IOException e) {
-					throw new Error(e);
-				}
+				myGame.longToRecord(childRecordLongs[i], childRecords[i]);
+				childRecords[i].previousPosition();
 			}
 			return numMoves;
 		}
@@ -0,0 +1,140 @@
+package edu.berkeley.gamesman.solver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.cache.RecordRangeCache;
+
+/**
+ * Collects the records written (in order) by a single solve task into large
+ * buffers and writes each full buffer to the database from a separate I/O
+ * thread, so the solving thread only waits on the database when every buffer
+ * is already queued for writing.
+ */
+class WriteBehind {
+	private final Database db;
+	private final DatabaseHandle dh;
+	private final ExecutorService ioThread;
+	private final BlockingQueue<RecordRangeCache> free;
+	private final int numBuffers;
+	private final long bufferRecords;
+	private final long endRecordIndex;
+	private final TierWatermarks watermarks;
+	private final long splitStart;
+	private RecordRangeCache current;
+	private volatile Throwable failure;
+
+	/**
+	 * @param db
+	 *            The database to write to
+	 * @param ioThread
+	 *            The executor which writes the buffers (it must run them in
+	 *            the order they're submitted)
+	 * @param numBuffers
+	 *            The number of buffers (one is filled while the others are
+	 *            queued or being written)
+	 * @param bufferBytes
+	 *            The size of each buffer
+	 * @param firstRecordIndex
+	 *            The first record the task will write
+	 * @param numRecords
+	 *            The number of records the task will write
+	 * @param watermarks
+	 *            The watermarks to advance as buffers are written (or null)
+	 */
+	WriteBehind(Database db, ExecutorService ioThread, int numBuffers,
+			long bufferBytes, long firstRecordIndex, long numRecords,
+			TierWatermarks watermarks) {
+		this.db = db;
+		dh = db.getHandle(false);
+		this.ioThread = ioThread;
+		this.numBuffers = numBuffers;
+		bufferRecords = Math.max(db.myLogic.recordsPerGroup,
+				db.recordsForBytes(Math.min(bufferBytes, Integer.MAX_VALUE)));
+		endRecordIndex = firstRecordIndex + numRecords;
+		this.watermarks = watermarks;
+		splitStart = firstRecordIndex;
+		free = new ArrayBlockingQueue<RecordRangeCache>(numBuffers);
+		for (int i = 0; i < numBuffers; i++)
+			free.add(new RecordRangeCache(db));
+	}
+
+	/**
+	 * Writes the next record
+	 *
+	 * @param recordIndex
+	 *            The index of the record (one more than the last one written)
+	 * @param record
+	 *            The record
+	 */
+	void write(long recordIndex, long record) {
+		if (current == null || !current.containsRecord(recordIndex)) {
+			submit();
+			current = take();
+			// Every buffer after the first starts on a group boundary so
+			// buffers never share a group
+			long numRecords = Math.min(bufferRecords
+					- db.myLogic.getGroupOffset(recordIndex), endRecordIndex
+					- recordIndex);
+			current.setRange(recordIndex, (int) numRecords);
+		}
+		current.writeRecord(recordIndex, record);
+	}
+
+	private RecordRangeCache take() {
+		checkFailure();
+		try {
+			return free.take();
+		} catch (InterruptedException e) {
+			throw new Error(e);
+		}
+	}
+
+	private void submit() {
+		if (current == null)
+			return;
+		final RecordRangeCache buffer = current;
+		current = null;
+		ioThread.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (failure == null) {
+						buffer.writeRecordsToDatabase(db, dh,
+								buffer.getFirstRecordIndex(),
+								buffer.getNumRecords());
+						if (watermarks != null)
+							watermarks.advance(splitStart,
+									buffer.getFirstRecordIndex()
+											+ buffer.getNumRecords());
+					}
+				} catch (Throwable t) {
+					failure = t;
+				} finally {
+					free.add(buffer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the current buffer and waits until every buffer has been written
+	 */
+	void flush() {
+		submit();
+		RecordRangeCache[] buffers = new RecordRangeCache[numBuffers];
+		for (int i = 0; i < numBuffers; i++)
+			buffers[i] = take();
+		for (RecordRangeCache buffer : buffers)
+			free.add(buffer);
+		checkFailure();
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new Error(failure);
+	}
+}
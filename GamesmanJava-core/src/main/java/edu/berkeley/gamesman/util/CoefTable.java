@@ -1,8 +1,15 @@
 package edu.berkeley.gamesman.util;
 
+/**
+ * A table of generalized binomial coefficients (the coefficients of (1 + x +
+ * ... + x^degree)^n, with negative n giving the coefficients of the power
+ * series for the inverse). The tables are grown under a lock but never
+ * modified once published, so lookups of already computed entries never
+ * lock.
+ */
 public class CoefTable {
-	long[][] posTable = { { 1L } };
-	long[][] negTable = new long[0][];
+	private volatile long[][] posTable = { { 1L } };
+	private volatile long[][] negTable = new long[0][];
 	final int degree;
 
 	public static void main(String[] args) {
@@ -24,70 +31,67 @@ public class CoefTable {
 	public long get(int n, int k) {
 		if (n < 0)
 			return getNeg(-n - 1, k);
-		ensureContained(n);
-		if (k < 0 || k >= posTable[n].length)
+		long[][] table = posTable;
+		if (n >= table.length)
+			table = ensureContained(n);
+		if (k < 0 || k >= table[n].length)
 			return 0;
-		return posTable[n][k];
+		return table[n][k];
 	}
 
 	private long getNeg(int n, int k) {
 		if (k < 0)
 			return 0;
-		ensureNegLength(n, k);
-		return negTable[n][k];
+		long[][] table = negTable;
+		if (n >= table.length || k >= table[n].length)
+			table = ensureNegLength(n, k);
+		return table[n][k];
 	}
 
-	private void ensureNegLength(int n, int k) {
-		if (negTable.length <= n) {
-			long[][] newNegTable = new long[n + 1][];
-			System.arraycopy(negTable, 0, newNegTable, 0, negTable.length);
-			for (int i = negTable.length; i <= n; i++) {
-				newNegTable[i] = new long[0];
-			}
-			negTable = newNegTable;
+	private static long entry(long[][] table, int n, int k) {
+		if (k < 0 || k >= table[n].length)
+			return 0;
+		return table[n][k];
+	}
+
+	private synchronized long[][] ensureNegLength(int n, int k) {
+		long[][] table = negTable;
+		if (n < table.length && k < table[n].length)
+			return table;
+		int rows = Math.max(n + 1, table.length);
+		int cols = Math.max(k + 1, table.length == 0 ? 0 : table[0].length);
+		long[][] newTable = new long[rows][cols];
+		for (int r = 0; r < cols; r++) {
+			newTable[0][r] = r == 0 ? 1 : (r == 1 ? -1 : entry(newTable, 0, r
+					- (degree + 1)));
 		}
-		if (negTable[n].length <= k) {
-			if (negTable[0].length <= k) {
-				long[] newRow = new long[k + 1];
-				System.arraycopy(negTable[0], 0, newRow, 0, negTable[0].length);
-				int r = negTable[0].length;
-				negTable[0] = newRow;
-				for (; r <= k; r++) {
-					negTable[0][r] = (r == 0 ? 1 : (r == 1 ? -1 : getNeg(0, r
-							- (degree + 1))));
-				}
-			}
-			for (int i = 1; i <= n; i++) {
-				if (negTable[i].length <= k) {
-					long[] newRow = new long[k + 1];
-					System.arraycopy(negTable[i], 0, newRow, 0,
-							negTable[i].length);
-					int r = negTable[i].length;
-					negTable[i] = newRow;
-					for (; r <= k; r++) {
-						negTable[i][r] = getNeg(i - 1, r)
-								- getNeg(i - 1, r - 1)
-								+ getNeg(i, r - (degree + 1));
-					}
-				}
+		for (int i = 1; i < rows; i++) {
+			for (int r = 0; r < cols; r++) {
+				newTable[i][r] = entry(newTable, i - 1, r)
+						- entry(newTable, i - 1, r - 1)
+						+ entry(newTable, i, r - (degree + 1));
 			}
 		}
+		negTable = newTable;
+		return newTable;
 	}
 
-	private void ensureContained(int n) {
-		if (posTable.length <= n) {
-			long[][] newTable = new long[n + 1][];
-			System.arraycopy(posTable, 0, newTable, 0, posTable.length);
-			int i = posTable.length;
-			posTable = newTable;
-			for (; i <= n; i++) {
-				int len = i * degree + 1;
-				posTable[i] = new long[len];
-				for (int k = 0; k < len; k++) {
-					posTable[i][k] = get(i - 1, k) + get(i, k - 1)
-							- get(i - 1, k - (degree + 1));
-				}
+	private synchronized long[][] ensureContained(int n) {
+		long[][] table = posTable;
+		if (n < table.length)
+			return table;
+		long[][] newTable = new long[n + 1][];
+		System.arraycopy(table, 0, newTable, 0, table.length);
+		for (int i = table.length; i <= n; i++) {
+			int len = i * degree + 1;
+			newTable[i] = new long[len];
+			for (int k = 0; k < len; k++) {
+				newTable[i][k] = entry(newTable, i - 1, k)
+						+ entry(newTable, i, k - 1)
+						- entry(newTable, i - 1, k - (degree + 1));
 			}
 		}
+		posTable = newTable;
+		return newTable;
 	}
 }
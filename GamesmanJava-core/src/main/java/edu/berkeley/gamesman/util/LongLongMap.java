@@ -0,0 +1,192 @@
+package edu.berkeley.gamesman.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from non-negative longs to longs which never boxes a key or a value,
+ * so looking up a key allocates nothing. While the keys are dense (every key
+ * is less than four times the number of keys, or less than 16) the values are
+ * kept in an array indexed by key, which takes about as much memory as a table
+ * would. Once a key breaks this the map switches to an open-addressing hash
+ * table with linear probing.
+ */
+public final class LongLongMap {
+	/**
+	 * Returned by get for keys which aren't in the map (so it can't be stored
+	 * as a value)
+	 */
+	public static final long MISSING = Long.MIN_VALUE;
+
+	private static final int MIN_DENSE = 16;
+	private static final long EMPTY_KEY = -1L;
+
+	private long[] dense;
+	private long[] keys, values;
+	private int size = 0;
+	private int expectedSize = 0;
+	private int shift;
+
+	public LongLongMap() {
+		this(0);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            The number of keys the map is expected to hold (so the table
+	 *            doesn't need to grow as they're added)
+	 */
+	public LongLongMap(int expectedSize) {
+		dense = new long[MIN_DENSE];
+		Arrays.fill(dense, MISSING);
+		ensureCapacity(expectedSize);
+	}
+
+	/**
+	 * Grows the table to hold expectedSize keys without growing again. While
+	 * the map is dense this only has an effect once it switches to a table.
+	 *
+	 * @param expectedSize
+	 *            The number of keys the map is expected to hold
+	 */
+	public void ensureCapacity(int expectedSize) {
+		this.expectedSize = Math.max(this.expectedSize, expectedSize);
+		if (dense == null && expectedSize > keys.length / 2)
+			rehash(expectedSize);
+	}
+
+	/**
+	 * @param key
+	 *            A non-negative key
+	 * @return The value mapped to key or MISSING if there is none
+	 */
+	public long get(long key) {
+		if (dense != null)
+			return key < dense.length ? dense[(int) key] : MISSING;
+		int mask = keys.length - 1;
+		for (int slot = slot(key);; slot = (slot + 1) & mask) {
+			long k = keys[slot];
+			if (k == key)
+				return values[slot];
+			else if (k == EMPTY_KEY)
+				return MISSING;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            A non-negative key
+	 * @param value
+	 *            The value to map it to (anything but MISSING)
+	 * @return The value previously mapped to key or MISSING if there was none
+	 */
+	public long put(long key, long value) {
+		assert key >= 0 && value != MISSING;
+		if (dense != null && key >= dense.length) {
+			if (key >= 4L * (size + 1))
+				toTable(Math.max(size + 1, expectedSize));
+			else
+				growDense(key);
+		}
+		if (dense != null) {
+			long prev = dense[(int) key];
+			dense[(int) key] = value;
+			if (prev == MISSING)
+				size++;
+			return prev;
+		}
+		int mask = keys.length - 1;
+		int slot = slot(key);
+		while (keys[slot] != EMPTY_KEY) {
+			if (keys[slot] == key) {
+				long prev = values[slot];
+				values[slot] = value;
+				return prev;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > keys.length / 2)
+			rehash(size);
+		return MISSING;
+	}
+
+	/**
+	 * @return The number of keys in the map
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return A new array holding every value in the map
+	 */
+	public long[] values() {
+		long[] result = new long[size];
+		int i = 0;
+		if (dense != null) {
+			for (long value : dense) {
+				if (value != MISSING)
+					result[i++] = value;
+			}
+		} else {
+			for (int slot = 0; slot < keys.length; slot++) {
+				if (keys[slot] != EMPTY_KEY)
+					result[i++] = values[slot];
+			}
+		}
+		return result;
+	}
+
+	private void growDense(long key) {
+		int oldLength = dense.length;
+		int newLength = oldLength;
+		while (newLength <= key)
+			newLength <<= 1;
+		dense = Arrays.copyOf(dense, newLength);
+		Arrays.fill(dense, oldLength, newLength, MISSING);
+	}
+
+	private int slot(long key) {
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+	}
+
+	private void toTable(int expectedSize) {
+		long[] oldDense = dense;
+		dense = null;
+		keys = new long[0];
+		rehash(expectedSize);
+		for (int key = 0; key < oldDense.length; key++) {
+			if (oldDense[key] != MISSING)
+				insert(key, oldDense[key]);
+		}
+	}
+
+	/**
+	 * Makes a table with room for expectedSize keys at most half full and
+	 * moves the current keys into it
+	 */
+	private void rehash(int expectedSize) {
+		int bits = 4;
+		while ((1 << bits) < 2 * (long) expectedSize + 2)
+			bits++;
+		long[] oldKeys = keys, oldValues = values;
+		keys = new long[1 << bits];
+		values = new long[1 << bits];
+		Arrays.fill(keys, EMPTY_KEY);
+		shift = 64 - bits;
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != EMPTY_KEY)
+				insert(oldKeys[slot], oldValues[slot]);
+		}
+	}
+
+	private void insert(long key, long value) {
+		int mask = keys.length - 1;
+		int slot = slot(key);
+		while (keys[slot] != EMPTY_KEY)
+			slot = (slot + 1) & mask;
+		keys[slot] = key;
+		values[slot] = value;
+	}
+}
@@ -0,0 +1,55 @@
+package edu.berkeley.gamesman.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for values which are added to far more often than they're read.
+ * Each thread adds to one of several cells (chosen by its id and spaced a
+ * cache line apart) so that threads counting at once rarely touch the same
+ * cache line. Reading the total sums every cell.
+ */
+public final class StripedCounter {
+	// Longs per 64-byte cache line
+	private static final int SPACING = 8;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	/**
+	 * Creates a counter with enough cells for the number of processors
+	 */
+	public StripedCounter() {
+		int numCells = 1;
+		while (numCells < Runtime.getRuntime().availableProcessors())
+			numCells <<= 1;
+		mask = numCells - 1;
+		cells = new AtomicLongArray(numCells * SPACING);
+	}
+
+	/**
+	 * @param x
+	 *            The amount to add
+	 */
+	public void add(long x) {
+		int cell = (int) Thread.currentThread().getId() & mask;
+		cells.addAndGet(cell * SPACING, x);
+	}
+
+	/**
+	 * Adds one
+	 */
+	public void increment() {
+		add(1L);
+	}
+
+	/**
+	 * @return The total of everything added (not a snapshot if other threads
+	 *         are adding at the same time)
+	 */
+	public long sum() {
+		long sum = 0L;
+		for (int i = 0; i < cells.length(); i += SPACING)
+			sum += cells.get(i);
+		return sum;
+	}
+}
@@ -0,0 +1,129 @@
+package edu.berkeley.gamesman.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file holding tables of longs which are expensive to compute, so they can
+ * be computed once and then memory-mapped read-only by every JVM which needs
+ * them (the mapped pages are shared through the OS page cache rather than
+ * copied onto each heap).<br />
+ * The file starts with a magic number, a format version and a fingerprint
+ * string which should identify everything the tables were computed from. A
+ * file with a different version or fingerprint is ignored. The header is
+ * followed by the number of tables, their lengths and then each table, with
+ * every table starting on an eight byte boundary. A single table may hold at
+ * most Integer.MAX_VALUE / 8 longs.
+ */
+public final class TableSnapshot {
+	private static final int MAGIC = 0x474a5453; // "GJTS"
+	private static final int VERSION = 1;
+
+	private TableSnapshot() {
+	}
+
+	/**
+	 * Writes tables to a temporary file and renames it to file, so readers
+	 * never see a partial snapshot
+	 *
+	 * @param file
+	 *            The file to write
+	 * @param fingerprint
+	 *            Identifies what the tables were computed from
+	 * @param tables
+	 *            The tables (from position 0 to their limits)
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public static void write(File file, String fingerprint, LongBuffer[] tables)
+			throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(fingerprint);
+			out.writeInt(tables.length);
+			for (LongBuffer table : tables)
+				out.writeLong(table.limit());
+			while (out.size() % 8 != 0)
+				out.writeByte(0);
+			for (LongBuffer table : tables) {
+				for (int i = 0; i < table.limit(); i++)
+					out.writeLong(table.get(i));
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			file.delete();
+			if (!temp.renameTo(file))
+				throw new IOException("Could not rename " + temp + " to "
+						+ file);
+		}
+	}
+
+	/**
+	 * @param file
+	 *            The snapshot file
+	 * @param fingerprint
+	 *            Identifies what the tables must have been computed from
+	 * @return The tables mapped read-only, or null if the file doesn't exist,
+	 *         is incomplete or was written by another version or for another
+	 *         fingerprint
+	 * @throws IOException
+	 *             If the file exists but can't be read
+	 */
+	public static LongBuffer[] map(File file, String fingerprint)
+			throws IOException {
+		if (!file.exists())
+			return null;
+		long[] lengths;
+		long offset;
+		FileInputStream fis = new FileInputStream(file);
+		DataInputStream in = new DataInputStream(fis);
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| !in.readUTF().equals(fingerprint))
+				return null;
+			lengths = new long[in.readInt()];
+			for (int i = 0; i < lengths.length; i++)
+				lengths[i] = in.readLong();
+			offset = (fis.getChannel().position() + 7) & ~7L;
+		} catch (EOFException e) {
+			return null;
+		} finally {
+			in.close();
+		}
+		long end = offset;
+		for (long length : lengths)
+			end += length * 8;
+		if (end != file.length())
+			return null;
+		LongBuffer[] tables = new LongBuffer[lengths.length];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < tables.length; i++) {
+				MappedByteBuffer bytes = channel.map(
+						FileChannel.MapMode.READ_ONLY, offset, lengths[i] * 8);
+				tables[i] = bytes.asLongBuffer();
+				offset += lengths[i] * 8;
+			}
+		} finally {
+			raf.close();
+		}
+		return tables;
+	}
+}
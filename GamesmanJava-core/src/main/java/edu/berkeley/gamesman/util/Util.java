@@ -169,16 +169,43 @@ public final class Util {
 	 *            k
 	 * @return n choose k
 	 */
-	public static synchronized long nCr(int n, int k) {
+	public static long nCr(int n, int k) {
 		if (n < 0 || k < 0)
 			return _nCr(n, k);
-		if (n < nCr_arr.length && k < nCr_arr[0].length) {
-			if (nCr_arr[n][k] != 0)
-				return nCr_arr[n][k];
-			nCr_arr[n][k] = _nCr(n, k);
-			return nCr_arr[n][k];
+		long[][] table = nCrTable;
+		if (n >= table.length) {
+			if (n > MAX_NCR_TABLE_N)
+				return _nCr(n, k);
+			table = nCr_prefill(n);
 		}
-		return _nCr(n, k);
+		return k <= n ? table[n][k] : 0L;
+	}
+
+	/**
+	 * Precompute n choose k for every n up to maxn (and every k). Tables are
+	 * never modified once they're published, so nCr can read them without
+	 * locking. Growing replaces the whole table.
+	 * 
+	 * @see Util#nCr(int, int)
+	 * @param maxn
+	 *            maximum n
+	 * @return The table (which may be larger than requested)
+	 */
+	public static synchronized long[][] nCr_prefill(int maxn) {
+		long[][] table = nCrTable;
+		if (maxn < table.length)
+			return table;
+		int rows = Math.max(maxn + 1,
+				Math.min(table.length * 2, MAX_NCR_TABLE_N + 1));
+		long[][] newTable = new long[rows][];
+		System.arraycopy(table, 0, newTable, 0, table.length);
+		for (int n = table.length; n < newTable.length; n++) {
+			newTable[n] = new long[n + 1];
+			for (int k = 0; k <= n; k++)
+				newTable[n][k] = _nCr(n, k);
+		}
+		nCrTable = newTable;
+		return newTable;
 	}
 
 	/**
@@ -188,24 +215,23 @@ public final class Util {
 	 * @param maxn
 	 *            maximum n
 	 * @param maxk
-	 *            maximum k
+	 *            maximum k (every k is always computed)
 	 */
 	public static void nCr_prefill(int maxn, int maxk) {
-		if (maxn <= nCr_arr.length && maxk <= nCr_arr[0].length)
-			return;
-		nCr_arr = new long[maxn + 1][maxk + 1];
-		for (int n = 0; n <= maxn; n++)
-			for (int k = 0; k <= maxk; k++)
-				nCr_arr[n][k] = _nCr(n, k);
+		nCr_prefill(maxn);
 	}
 
+	private static final int MAX_NCR_TABLE_N = 1 << 10;
+
 	/**
-	 * Static array of nCr values
+	 * Rows of n choose k (row n has length n + 1). Enough for any game with
+	 * up to 64 cells is computed when the class is loaded.
 	 */
-	public static long[][] nCr_arr = new long[0][0]; // 50 is a made-up number,
+	private static volatile long[][] nCrTable = new long[0][];
 
-	// you're free to adjust
-	// as necessary...
+	static {
+		nCr_prefill(64);
+	}
 
 	private static long _nCr(int n, int mk) {
 		int k = mk;
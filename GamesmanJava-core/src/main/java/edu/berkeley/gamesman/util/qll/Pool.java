@@ -1,49 +1,130 @@
 package edu.berkeley.gamesman.util.qll;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pool of reusable objects which may be shared between threads without
+ * locking. Each thread keeps a small cache of released objects which only it
+ * can touch. When that cache is empty, objects are taken from a lock-free
+ * stack shared by all threads (and new objects are only created when that is
+ * empty too). When the thread's cache is full, released objects are pushed
+ * onto the shared stack.<br />
+ * Optionally the pool also counts the objects which are currently out of the
+ * pool and the most which have ever been out at once, which helps to find
+ * objects which are never released.
+ */
 public class Pool<T> {
-	private int created = 0;
-	private int released = 0;
-	private int currentSize;
+	private static final int LOCAL_CAPACITY = 16;
+
+	private static final class Link<T> {
+		private final T object;
+		private final Link<T> next;
+
+		private Link(T object, Link<T> next) {
+			this.object = object;
+			this.next = next;
+		}
+	}
+
+	private static final class Cache {
+		private final Object[] objects = new Object[LOCAL_CAPACITY];
+		private int size = 0;
+	}
+
 	private final Factory<T> fact;
-	private Node<T> firstNode;
-	private Node<T> firstNullNode;
+	private final ThreadLocal<Cache> local = new ThreadLocal<Cache>() {
+		@Override
+		protected Cache initialValue() {
+			return new Cache();
+		}
+	};
+	private final AtomicReference<Link<T>> top = new AtomicReference<Link<T>>();
+	private final AtomicInteger created = new AtomicInteger(0);
+	private final boolean counting;
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+	private final AtomicInteger highWatermark = new AtomicInteger(0);
 
 	public Pool(Factory<T> fact) {
+		this(fact, false);
+	}
+
+	/**
+	 * @param fact
+	 *            The factory for creating and resetting objects
+	 * @param counting
+	 *            Whether to keep track of the number of objects out of the
+	 *            pool (this adds a shared counter to every get and release)
+	 */
+	public Pool(Factory<T> fact, boolean counting) {
 		this.fact = fact;
+		this.counting = counting;
 	}
 
-	public synchronized T get() {
-		if (firstNode == null) {
-			assert currentSize == 0;
-			created++;
-			return fact.newObject();
-		} else {
-			assert currentSize > 0;
-			currentSize--;
-			Node<T> changeNode = firstNode;
-			firstNode = changeNode.next;
-			changeNode.next = firstNullNode;
-			firstNullNode = changeNode;
-			return changeNode.object;
+	@SuppressWarnings("unchecked")
+	public T get() {
+		if (counting) {
+			int out = outstanding.incrementAndGet();
+			int high = highWatermark.get();
+			while (out > high && !highWatermark.compareAndSet(high, out))
+				high = highWatermark.get();
 		}
+		Cache cache = local.get();
+		if (cache.size > 0) {
+			T object = (T) cache.objects[--cache.size];
+			cache.objects[cache.size] = null;
+			return object;
+		}
+		Link<T> first;
+		do {
+			first = top.get();
+			if (first == null) {
+				created.incrementAndGet();
+				return fact.newObject();
+			}
+		} while (!top.compareAndSet(first, first.next));
+		return first.object;
 	}
 
-	public synchronized void release(T el) {
-		fact.reset(el);
-		currentSize++;
+	public void release(T el) {
 		if (el == null)
 			throw new NullPointerException("Cannot release null element");
-		Node<T> changeNode;
-		if (firstNullNode == null) {
-			changeNode = new Node<T>();
-			released++;
-			if (released > created)
-				throw new RuntimeException("WTF?");
-		} else
-			changeNode = firstNullNode;
-		firstNullNode = changeNode.next;
-		changeNode.next = firstNode;
-		firstNode = changeNode;
-		changeNode.object = el;
+		fact.reset(el);
+		if (counting && outstanding.decrementAndGet() < 0)
+			throw new IllegalStateException(
+					"More objects released than taken from the pool");
+		Cache cache = local.get();
+		if (cache.size < LOCAL_CAPACITY) {
+			cache.objects[cache.size++] = el;
+			return;
+		}
+		Link<T> first, link;
+		do {
+			first = top.get();
+			link = new Link<T>(el, first);
+		} while (!top.compareAndSet(first, link));
+	}
+
+	/**
+	 * @return The number of objects this pool has created
+	 */
+	public int getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * @return The number of objects currently taken from the pool and not yet
+	 *         released (only counted if counting was requested)
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return The largest number of objects which have been out of the pool at
+	 *         once (only counted if counting was requested)
+	 */
+	public int getHighWatermark() {
+		return highWatermark.get();
 	}
 }
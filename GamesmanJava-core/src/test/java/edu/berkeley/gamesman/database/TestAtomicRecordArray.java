@@ -0,0 +1,89 @@
+package edu.berkeley.gamesman.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestAtomicRecordArray {
+	@Test
+	public void packedRecordsStayApart() {
+		// 5 bits per record, so 12 records share each long
+		AtomicRecordArray records = new AtomicRecordArray(100L, 1000L, 20L);
+		records.fill(19L);
+		for (long i = 100; i < 1100; i += 3)
+			records.set(i, i % 20);
+		for (long i = 100; i < 1100; i++)
+			Assert.assertEquals(i % 3 == 1 ? i % 20 : 19L, records.get(i));
+	}
+
+	@Test
+	public void compareAndSetOnlyReplacesTheExpectedRecord() {
+		AtomicRecordArray records = new AtomicRecordArray(0L, 10L, 8L);
+		records.set(4L, 3L);
+		Assert.assertFalse(records.compareAndSet(4L, 2L, 7L));
+		Assert.assertEquals(3L, records.get(4L));
+		Assert.assertTrue(records.compareAndSet(4L, 3L, 7L));
+		Assert.assertEquals(7L, records.get(4L));
+		Assert.assertEquals(0L, records.get(5L));
+	}
+
+	@Test
+	public void recordsWiderThanTheirBitsAreRejected() {
+		// 5 bits per record
+		AtomicRecordArray records = new AtomicRecordArray(0L, 30L, 20L);
+		records.set(4L, 31L);
+		for (long record : new long[] { 32L, -1L }) {
+			Assert.assertTrue(setRejects(records, record));
+			Assert.assertTrue(compareAndSetRejects(records, record));
+		}
+		for (long i = 0; i < 30; i++)
+			Assert.assertEquals(i == 4 ? 31L : 0L, records.get(i));
+	}
+
+	private static boolean setRejects(AtomicRecordArray records, long record) {
+		try {
+			records.set(3L, record);
+		} catch (AssertionError e) {
+			return true;
+		}
+		return false;
+	}
+
+	private static boolean compareAndSetRejects(AtomicRecordArray records,
+			long record) {
+		try {
+			records.compareAndSet(4L, 31L, record);
+		} catch (AssertionError e) {
+			return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void concurrentImprovementsKeepTheBest()
+			throws InterruptedException {
+		final AtomicRecordArray records = new AtomicRecordArray(0L, 64L, 256L);
+		final AtomicRecordArray.Preference larger =
+				new AtomicRecordArray.Preference() {
+					public boolean prefer(long candidate, long current) {
+						return candidate > current;
+					}
+				};
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int value = offset; value < 256; value += 4)
+						for (long i = 0; i < 64; i++)
+							records.improve(i, value, larger);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		for (long i = 0; i < 64; i++)
+			Assert.assertEquals(255L, records.get(i));
+	}
+}
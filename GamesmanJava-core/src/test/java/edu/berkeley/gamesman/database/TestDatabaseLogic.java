@@ -0,0 +1,130 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+public class TestDatabaseLogic {
+	private static final long[] RECORD_STATES = { 2, 3, 5, 17, 256, 1000,
+			1025, (1 << 17) + 1, 1L << 40, Long.MAX_VALUE };
+
+	private void checkRoundTrip(DatabaseLogic logic, long recordStates) {
+		int numRecords = 1000;
+		byte[] bytes = new byte[(int) logic.getNumBytes(numRecords)];
+		long[] expected = new long[numRecords];
+		Random r = new Random(recordStates);
+		for (int pass = 0; pass < 3; pass++) {
+			for (int i = 0; i < numRecords; i++) {
+				if (pass > 0 && r.nextBoolean())
+					continue;
+				expected[i] = (r.nextLong() & Long.MAX_VALUE) % recordStates;
+				logic.fillBytes(expected[i], bytes,
+						(int) logic.getByteIndex(i), i);
+			}
+			for (int i = 0; i < numRecords; i++)
+				Assert.assertEquals(expected[i], logic.getRecord(bytes,
+						(int) logic.getByteIndex(i), i));
+		}
+	}
+
+	@Test
+	public void bitsRoundTrip() {
+		for (long recordStates : RECORD_STATES) {
+			DatabaseLogic logic = new DatabaseLogic(recordStates,
+					DatabaseLogic.BITS);
+			checkRoundTrip(logic, recordStates);
+		}
+	}
+
+	@Test
+	public void baseRoundTrip() {
+		for (long recordStates : RECORD_STATES) {
+			DatabaseLogic logic = new DatabaseLogic(recordStates,
+					DatabaseLogic.BASE);
+			checkRoundTrip(logic, recordStates);
+		}
+	}
+
+	@Test
+	public void packedSizes() {
+		DatabaseLogic bits = new DatabaseLogic(1000, DatabaseLogic.BITS);
+		Assert.assertEquals(4, bits.recordsPerGroup);
+		Assert.assertEquals(5, bits.recordBytes);
+		DatabaseLogic base = new DatabaseLogic(3, DatabaseLogic.BASE);
+		Assert.assertEquals(5, base.recordsPerGroup);
+		Assert.assertEquals(1, base.recordBytes);
+		Assert.assertEquals(200, base.getNumBytes(1000));
+		Assert.assertEquals(2, base.getNumBytes(4, 2));
+	}
+
+	@Test
+	public void alignSplits() {
+		DatabaseLogic logic = new DatabaseLogic(3, DatabaseLogic.BASE);
+		Assert.assertArrayEquals(new long[] { 3, 10, 20, 23 },
+				logic.alignSplits(new long[] { 3, 4, 13, 22, 23 }));
+	}
+
+	@Test
+	public void packedFileDatabase() throws IOException,
+			ClassNotFoundException {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "TicTacToe");
+		props.setProperty("gamesman.database", "FileDatabase");
+		props.setProperty(DatabaseLogic.PACKING_PROPERTY, DatabaseLogic.BASE);
+		Configuration conf = new Configuration(props);
+		long recordStates = conf.getGame().recordStates();
+		long numHashes = conf.getGame().numHashes();
+		File dbFile = File.createTempFile("packed", ".db");
+		try {
+			Database db = new FileDatabase(dbFile.getPath(), conf, 0L,
+					numHashes, true, true);
+			Assert.assertTrue(db.myLogic.isGrouped());
+			DatabaseHandle dh = db.getHandle(false);
+			// Write the second half first so both halves share a group
+			long mid = numHashes / 2 + 1;
+			db.prepareWriteRecordRange(dh, mid, numHashes - mid);
+			for (long hash = mid; hash < numHashes; hash++)
+				db.writeNextRecord(dh, hash % recordStates);
+			db.prepareWriteRecordRange(dh, 0L, mid);
+			for (long hash = 0; hash < mid; hash++)
+				db.writeNextRecord(dh, hash % recordStates);
+			db.writeRecord(dh, mid - 1, 1L);
+			db.close();
+			db = Database.openDatabase(dbFile.getPath());
+			Assert.assertEquals(DatabaseLogic.BASE,
+					db.conf.getProperty(DatabaseLogic.PACKING_PROPERTY));
+			DatabaseHandle readHandle = db.getHandle(true);
+			for (long hash = 0; hash < numHashes; hash++)
+				Assert.assertEquals(hash == mid - 1 ? 1L : hash
+						% recordStates, db.readRecord(readHandle, hash));
+			db.prepareReadRecordRange(readHandle, 3L, numHashes - 3);
+			for (long hash = 3; hash < numHashes; hash++)
+				Assert.assertEquals(hash == mid - 1 ? 1L : hash
+						% recordStates, db.readNextRecord(readHandle));
+			Random r = new Random(9);
+			long[] hashes = new long[8];
+			long[] records = new long[8];
+			for (int trial = 0; trial < 1000; trial++) {
+				// Some nearby and some distant hashes (with repeats)
+				long center = (long) (r.nextDouble() * numHashes);
+				for (int i = 0; i < hashes.length; i++) {
+					hashes[i] = i % 3 == 0 ? (long) (r.nextDouble() * numHashes)
+							: Math.min(numHashes - 1, center + r.nextInt(40));
+				}
+				db.readRecords(readHandle, hashes, hashes.length, records);
+				for (int i = 0; i < hashes.length; i++)
+					Assert.assertEquals(db.readRecord(readHandle, hashes[i]),
+							records[i]);
+			}
+			db.close();
+		} finally {
+			dbFile.delete();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+public class TestGZippedDatabase {
+	@Test
+	public void cachedRandomReads() throws IOException, ClassNotFoundException,
+			InterruptedException {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "TicTacToe");
+		props.setProperty("gamesman.database", "FileDatabase");
+		props.setProperty("entry.bytes", "256");
+		props.setProperty("gamesman.database.cache.bytes", "2048");
+		props.setProperty("gamesman.database.cache.shards", "4");
+		final Configuration conf = new Configuration(props);
+		final long recordStates = conf.getGame().recordStates();
+		final long numHashes = conf.getGame().numHashes();
+		File plainFile = File.createTempFile("plain", ".db");
+		File zippedFile = File.createTempFile("zipped", ".db");
+		try {
+			Database plain = new FileDatabase(plainFile.getPath(), conf, 0L,
+					numHashes, true, true);
+			DatabaseHandle dh = plain.getHandle(false);
+			plain.prepareWriteRecordRange(dh, 0L, numHashes);
+			for (long hash = 0; hash < numHashes; hash++)
+				plain.writeNextRecord(dh, hash * 7 % recordStates);
+			plain.close();
+			plain = Database.openDatabase(plainFile.getPath());
+			Configuration zipConf = plain.conf.cloneAll();
+			zipConf.setProperty("gamesman.database",
+					GZippedFileDatabase.class.getName());
+			GZippedFileDatabase.zip(zippedFile.getPath(), zipConf, plain, true);
+			plain.close();
+			final GZippedDatabase zipped = (GZippedDatabase) Database
+					.openDatabase(zippedFile.getPath());
+			final Throwable[] failure = new Throwable[1];
+			Thread[] readers = new Thread[4];
+			for (int t = 0; t < readers.length; t++) {
+				final long seed = t;
+				readers[t] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							Random r = new Random(seed);
+							DatabaseHandle readHandle = zipped.getHandle(true);
+							for (int i = 0; i < 2000; i++) {
+								long hash = (r.nextLong() & Long.MAX_VALUE)
+										% numHashes;
+								Assert.assertEquals(hash * 7 % recordStates,
+										zipped.readRecord(readHandle, hash));
+							}
+						} catch (Throwable e) {
+							failure[0] = e;
+						}
+					}
+				};
+				readers[t].start();
+			}
+			for (Thread reader : readers)
+				reader.join();
+			if (failure[0] != null)
+				throw new AssertionError(failure[0]);
+			Assert.assertTrue(zipped.getCacheHits() > 0);
+			Assert.assertTrue(zipped.getCacheMisses() > 0);
+			zipped.close();
+		} finally {
+			plainFile.delete();
+			zippedFile.delete();
+		}
+	}
+}
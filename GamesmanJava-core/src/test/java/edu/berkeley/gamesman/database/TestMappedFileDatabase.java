@@ -0,0 +1,85 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+public class TestMappedFileDatabase {
+	private Configuration conf;
+	private File dbFile;
+	private long recordStates;
+
+	@Before
+	public void setUp() throws ClassNotFoundException, IOException {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "TicTacToe");
+		// Force many small segments so reads cross segment boundaries
+		props.setProperty("gamesman.database.map.bits", "6");
+		conf = new Configuration(props);
+		recordStates = conf.getGame().recordStates();
+		dbFile = File.createTempFile("mapped", ".db");
+	}
+
+	@After
+	public void tearDown() {
+		dbFile.delete();
+	}
+
+	private long recordFor(long hash) {
+		return (hash * 31 + 7) % recordStates;
+	}
+
+	@Test
+	public void mappedWriteFileRead() throws IOException {
+		long numHashes = conf.getGame().numHashes();
+		Database mapped = new MappedFileDatabase(dbFile.getPath(), conf, 0L,
+				numHashes, false, true);
+		DatabaseHandle dh = mapped.getHandle(false);
+		mapped.prepareWriteRecordRange(dh, 0L, numHashes / 2);
+		for (long hash = 0; hash < numHashes / 2; hash++)
+			mapped.writeNextRecord(dh, recordFor(hash));
+		for (long hash = numHashes / 2; hash < numHashes; hash++)
+			mapped.writeRecord(dh, hash, recordFor(hash));
+		mapped.close();
+		Database file = new FileDatabase(dbFile.getPath(), conf, 0L,
+				numHashes, true, false);
+		DatabaseHandle readHandle = file.getHandle(true);
+		for (long hash = 0; hash < numHashes; hash++)
+			Assert.assertEquals(recordFor(hash),
+					file.readRecord(readHandle, hash));
+		file.close();
+	}
+
+	@Test
+	public void fileWriteMappedRead() throws IOException {
+		long numHashes = conf.getGame().numHashes();
+		Database file = new FileDatabase(dbFile.getPath(), conf, 0L,
+				numHashes, false, true);
+		DatabaseHandle dh = file.getHandle(false);
+		file.prepareWriteRecordRange(dh, 0L, numHashes);
+		for (long hash = 0; hash < numHashes; hash++)
+			file.writeNextRecord(dh, recordFor(hash));
+		file.close();
+		Database mapped = Database.openDatabase(
+				MappedFileDatabase.class.getName(), dbFile.getPath(), conf,
+				0L, numHashes, true, false);
+		DatabaseHandle readHandle = mapped.getHandle(true);
+		for (long hash = numHashes - 1; hash >= 0; hash--)
+			Assert.assertEquals(recordFor(hash),
+					mapped.readRecord(readHandle, hash));
+		byte[] bytes = new byte[(int) mapped.getNumBytes(numHashes)];
+		mapped.readFullBytes(readHandle, 0L, bytes, 0, bytes.length);
+		for (long hash = 0; hash < numHashes; hash++)
+			Assert.assertEquals(recordFor(hash),
+					mapped.myLogic.getRecord(bytes,
+							(int) mapped.myLogic.getByteIndex(hash)));
+		mapped.close();
+	}
+}
@@ -0,0 +1,187 @@
+package edu.berkeley.gamesman.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.GamesmanMain;
+
+public class TestTierCutPlanner {
+	private static final long PLAYOUTS = 100L;
+
+	@Test
+	public void budgetBoundary() {
+		TierCutPlanner planner = planner(new long[] { 100, 100, 100, 100 },
+				new double[] { 10, 10, 10, 10 }, new double[] { 100, 100,
+						100, 100 }, new double[] { 2, 2, 2, 0 });
+		assertPlan(new int[] { 0, 1, 2, 3 }, planner, 400L);
+		// The last tier has no children so cutting it costs one expansion,
+		// which is less than any other tier's expansion plus child reads
+		assertPlan(new int[] { 0, 1, 2 }, planner, 399L);
+		assertPlan(new int[] { 0, 1, 2 }, planner, 300L);
+		// Cutting tier 2 would leave tier 3 to be expanded from it as well
+		assertPlan(new int[] { 0, 2 }, planner, 299L);
+		assertPlan(new int[0], planner, 0L);
+	}
+
+	@Test
+	public void cutsLastTierWhenExpandingIsCheaper() {
+		TierCutPlanner planner = planner(new long[] { 100, 100, 100, 100 },
+				new double[] { 10, 10, 10, 10 }, new double[] { 100, 100,
+						100, 5 }, new double[] { 2, 2, 2, 0 });
+		assertPlan(new int[] { 0, 1, 2 }, planner, 1000L);
+		Assert.assertEquals(10 + 10 + 10 + 5, planner
+				.expectedNanos(new int[] { 0, 1, 2 }), 1e-9);
+	}
+
+	@Test
+	public void cutsTierZeroWhenItDoesntFit() {
+		TierCutPlanner planner = planner(new long[] { 1000, 100, 100, 100 },
+				new double[] { 10, 10, 10, 10 }, new double[] { 100, 100,
+						100, 100 }, new double[] { 2, 2, 2, 0 });
+		assertPlan(new int[] { 1, 2, 3 }, planner, 999L);
+		// Tier 0 is expanded and its two children are read from tier 1
+		Assert.assertEquals(100 + 2 * 10 + 10 + 10 + 10, planner
+				.expectedNanos(new int[] { 1, 2, 3 }), 1e-9);
+		assertPlan(new int[] { 0, 1, 2, 3 }, planner, 1300L);
+	}
+
+	@Test
+	public void matchesExhaustiveSearch() {
+		Random r = new Random(1);
+		for (int trial = 0; trial < 200; trial++) {
+			int numTiers = 1 + r.nextInt(7);
+			long[] bytes = new long[numTiers];
+			double[] read = new double[numTiers];
+			double[] expand = new double[numTiers];
+			double[] branching = new double[numTiers];
+			long totalBytes = 0L;
+			for (int tier = 0; tier < numTiers; tier++) {
+				bytes[tier] = 1 + r.nextInt(500);
+				totalBytes += bytes[tier];
+				read[tier] = 1 + r.nextInt(100);
+				expand[tier] = 1 + r.nextInt(100);
+				branching[tier] = tier == numTiers - 1 ? 0 : r.nextInt(8);
+			}
+			TierCutPlanner planner = planner(bytes, read, expand, branching);
+			// Budgets under 4096 bytes are planned byte by byte, so the plan
+			// must be exactly optimal
+			long budget = r.nextInt((int) totalBytes + 1);
+			int[] plan = planner.plan(budget);
+			Assert.assertTrue(planner.storedBytes(plan) <= budget);
+			double best = Double.POSITIVE_INFINITY;
+			for (int subset = 0; subset < 1 << numTiers; subset++) {
+				int[] stored = tiersOf(subset);
+				if (planner.storedBytes(stored) <= budget)
+					best = Math.min(best, planner.expectedNanos(stored));
+			}
+			Assert.assertEquals(best, planner.expectedNanos(plan), 1e-9 * best);
+		}
+	}
+
+	@Test
+	public void budgetIsNeverExceeded() {
+		Random r = new Random(2);
+		for (int trial = 0; trial < 200; trial++) {
+			int numTiers = 1 + r.nextInt(20);
+			long[] bytes = new long[numTiers];
+			double[] costs = new double[numTiers];
+			double[] branching = new double[numTiers];
+			long totalBytes = 0L;
+			for (int tier = 0; tier < numTiers; tier++) {
+				bytes[tier] = 1 + (r.nextLong() & Long.MAX_VALUE) % (1L << 32);
+				totalBytes += bytes[tier];
+				costs[tier] = 1 + r.nextInt(100);
+				branching[tier] = tier == numTiers - 1 ? 0 : 1 + r.nextInt(7);
+			}
+			TierCutPlanner planner = planner(bytes, costs, costs, branching);
+			long budget = (r.nextLong() & Long.MAX_VALUE) % (totalBytes + 1);
+			// Tier sizes are rounded up to whole units, so this holds even
+			// when the budget is more than 4096 bytes
+			int[] plan = planner.plan(budget);
+			Assert.assertTrue(planner.storedBytes(plan) <= budget);
+		}
+	}
+
+	@Test
+	public void cutDatabaseReadsSameRecords() throws IOException,
+			ClassNotFoundException {
+		File dir = File.createTempFile("tiercut", "");
+		dir.delete();
+		dir.mkdir();
+		try {
+			String solved = new File(dir, "solved.db").getPath();
+			Properties props = new Properties();
+			props.setProperty("gamesman.game", "Connect4");
+			props.setProperty("gamesman.game.width", "4");
+			props.setProperty("gamesman.game.height", "4");
+			props.setProperty("gamesman.game.pieces", "4");
+			props.setProperty("gamesman.solver", "CacheTierSolver");
+			props.setProperty("gamesman.database", "FileDatabase");
+			props.setProperty("gamesman.db.uri", solved);
+			props.setProperty("gamesman.threads", "1");
+			new GamesmanMain().run(props);
+			Database full = Database.openDatabase(solved);
+			TierCutPlanner planner = new TierCutPlanner(full);
+			planner.sample(100, new Random(0));
+			long budget = full.getNumBytes(full.numRecords) / 4;
+			int[] stored = planner.plan(budget);
+			Assert.assertTrue(planner.storedBytes(stored) <= budget);
+			String cutUri = new File(dir, "cut.db").getPath();
+			planner.writeCutDatabase(cutUri, stored);
+			Database cut = Database.openDatabase(cutUri);
+			DatabaseHandle fullHandle = full.getHandle(true);
+			DatabaseHandle cutHandle = cut.getHandle(true);
+			for (long hash = 0; hash < full.numRecords; hash++)
+				Assert.assertEquals(full.readRecord(fullHandle, hash), cut
+						.readRecord(cutHandle, hash));
+			cut.close();
+			full.close();
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+
+	/**
+	 * @return A planner for the given per-tier costs in which every tier is
+	 *         visited once per game
+	 */
+	private static TierCutPlanner planner(long[] bytes, double[] read,
+			double[] expand, double[] branching) {
+		int numTiers = bytes.length;
+		long[] visits = new long[numTiers];
+		long[] children = new long[numTiers];
+		double[] readNanos = new double[numTiers];
+		double[] expandNanos = new double[numTiers];
+		for (int tier = 0; tier < numTiers; tier++) {
+			visits[tier] = PLAYOUTS;
+			children[tier] = Math.round(branching[tier] * PLAYOUTS);
+			readNanos[tier] = read[tier] * PLAYOUTS;
+			expandNanos[tier] = expand[tier] * PLAYOUTS;
+		}
+		return new TierCutPlanner(bytes, visits, children, readNanos,
+				expandNanos, PLAYOUTS);
+	}
+
+	private static void assertPlan(int[] expected, TierCutPlanner planner,
+			long budget) {
+		int[] plan = planner.plan(budget);
+		Assert.assertArrayEquals("Budget " + budget + " gave "
+				+ Arrays.toString(plan), expected, plan);
+	}
+
+	private static int[] tiersOf(int subset) {
+		int[] tiers = new int[Integer.bitCount(subset)];
+		for (int tier = 0, i = 0; i < tiers.length; tier++)
+			if ((subset >>> tier & 1) != 0)
+				tiers[i++] = tier;
+		return tiers;
+	}
+}
@@ -0,0 +1,66 @@
+package edu.berkeley.gamesman.database.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+import edu.berkeley.gamesman.core.Record;
+import edu.berkeley.gamesman.database.Database;
+import edu.berkeley.gamesman.database.DatabaseHandle;
+import edu.berkeley.gamesman.database.FileDatabase;
+import edu.berkeley.gamesman.game.TierGame;
+import edu.berkeley.gamesman.game.util.TierState;
+
+public class TestPrefetchCache {
+	@Test
+	public void fetchesSameRecordsAsDatabase() throws ClassNotFoundException,
+			IOException {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "TicTacToe");
+		Configuration conf = new Configuration(props);
+		TierGame game = (TierGame) conf.getGame();
+		long numHashes = game.numHashes();
+		long recordStates = game.recordStates();
+		File dbFile = File.createTempFile("prefetch", ".db");
+		try {
+			Database db = new FileDatabase(dbFile.getPath(), conf, 0L,
+					numHashes, true, true);
+			DatabaseHandle dh = db.getHandle(false);
+			for (long hash = 0; hash < numHashes; hash++)
+				db.writeRecord(dh, hash, (hash * 31 + 7) % recordStates);
+			// Windows of a few records, so most children miss
+			PrefetchCache cache = new PrefetchCache(game, db, 256L);
+			DatabaseHandle readHandle = db.getHandle(true);
+			TierState position = game.newState();
+			TierState[] children = game.newStateArray(game.maxChildren());
+			int[] hints = new int[game.maxChildren()];
+			Record[] values = game.newRecordArray(game.maxChildren());
+			Record expected = game.newRecord();
+			for (int tier = 0; tier < game.numberOfTiers() - 1; tier++) {
+				long tierHashes = game.numHashesForTier(tier);
+				for (long hash = 0; hash < tierHashes; hash++) {
+					position.tier = tier;
+					position.hash = hash;
+					game.setState(position);
+					int numChildren = game.validMoves(children, hints);
+					cache.fetchChildren(position, numChildren, children,
+							hints, values);
+					for (int i = 0; i < numChildren; i++) {
+						game.longToRecord(children[i], db.readRecord(
+								readHandle, game.stateToHash(children[i])),
+								expected);
+						Assert.assertEquals(expected, values[i]);
+					}
+				}
+			}
+			cache.flushCounts();
+			db.close();
+		} finally {
+			dbFile.delete();
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package edu.berkeley.gamesman.database.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSolvedRecordCache {
+	@Test
+	public void returnsWhatWasPut() {
+		SolvedRecordCache cache = new SolvedRecordCache(1 << 10, 4, 8);
+		for (long hash = 0; hash < 500; hash++)
+			cache.put(hash * 7919, hash + 3);
+		for (long hash = 0; hash < 500; hash++) {
+			long record = cache.get(hash * 7919);
+			Assert.assertTrue(record == -1L || record == hash + 3);
+		}
+		Assert.assertEquals(-1L, cache.get(1L));
+		Assert.assertEquals(501, cache.getHits() + cache.getMisses());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		// A single set, so every hash competes for the same two ways
+		SolvedRecordCache cache = new SolvedRecordCache(2, 2, 1);
+		cache.put(10L, 1L);
+		cache.put(20L, 2L);
+		Assert.assertEquals(1L, cache.get(10L));
+		cache.put(30L, 3L);
+		Assert.assertEquals(-1L, cache.get(20L));
+		Assert.assertEquals(1L, cache.get(10L));
+		Assert.assertEquals(3L, cache.get(30L));
+		Assert.assertEquals(1, cache.getEvictions());
+		cache.put(30L, 4L);
+		Assert.assertEquals(4L, cache.get(30L));
+		Assert.assertEquals(1, cache.getEvictions());
+	}
+}
@@ -0,0 +1,41 @@
+package edu.berkeley.gamesman.game;
+
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.core.Configuration;
+
+public class TestConnect4 {
+	@Test
+	public void countsHashesOfLargestBoards() throws ClassNotFoundException {
+		Assert.assertEquals(70728639995483L, numHashes(7, 6));
+		Assert.assertEquals(2037274512282035867L, numHashes(8, 7));
+		Assert.assertEquals(1027436400285521262L, numHashes(7, 8));
+		Assert.assertEquals(7925104570401706939L, numHashes(6, 10));
+	}
+
+	@Test
+	public void rejectsBoardsWhoseHashesOverflow()
+			throws ClassNotFoundException {
+		for (int[] size : new int[][] { { 8, 8 }, { 9, 7 }, { 7, 9 } }) {
+			try {
+				numHashes(size[0], size[1]);
+				Assert.fail(size[0] + "x" + size[1] + " should not fit");
+			} catch (Error e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains(
+						"too many positions"));
+			}
+		}
+	}
+
+	private static long numHashes(int width, int height)
+			throws ClassNotFoundException {
+		Properties props = new Properties();
+		props.setProperty("gamesman.game", "Connect4");
+		props.setProperty("gamesman.game.width", Integer.toString(width));
+		props.setProperty("gamesman.game.height", Integer.toString(height));
+		return new Configuration(props).getGame().numHashes();
+	}
+}
@@ -0,0 +1,82 @@
+package edu.berkeley.gamesman.game.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBitSetBoard {
+	private static final int[][] DIRECTIONS = { { 0, 1 }, { 1, 0 }, { 1, 1 },
+			{ 1, -1 } };
+
+	@Test
+	public void oneWordBoard() {
+		checkRandomBoards(6, 7, 4);
+	}
+
+	@Test
+	public void boardsSpanningSeveralWords() {
+		checkRandomBoards(7, 9, 4);
+		checkRandomBoards(8, 10, 5);
+		checkRandomBoards(20, 20, 3);
+	}
+
+	@Test
+	public void lineAcrossWordBoundary() {
+		// Columns 0 through 7 of a 9 wide, 7 high board fill the first word
+		BitSetBoard board = new BitSetBoard(7, 9);
+		for (int col = 5; col < 9; col++)
+			board.addPiece(3, col, 'X');
+		Assert.assertTrue(board.xInALine(4, 'X'));
+		Assert.assertFalse(board.xInALine(5, 'X'));
+		Assert.assertFalse(board.xInALine(1, 'O'));
+		board.switchColors();
+		Assert.assertTrue(board.xInALine(4, 'O'));
+		board.clear();
+		Assert.assertFalse(board.xInALine(1, 'O'));
+	}
+
+	private static void checkRandomBoards(int height, int width, int x) {
+		Random r = new Random(height * 31 + width);
+		BitSetBoard board = new BitSetBoard(height, width);
+		char[][] pieces = new char[height][width];
+		for (int trial = 0; trial < 2000; trial++) {
+			board.clear();
+			for (int row = 0; row < height; row++) {
+				for (int col = 0; col < width; col++) {
+					int piece = r.nextInt(3);
+					pieces[row][col] = piece == 0 ? ' ' : piece == 1 ? 'X'
+							: 'O';
+					if (piece != 0)
+						board.addPiece(row, col, pieces[row][col]);
+				}
+			}
+			Assert.assertEquals(hasLine(pieces, x, 'X'),
+					board.xInALine(x, 'X'));
+			Assert.assertEquals(hasLine(pieces, x, 'O'),
+					board.xInALine(x, 'O'));
+		}
+	}
+
+	private static boolean hasLine(char[][] pieces, int x, char color) {
+		int height = pieces.length, width = pieces[0].length;
+		for (int[] direction : DIRECTIONS) {
+			for (int row = 0; row < height; row++) {
+				for (int col = 0; col < width; col++) {
+					int count = 0;
+					while (count < x) {
+						int r = row + count * direction[0];
+						int c = col + count * direction[1];
+						if (r >= height || c < 0 || c >= width
+								|| pieces[r][c] != color)
+							break;
+						count++;
+					}
+					if (count == x)
+						return true;
+				}
+			}
+		}
+		return false;
+	}
+}
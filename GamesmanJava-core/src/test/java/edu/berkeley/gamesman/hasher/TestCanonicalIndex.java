@@ -0,0 +1,61 @@
+package edu.berkeley.gamesman.hasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.LongBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.berkeley.gamesman.util.TableSnapshot;
+
+public class TestCanonicalIndex {
+	@Test
+	public void rankAndSelectAreInverses() {
+		checkIndex(buildIndex());
+	}
+
+	@Test
+	public void readFromSnapshot() throws IOException {
+		CanonicalIndex index = buildIndex();
+		File file = File.createTempFile("canonical", ".snapshot");
+		try {
+			TableSnapshot.write(file, "test", new LongBuffer[] {
+					index.getBits(), index.getBlockRanks() });
+			Assert.assertNull(TableSnapshot.map(file, "other"));
+			LongBuffer[] tables = TableSnapshot.map(file, "test");
+			Assert.assertEquals(2, tables.length);
+			CanonicalIndex mapped = new CanonicalIndex(3000L, tables[0],
+					tables[1]);
+			Assert.assertEquals(index.numCanonical(), mapped.numCanonical());
+			checkIndex(mapped);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static CanonicalIndex buildIndex() {
+		// Spans several blocks, including an empty one
+		CanonicalIndex index = new CanonicalIndex(3000L);
+		for (long hash = 0; hash < 3000; hash++) {
+			if (hash % 7 == 3 && (hash < 600 || hash >= 1200))
+				index.add(hash);
+		}
+		index.finish();
+		return index;
+	}
+
+	private static void checkIndex(CanonicalIndex index) {
+		long rank = 0;
+		for (long hash = 0; hash < 3000; hash++) {
+			Assert.assertEquals(rank, index.rank(hash));
+			Assert.assertEquals(hash % 7 == 3
+					&& (hash < 600 || hash >= 1200), index.contains(hash));
+			if (index.contains(hash)) {
+				Assert.assertEquals(hash, index.select(rank));
+				rank++;
+			}
+		}
+		Assert.assertEquals(rank, index.numCanonical());
+	}
+}
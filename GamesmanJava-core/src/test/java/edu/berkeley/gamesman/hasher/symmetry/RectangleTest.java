@@ -30,4 +30,15 @@ public class RectangleTest {
 		Assert.assertArrayEquals(new int[] { 19, 18, 17, 16, 15, 15, 15, 15,
 				15, 14, 13, 12, 7, 7, 7, 7, 7, 6, 5, 4 }, points);
 	}
+
+	@Test
+	public void testPermutations() {
+		RectangleSymmetryFinder s = new RectangleSymmetryFinder(2, 3);
+		int[][] permutations = s.getPermutations();
+		Assert.assertArrayEquals(new int[][] { { 0, 1, 2, 3, 4, 5 },
+				{ 2, 1, 0, 5, 4, 3 } }, permutations);
+
+		s = new RectangleSymmetryFinder(3, 4, true, true, true);
+		Assert.assertEquals(4, s.getPermutations().length);
+	}
 }
@@ -31,6 +31,21 @@ public class SquareTest {
 		}
 	}
 
+	@Test
+	public void testPermutations() {
+		// 3x3 has the eight symmetries of a square, 1x1 only the identity
+		Assert.assertEquals(8,
+				new SquareSymmetryFinder(3).getPermutations().length);
+		Assert.assertEquals(1,
+				new SquareSymmetryFinder(1).getPermutations().length);
+		int[][] permutations = new SquareSymmetryFinder(2).getPermutations();
+		Assert.assertEquals(8, permutations.length);
+		for (int[] permutation : permutations) {
+			// Every symmetry of a 2x2 board keeps opposite corners opposite
+			Assert.assertEquals(3, permutation[0] ^ permutation[3]);
+		}
+	}
+
 	private int[] getCorrectFixedPoints(int size) {
 		int[] f1 = { 0 };
 
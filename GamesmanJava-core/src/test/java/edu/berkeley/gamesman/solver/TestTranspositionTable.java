@@ -0,0 +1,95 @@
+package edu.berkeley.gamesman.solver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTranspositionTable {
+	@Test
+	public void collidingHashesShareAProbeChain() {
+		TranspositionTable table = new TranspositionTable(16);
+		long[] colliding = hashesWithSlot(table, 3, 9);
+		for (int i = 0; i < 8; i++)
+			table.put(colliding[i], i);
+		for (int i = 0; i < 8; i++)
+			Assert.assertEquals(i, table.get(colliding[i]));
+		// All 8 probes are taken, so the ninth isn't cached
+		Assert.assertEquals(-1, table.claim(colliding[8]));
+		table.put(colliding[8], 20L);
+		Assert.assertEquals(-1L, table.get(colliding[8]));
+		// A hash starting partway along the chain goes after its end
+		long later = hashesWithSlot(table, 4, 1)[0];
+		Assert.assertEquals(-1L, table.get(later));
+		table.put(later, 30L);
+		Assert.assertEquals(11, table.claim(later));
+		Assert.assertEquals(30L, table.get(later));
+		for (int i = 0; i < 8; i++)
+			Assert.assertEquals(i, table.get(colliding[i]));
+	}
+
+	@Test
+	public void claimedSlotIsMissingUntilItsRecordIsSet() {
+		TranspositionTable table = new TranspositionTable(16);
+		long[] colliding = hashesWithSlot(table, 7, 2);
+		Assert.assertEquals(7, table.claim(colliding[0]));
+		Assert.assertEquals(-1L, table.get(colliding[0]));
+		// Other hashes probe past the claimed slot
+		table.put(colliding[1], 0L);
+		Assert.assertEquals(0L, table.get(colliding[1]));
+		table.put(colliding[0], 5L);
+		Assert.assertEquals(5L, table.get(colliding[0]));
+		Assert.assertEquals(0L, table.get(colliding[1]));
+	}
+
+	@Test
+	public void concurrentPutsKeepEveryRecord() throws InterruptedException {
+		final int numHashes = 8192;
+		final TranspositionTable table = new TranspositionTable(1 << 16);
+		final AtomicInteger wrongReads = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int start = t * numHashes / threads.length;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					// Every thread puts every hash, each starting elsewhere
+					for (int i = 0; i < numHashes; i++) {
+						long hash = hash((start + i) % numHashes);
+						table.put(hash, record(hash));
+						long other = hash((start + 2 * i) % numHashes);
+						long read = table.get(other);
+						if (read != -1 && read != record(other))
+							wrongReads.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		Assert.assertEquals(0, wrongReads.get());
+		for (int i = 0; i < numHashes; i++) {
+			long hash = hash(i);
+			Assert.assertEquals(record(hash), table.get(hash));
+		}
+	}
+
+	private static long hash(int i) {
+		return i * 1000003L;
+	}
+
+	private static long record(long hash) {
+		return hash % 1021;
+	}
+
+	private static long[] hashesWithSlot(TranspositionTable table, int slot,
+			int count) {
+		long[] hashes = new long[count];
+		int found = 0;
+		for (long hash = 0; found < count; hash++)
+			if (table.slot(hash) == slot)
+				hashes[found++] = hash;
+		return hashes;
+	}
+}
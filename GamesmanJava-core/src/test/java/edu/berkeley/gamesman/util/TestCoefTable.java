@@ -0,0 +1,123 @@
+package edu.berkeley.gamesman.util;
+
+import java.math.BigInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCoefTable {
+	@Test
+	public void positiveRowsMatchPolynomialPowers() {
+		for (int degree = 1; degree <= 3; degree++) {
+			CoefTable table = new CoefTable(degree);
+			// Jump ahead so each growth copies rows built by the last one
+			int maxN = degree == 1 ? 1100 : 150;
+			for (int n : new int[] { 3, 70, 20, maxN })
+				table.get(n, 0);
+			BigInteger[] power = { BigInteger.ONE };
+			for (int n = 0; n <= maxN; n++) {
+				for (int k = -1; k <= power.length; k++)
+					Assert.assertEquals(degree + ": (" + n + ", " + k + ")",
+							coef(power, k), table.get(n, k));
+				power = multiply(power, ones(degree + 1), power.length
+						+ degree);
+			}
+		}
+	}
+
+	@Test
+	public void negativeRowsMatchSeriesPowers() {
+		for (int degree = 1; degree <= 3; degree++) {
+			CoefTable table = new CoefTable(degree);
+			// Grow the columns, then the rows, then both
+			table.get(-2, 60);
+			table.get(-30, 5);
+			table.get(-40, 120);
+			int maxK = 120;
+			BigInteger[] inverse = inverse(ones(degree + 1), maxK + 1);
+			BigInteger[] power = { BigInteger.ONE };
+			for (int n = 1; n <= 40; n++) {
+				power = multiply(power, inverse, maxK + 1);
+				for (int k = -1; k <= maxK; k++)
+					Assert.assertEquals(degree + ": (" + -n + ", " + k + ")",
+							coef(power, k), table.get(-n, k));
+			}
+		}
+	}
+
+	@Test
+	public void concurrentGrowth() throws InterruptedException {
+		final CoefTable table = new CoefTable(2);
+		final BigInteger[][] powers = new BigInteger[301][];
+		powers[0] = new BigInteger[] { BigInteger.ONE };
+		for (int n = 1; n < powers.length; n++)
+			powers[n] = multiply(powers[n - 1], ones(3), 2 * n + 1);
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int n = offset; n < powers.length; n += 4)
+							for (int k = 0; k <= 2 * n; k += 5)
+								Assert.assertEquals(coef(powers[n], k), table
+										.get(n, k));
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (failure[0] != null)
+			throw new AssertionError(failure[0]);
+	}
+
+	/**
+	 * @return The coefficient as the table stores it (overflowing entries
+	 *         wrap, which the table's recurrences preserve)
+	 */
+	private static long coef(BigInteger[] poly, int k) {
+		return k < 0 || k >= poly.length ? 0L : poly[k].longValue();
+	}
+
+	/**
+	 * @return 1 + x + ... + x^(len - 1)
+	 */
+	private static BigInteger[] ones(int len) {
+		BigInteger[] poly = new BigInteger[len];
+		for (int i = 0; i < len; i++)
+			poly[i] = BigInteger.ONE;
+		return poly;
+	}
+
+	private static BigInteger[] multiply(BigInteger[] a, BigInteger[] b,
+			int len) {
+		BigInteger[] product = new BigInteger[len];
+		for (int k = 0; k < len; k++) {
+			product[k] = BigInteger.ZERO;
+			int first = Math.max(0, k - b.length + 1);
+			for (int i = first; i < a.length && i <= k; i++)
+				product[k] = product[k].add(a[i].multiply(b[k - i]));
+		}
+		return product;
+	}
+
+	/**
+	 * @return The first len coefficients of 1 / poly (poly[0] must be 1)
+	 */
+	private static BigInteger[] inverse(BigInteger[] poly, int len) {
+		BigInteger[] inverse = new BigInteger[len];
+		for (int k = 0; k < len; k++) {
+			inverse[k] = k == 0 ? BigInteger.ONE : BigInteger.ZERO;
+			for (int i = 1; i < poly.length && i <= k; i++)
+				inverse[k] = inverse[k].subtract(poly[i].multiply(inverse[k
+						- i]));
+		}
+		return inverse;
+	}
+}
@@ -0,0 +1,51 @@
+package edu.berkeley.gamesman.util;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestLongLongMap {
+	@Test
+	public void denseKeys() {
+		checkAgainstHashMap(new LongLongMap(), 300, 1000);
+	}
+
+	@Test
+	public void sparseKeys() {
+		// The first large key moves the map from its array to a table
+		checkAgainstHashMap(new LongLongMap(), 1L << 40, 5000);
+	}
+
+	@Test
+	public void presizedTable() {
+		checkAgainstHashMap(new LongLongMap(4000), Long.MAX_VALUE, 5000);
+	}
+
+	private static void checkAgainstHashMap(LongLongMap map, long keyBound,
+			int numPuts) {
+		Random r = new Random(keyBound);
+		HashMap<Long, Long> expected = new HashMap<Long, Long>();
+		for (int i = 0; i < numPuts; i++) {
+			long key = (r.nextLong() & Long.MAX_VALUE) % keyBound;
+			long value = r.nextInt(3) - 1;
+			Long prev = expected.put(key, value);
+			Assert.assertEquals(prev == null ? LongLongMap.MISSING : prev,
+					map.put(key, value));
+			long missingKey = (r.nextLong() & Long.MAX_VALUE) % keyBound;
+			long expectedValue = expected.containsKey(missingKey) ? expected
+					.get(missingKey) : LongLongMap.MISSING;
+			Assert.assertEquals(expectedValue, map.get(missingKey));
+		}
+		Assert.assertEquals(expected.size(), map.size());
+		for (Long key : expected.keySet())
+			Assert.assertEquals((long) expected.get(key), map.get(key));
+		long sum = 0L, expectedSum = 0L;
+		for (long value : map.values())
+			sum += value;
+		for (long value : expected.values())
+			expectedSum += value;
+		Assert.assertEquals(expectedSum, sum);
+	}
+}
@@ -0,0 +1,92 @@
+package edu.berkeley.gamesman.util;
+
+import java.math.BigInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestUtil {
+	// Past the table's cutoff, where nCr computes directly
+	private static final int MAX_N = 1100;
+	private static final int NUM_THREADS = 4;
+
+	@Test
+	public void nCrMatchesDirectComputation() {
+		// Rows past 64 grow the table, rows past 1024 aren't cached
+		for (int n = 0; n <= MAX_N; n++)
+			for (int k = -1; k <= n + 1; k++)
+				Assert.assertEquals("C(" + n + ", " + k + ")",
+						directNCr(n, k), Util.nCr(n, k));
+	}
+
+	@Test
+	public void smallBinomialsAreExact() {
+		// Rounding in the double arithmetic shows up from 52 bits on
+		BigInteger limit = BigInteger.ONE.shiftLeft(51);
+		for (int n = 0; n <= MAX_N; n++) {
+			BigInteger exact = BigInteger.ONE;
+			for (int k = 0; k <= n / 2 && exact.compareTo(limit) < 0; k++) {
+				Assert.assertEquals("C(" + n + ", " + k + ")", exact
+						.longValue(), Util.nCr(n, k));
+				Assert.assertEquals(exact.longValue(), Util.nCr(n, n - k));
+				exact = exact.multiply(BigInteger.valueOf(n - k)).divide(
+						BigInteger.valueOf(k + 1));
+			}
+		}
+	}
+
+	@Test
+	public void prefillPublishesWholeRows() {
+		long[][] table = Util.nCr_prefill(200);
+		Assert.assertTrue(table.length > 200);
+		for (int n = 0; n <= 200; n++) {
+			Assert.assertEquals(n + 1, table[n].length);
+			for (int k = 0; k <= n; k++)
+				Assert.assertEquals(directNCr(n, k), table[n][k]);
+		}
+		// A smaller request returns the table already published
+		Assert.assertSame(table, Util.nCr_prefill(100));
+	}
+
+	@Test
+	public void concurrentGrowth() throws InterruptedException {
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[NUM_THREADS];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int n = offset; n <= MAX_N; n += NUM_THREADS)
+							for (int k = 0; k <= n; k += 7)
+								Assert.assertEquals(directNCr(n, k), Util
+										.nCr(n, k));
+					} catch (Throwable e) {
+						failure[0] = e;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		if (failure[0] != null)
+			throw new AssertionError(failure[0]);
+	}
+
+	/**
+	 * The computation nCr used for every entry before it had a table
+	 */
+	private static long directNCr(int n, int mk) {
+		int k = mk;
+		if (k > n)
+			return 0;
+		if (k > n / 2)
+			k = n - k;
+		double accum = 1;
+		for (long i = 1; i <= k; i++)
+			accum = accum * (n - k + i) / i;
+		return (long) (accum + 0.5);
+	}
+}
@@ -0,0 +1,82 @@
+package edu.berkeley.gamesman.util.qll;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPool {
+	private static class Counter {
+		private int value;
+	}
+
+	private static Pool<Counter> newPool(boolean counting) {
+		return new Pool<Counter>(new Factory<Counter>() {
+			@Override
+			public Counter newObject() {
+				return new Counter();
+			}
+
+			@Override
+			public void reset(Counter t) {
+				t.value = 0;
+			}
+		}, counting);
+	}
+
+	@Test
+	public void reusesReleasedObjects() {
+		Pool<Counter> pool = newPool(true);
+		Counter[] taken = new Counter[40];
+		for (int i = 0; i < taken.length; i++) {
+			taken[i] = pool.get();
+			taken[i].value = i + 1;
+		}
+		Assert.assertEquals(40, pool.getOutstanding());
+		for (Counter c : taken)
+			pool.release(c);
+		Assert.assertEquals(0, pool.getOutstanding());
+		for (int i = 0; i < taken.length; i++)
+			Assert.assertEquals(0, pool.get().value);
+		Assert.assertEquals(40, pool.getCreated());
+		Assert.assertEquals(40, pool.getHighWatermark());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void detectsExtraRelease() {
+		Pool<Counter> pool = newPool(true);
+		pool.release(pool.get());
+		pool.release(new Counter());
+	}
+
+	@Test
+	public void neverSharesAnObject() throws InterruptedException {
+		final Pool<Counter> pool = newPool(false);
+		final AtomicBoolean shared = new AtomicBoolean(false);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Counter[] mine = new Counter[24];
+					for (int round = 0; round < 2000; round++) {
+						for (int i = 0; i < mine.length; i++) {
+							mine[i] = pool.get();
+							if (mine[i].value++ != 0)
+								shared.set(true);
+						}
+						for (int i = 0; i < mine.length; i++) {
+							if (mine[i].value-- != 1)
+								shared.set(true);
+							pool.release(mine[i]);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		Assert.assertFalse(shared.get());
+	}
+}
@@ -0,0 +1,163 @@
+package edu.berkeley.gamesman;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.transport.TServerTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * A server transport which allows at most a fixed number of connections to be
+ * open at once. TThreadPoolServer serves each connection on its own worker
+ * thread, so this bounds the number of workers. When every connection is in
+ * use, accept blocks until one is closed and new clients wait in the socket's
+ * backlog instead of each getting a thread.<br />
+ * TThreadPoolServer doesn't close a connection whose processor throws an
+ * Error, so processors must be wrapped with closeOnError for every permit to
+ * be returned.
+ */
+class BoundedServerTransport extends TServerTransport {
+	// How often a blocked accept checks whether it's been interrupted
+	private static final long ACQUIRE_POLL_MILLIS = 100;
+
+	private final TServerTransport inner;
+	private final Semaphore permits;
+	private volatile boolean interrupted = false;
+
+	/**
+	 * @param inner
+	 *            The transport to accept connections from
+	 * @param maxConnections
+	 *            The maximum number of connections open at once
+	 */
+	BoundedServerTransport(TServerTransport inner, int maxConnections) {
+		this.inner = inner;
+		permits = new Semaphore(maxConnections);
+	}
+
+	@Override
+	public void listen() throws TTransportException {
+		inner.listen();
+	}
+
+	@Override
+	protected TTransport acceptImpl() throws TTransportException {
+		acquire();
+		try {
+			return new Connection(inner.accept());
+		} catch (TTransportException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void acquire() throws TTransportException {
+		try {
+			while (!permits.tryAcquire(ACQUIRE_POLL_MILLIS,
+					TimeUnit.MILLISECONDS)) {
+				if (interrupted)
+					throw new TTransportException(TTransportException.UNKNOWN,
+							"Interrupted waiting for a connection to close");
+			}
+		} catch (InterruptedException e) {
+			throw new TTransportException(TTransportException.UNKNOWN, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		inner.close();
+	}
+
+	@Override
+	public void interrupt() {
+		interrupted = true;
+		inner.interrupt();
+	}
+
+	/**
+	 * @param processor
+	 *            The processor serving connections from this transport
+	 * @return A processor which closes the connection (returning its permit)
+	 *         when processor throws, since TThreadPoolServer's worker only
+	 *         catches Exceptions and skips closing when anything else escapes
+	 */
+	TProcessor closeOnError(final TProcessor processor) {
+		return new TProcessor() {
+			@Override
+			public boolean process(TProtocol in, TProtocol out)
+					throws TException {
+				boolean returned = false;
+				try {
+					boolean result = processor.process(in, out);
+					returned = true;
+					return result;
+				} finally {
+					if (!returned) {
+						in.getTransport().close();
+						out.getTransport().close();
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns its permit the first time it's closed
+	 */
+	private class Connection extends TTransport {
+		private final TTransport client;
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private Connection(TTransport client) {
+			this.client = client;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return client.isOpen();
+		}
+
+		@Override
+		public boolean peek() {
+			return client.peek();
+		}
+
+		@Override
+		public void open() throws TTransportException {
+			client.open();
+		}
+
+		@Override
+		public void close() {
+			client.close();
+			if (closed.compareAndSet(false, true))
+				permits.release();
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len)
+				throws TTransportException {
+			return client.read(buf, off, len);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len)
+				throws TTransportException {
+			client.write(buf, off, len);
+		}
+
+		@Override
+		public void flush() throws TTransportException {
+			client.flush();
+		}
+	}
+}
@@ -6,14 +6,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Set;
 
 import org.apache.thrift.TException;
 
@@ -24,6 +21,8 @@ import edu.berkeley.gamesman.thrift.GamestateResponse;
 import edu.berkeley.gamesman.util.DebugFacility;
 import edu.berkeley.gamesman.util.Pair;
 import edu.berkeley.gamesman.util.Util;
+import edu.berkeley.gamesman.util.qll.Factory;
+import edu.berkeley.gamesman.util.qll.Pool;
 import edu.berkeley.gamesman.core.Configuration;
 import edu.berkeley.gamesman.core.Record;
 import edu.berkeley.gamesman.core.State;
@@ -31,15 +30,37 @@ import edu.berkeley.gamesman.core.Value;
 
 public class DefaultOpener implements Opener {
 
-	private ExecutorService tp = Executors.newCachedThreadPool();
-
 	private class DefaultFetcher implements RecordFetcher {
 		private final Configuration config;
 		private final Database db;
+		/**
+		 * Copies of config (each with its own game) so that requests handled
+		 * on different threads never share a game instance
+		 */
+		private final Pool<Configuration> confPool;
+		private final ResponseCache responseCache;
 
 		public DefaultFetcher(Configuration conf, Database db) {
 			this.config = conf;
 			this.db = db;
+			int cacheEntries = Integer.parseInt(serverConf.getProperty(
+					"json.cache.entries", "16384"));
+			responseCache = cacheEntries <= 0 ? null : new ResponseCache(
+					cacheEntries, Integer.parseInt(serverConf.getProperty(
+							"json.cache.shards", "16")), Long
+							.parseLong(serverConf.getProperty(
+									"json.cache.ttl.millis", "0")));
+			confPool = conf == null ? null : new Pool<Configuration>(
+					new Factory<Configuration>() {
+						@Override
+						public Configuration newObject() {
+							return config.cloneAll();
+						}
+
+						@Override
+						public void reset(Configuration t) {
+						}
+					});
 		}
 
 		@Override
@@ -48,50 +69,132 @@ public class DefaultOpener implements Opener {
 			return this.<State> innerGetNextMoveValues(board);
 		}
 
+		/**
+		 * Fills the response cache with every board reachable in fewer than
+		 * plies moves (or as many of them as fit)
+		 * 
+		 * @param plies
+		 *            The number of moves from the starting positions to cache
+		 * @return The number of boards cached
+		 */
+		@SuppressWarnings("unchecked")
+		private int prewarm(int plies) throws TException {
+			if (responseCache == null || config == null || plies <= 0)
+				return 0;
+			return this.<State> innerPrewarm(plies);
+		}
+
+		private <T extends State<T>> int innerPrewarm(int plies)
+				throws TException {
+			Configuration conf = confPool.get();
+			try {
+				Game<T> game = conf.getCheckedGame();
+				Set<String> seen = new HashSet<String>();
+				List<T> level = new ArrayList<T>(game.startingPositions());
+				for (int ply = 0; ply < plies && !level.isEmpty(); ply++) {
+					List<T> nextLevel = new ArrayList<T>();
+					for (T state : level) {
+						String board = game.stateToString(state);
+						if (seen.size() >= responseCache.capacity())
+							return seen.size();
+						else if (!seen.add(board))
+							continue;
+						getNextMoveValues(board);
+						Value pv = game.strictPrimitiveValue(state);
+						if (game.getPlayerCount() > 1 && pv != Value.UNDECIDED)
+							continue;
+						for (Pair<String, T> child : game.validMoves(state))
+							nextLevel.add(child.cdr);
+					}
+					level = nextLevel;
+				}
+				return seen.size();
+			} finally {
+				confPool.release(conf);
+			}
+		}
+
 		private <T extends State<T>> List<GamestateResponse> innerGetNextMoveValues(
 				String board) throws TException {
 			if (config == null) {
 				throw new TException("This game does not exist.");
 			}
+			if (responseCache == null)
+				return this.<T> readNextMoveValues(board);
+			List<GamestateResponse> responses = responseCache.get(board);
+			if (responses == null) {
+				responses = Collections.unmodifiableList(this
+						.<T> readNextMoveValues(board));
+				responseCache.put(board, responses);
+				if ((responseCache.getMisses() & 0xFFF) == 0)
+					assert Util.debug(DebugFacility.JSON,
+							responseCache.toString());
+			}
+			return responses;
+		}
+
+		private <T extends State<T>> List<GamestateResponse> readNextMoveValues(
+				String board) {
 			// Database db = config.getDatabase();
-			Game<T> game = config.getCheckedGame();
+			Configuration conf = confPool.get();
+			try {
+				return this.<T> innerGetNextMoveValues(conf, board);
+			} finally {
+				confPool.release(conf);
+			}
+		}
+
+		private <T extends State<T>> List<GamestateResponse> innerGetNextMoveValues(
+				Configuration conf, String board) {
+			Game<T> game = conf.getCheckedGame();
 
-			T state = game.synchronizedStringToState(board);
+			T state = game.stringToState(board);
 
-			if (!game.synchronizedStateToString(state).equals(board))
+			if (!game.stateToString(state).equals(board))
 				throw new Error("Board does not match: "
-						+ game.synchronizedStateToString(state) + "; " + board);
+						+ game.stateToString(state) + "; " + board);
 
-			// Access to this list must be synchronized!
-			final List<GamestateResponse> responseArray = Collections
-					.synchronizedList(new ArrayList<GamestateResponse>());
+			List<GamestateResponse> result = new ArrayList<GamestateResponse>();
 
-			Value pv = game.synchronizedStrictPrimitiveValue(state);
+			Value pv = game.strictPrimitiveValue(state);
 			if (game.getPlayerCount() <= 1 || pv == Value.UNDECIDED) {
-				Collection<Pair<String, T>> states = game
-						.synchronizedValidMoves(state);
-				Iterator<Pair<String, T>> iter = states.iterator();
-				Future<?>[] recordThreads = new Future<?>[states.size()];
-				for (int i = 0; i < recordThreads.length; i++) {
-					final Pair<String, T> next = iter.next();
-					recordThreads[i] = tp.submit(new FieldFiller<T>(config, db,
-							next.car, next.cdr, responseArray));
+				Collection<Pair<String, T>> states = game.validMoves(state);
+				long[] records = readChildRecords(game, states);
+				int i = 0;
+				for (Pair<String, T> next : states) {
+					GamestateResponse entry = fillResponseFields(conf, db,
+							next.cdr, records == null ? 0L : records[i], true);
+					entry.setMove(next.car);
+					result.add(entry);
+					i++;
 				}
+			}
+			return result;
+		}
 
-				// Wait for the worker threads to complete.
-				for (Future<?> t : recordThreads) {
-					while (!t.isDone()) {
-						try {
-							t.get();
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						} catch (ExecutionException e) {
-							throw new RuntimeException(e);
-						}
-					}
-				}
+		/**
+		 * Reads the records of all the children with a single call to
+		 * readRecords
+		 * 
+		 * @return The records (in the same order as the children) or null if
+		 *         there's no database
+		 */
+		private <T extends State<T>> long[] readChildRecords(Game<T> game,
+				Collection<Pair<String, T>> children) {
+			if (db == null)
+				return null;
+			long[] hashes = new long[children.size()];
+			int i = 0;
+			for (Pair<String, T> child : children)
+				hashes[i++] = game.stateToHash(child.cdr);
+			long[] records = new long[hashes.length];
+			try {
+				db.readRecords(db.getHandle(true), hashes, hashes.length,
+						records);
+			} catch (IOException e) {
+				throw new Error(e);
 			}
-			return responseArray;
+			return records;
 		}
 
 		@Override
@@ -107,15 +210,20 @@ public class DefaultOpener implements Opener {
 			}
 
 			// Database db = config.getDatabase();
-			Game<T> game = config.getCheckedGame();
+			Configuration conf = confPool.get();
+			try {
+				Game<T> game = conf.getCheckedGame();
 
-			T state = game.synchronizedStringToState(board);
+				T state = game.stringToState(board);
 
-			if (!game.synchronizedStateToString(state).equals(board))
-				throw new Error("Board does not match: "
-						+ game.synchronizedStateToString(state) + "; " + board);
+				if (!game.stateToString(state).equals(board))
+					throw new Error("Board does not match: "
+							+ game.stateToString(state) + "; " + board);
 
-			return fillResponseFields(config, db, state, false);
+				return fillResponseFields(conf, db, state, false);
+			} finally {
+				confPool.release(conf);
+			}
 		}
 
 	}
@@ -143,7 +251,7 @@ public class DefaultOpener implements Opener {
 			if (filename != null && f.exists()) {
 				System.out.println("Loading solved database " + filename);
 				Database db = Database.openDatabase(filename);
-				return new DefaultFetcher(db.conf, db);
+				return newFetcher(db.conf, db);
 			} else {
 				assert Util.debug(DebugFacility.JSON, "Database at " + filename
 						+ " does not exist! Using unsolved.");
@@ -173,7 +281,7 @@ public class DefaultOpener implements Opener {
 					}
 					props.setProperty("gamesman.game." + key, val);
 				}
-				return new DefaultFetcher(new Configuration(props), null);
+				return newFetcher(new Configuration(props), null);
 			} catch (ClassNotFoundException e) {
 				e.printStackTrace();
 				return null;
@@ -188,47 +296,53 @@ public class DefaultOpener implements Opener {
 		}
 	}
 
-	private class FieldFiller<T extends State<T>> implements Runnable {
-		private final Configuration config;
-		private final Database db;
-		private final String move;
-		private final T state;
-		private final List<GamestateResponse> responseArray;
-
-		public FieldFiller(Configuration conf, Database db, String move,
-				T state, List<GamestateResponse> responseArray) {
-			config = conf;
-			this.db = db;
-			this.move = move;
-			this.state = state;
-			this.responseArray = responseArray;
-		}
-
-		@Override
-		public void run() {
-			GamestateResponse entry = new GamestateResponse();
-			entry = fillResponseFields(config, db, state, true);
-			entry.setMove(move);
-			responseArray.add(entry);
+	private DefaultFetcher newFetcher(Configuration conf, Database db) {
+		DefaultFetcher fetcher = new DefaultFetcher(conf, db);
+		int plies = Integer.parseInt(serverConf.getProperty(
+				"json.cache.prewarm.plies", "0"));
+		try {
+			int boards = fetcher.prewarm(plies);
+			if (boards > 0)
+				System.out.println("Cached responses for " + boards
+						+ " boards");
+		} catch (TException e) {
+			e.printStackTrace();
 		}
-	};
+		return fetcher;
+	}
 
 	private <T extends State<T>> GamestateResponse fillResponseFields(
 			Configuration conf, Database db, T state, boolean isChildState) {
-		GamestateResponse request = new GamestateResponse();
-
-		Game<T> g = conf.getCheckedGame();
+		long record = 0L;
 		if (db != null) {
-			Record rec = g.newRecord();
+			Game<T> g = conf.getCheckedGame();
 			DatabaseHandle handle = db.getHandle(true);
 			try {
-				g.synchronizedLongToRecord(
-						state,
-						db.readRecord(handle, g.synchronizedStateToHash(state)),
-						rec);
+				record = db.readRecord(handle, g.stateToHash(state));
 			} catch (IOException e) {
 				throw new Error(e);
 			}
+		}
+		return fillResponseFields(conf, db, state, record, isChildState);
+	}
+
+	/**
+	 * @param conf
+	 *            A configuration whose game isn't being used by any other
+	 *            thread
+	 * @param record
+	 *            The record for state which has already been read from db
+	 *            (ignored if db is null)
+	 */
+	private <T extends State<T>> GamestateResponse fillResponseFields(
+			Configuration conf, Database db, T state, long record,
+			boolean isChildState) {
+		GamestateResponse request = new GamestateResponse();
+
+		Game<T> g = conf.getCheckedGame();
+		if (db != null) {
+			Record rec = g.newRecord();
+			g.longToRecord(state, record, rec);
 			if (conf.hasValue) {
 				Value pv = rec.value;
 				if (g.getPlayerCount() > 1 && isChildState)
@@ -245,7 +359,7 @@ public class DefaultOpener implements Opener {
 					+ request.getValue() + "; remote=" + rec.remoteness
 					+ "; score=" + rec.score);
 		} else {
-			Value pv = g.synchronizedStrictPrimitiveValue(state);
+			Value pv = g.strictPrimitiveValue(state);
 			if (pv != Value.UNDECIDED) {
 				if (g.getPlayerCount() > 1 && isChildState) {
 					if (pv == Value.WIN)
@@ -256,12 +370,12 @@ public class DefaultOpener implements Opener {
 				request.setValue(pv.name().toLowerCase());
 
 			}
-			int score = g.synchronizedPrimitiveScore(state);
+			int score = g.primitiveScore(state);
 			if (score > 0) {
 				request.setScore(score);
 			}
 		}
-		String boardString = g.synchronizedStateToString(state);
+		String boardString = g.stateToString(state);
 		request.setBoard(boardString);
 		return request;
 	}
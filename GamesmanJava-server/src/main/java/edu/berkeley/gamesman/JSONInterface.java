@@ -10,6 +10,7 @@ import java.util.Map;
 import java.util.Properties;
 
 import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
 import org.apache.thrift.server.TServer;
 import org.apache.thrift.server.TThreadPoolServer;
 import org.apache.thrift.transport.TServerSocket;
@@ -87,8 +88,20 @@ public class JSONInterface implements Iface {
 
 		TServerTransport serverTransport;
 		try {
+			// Each connection gets its own worker thread, so limiting
+			// connections bounds the workers (json.workers, 0 for no limit)
+			int workers = Integer.parseInt(serverConf.getProperty(
+					"json.workers", Integer.toString(4 * Runtime.getRuntime()
+							.availableProcessors())));
 			serverTransport = new TServerSocket(port);
-			TServer threaded = new TThreadPoolServer(processor, serverTransport);
+			TProcessor served = processor;
+			if (workers > 0) {
+				BoundedServerTransport bounded = new BoundedServerTransport(
+						serverTransport, workers);
+				served = bounded.closeOnError(processor);
+				serverTransport = bounded;
+			}
+			TServer threaded = new TThreadPoolServer(served, serverTransport);
 
 			System.out.println("Starting the server...");
 			threaded.serve();
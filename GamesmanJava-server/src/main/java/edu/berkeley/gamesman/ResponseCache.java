@@ -0,0 +1,140 @@
+package edu.berkeley.gamesman;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.berkeley.gamesman.thrift.GamestateResponse;
+
+/**
+ * A bounded least-recently-used cache of complete next-move responses keyed
+ * by board string. Entries may also expire a fixed time after they're added.
+ * The cache is split into shards (each with its own lock and LRU order) so
+ * that server threads looking up different boards rarely contend. Cached
+ * lists are shared between requests and must not be modified.
+ */
+class ResponseCache {
+	private static final class Cached {
+		private final List<GamestateResponse> responses;
+		private final long expires;
+
+		private Cached(List<GamestateResponse> responses, long expires) {
+			this.responses = responses;
+			this.expires = expires;
+		}
+	}
+
+	private final class Shard extends LinkedHashMap<String, Cached> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		private Shard(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+			if (size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			} else
+				return false;
+		}
+	}
+
+	private final Shard[] shards;
+	private final long ttlNanos;
+	private final int capacity;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+			evictions = new AtomicLong(), expirations = new AtomicLong();
+
+	/**
+	 * @param numEntries
+	 *            The maximum number of boards to hold (across all shards)
+	 * @param numShards
+	 *            The number of independently locked shards
+	 * @param ttlMillis
+	 *            How long an entry stays valid (0 for forever)
+	 */
+	ResponseCache(int numEntries, int numShards, long ttlMillis) {
+		numShards = Math.max(1, Math.min(numShards, numEntries));
+		shards = new Shard[numShards];
+		int shardCapacity = Math.max(1, numEntries / numShards);
+		for (int i = 0; i < numShards; i++)
+			shards[i] = new Shard(shardCapacity);
+		capacity = shardCapacity * numShards;
+		ttlNanos = ttlMillis * 1000000L;
+	}
+
+	private Shard shardFor(String board) {
+		return shards[(board.hashCode() & Integer.MAX_VALUE) % shards.length];
+	}
+
+	/**
+	 * @param board
+	 *            The board string
+	 * @return The cached responses for that board or null if there are none
+	 */
+	List<GamestateResponse> get(String board) {
+		Shard shard = shardFor(board);
+		Cached entry;
+		synchronized (shard) {
+			entry = shard.get(board);
+			if (entry != null && ttlNanos > 0
+					&& System.nanoTime() - entry.expires > 0) {
+				shard.remove(board);
+				expirations.incrementAndGet();
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		} else {
+			hits.incrementAndGet();
+			return entry.responses;
+		}
+	}
+
+	/**
+	 * @param board
+	 *            The board string
+	 * @param responses
+	 *            The responses for that board (which must not be modified
+	 *            afterwards)
+	 */
+	void put(String board, List<GamestateResponse> responses) {
+		Shard shard = shardFor(board);
+		Cached entry = new Cached(responses, System.nanoTime() + ttlNanos);
+		synchronized (shard) {
+			shard.put(board, entry);
+		}
+	}
+
+	/**
+	 * @return The maximum number of boards held
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits(), misses = getMisses();
+		long total = hits + misses;
+		return "ResponseCache: " + hits + " hits, " + misses + " misses, "
+				+ evictions.get() + " evictions, " + expirations.get()
+				+ " expirations"
+				+ (total == 0 ? "" : " (" + hits * 100 / total + "% hit rate)");
+	}
+}